@@ -6,6 +6,7 @@ import com.mixer.raw.general.GenericIndexPool;
 import com.mixer.raw.general.ICSVRepresentation;
 import com.mixer.raw.general.MxrTable;
 import com.mixer.raw.general.Table;
+import com.mixer.raw.general.TableSettings;
 
 import java.io.*;
 import java.util.*;
@@ -17,6 +18,8 @@ public final class DBGenericServer implements DBGeneric {
 	private final Map<String, Table> tablePool;
 	private Table currentlyUsedTable = null;
 	private final GenericIndexPool indexPool;
+	// content of the config.properties, contains also the table settings
+	private final Properties properties = new Properties();
 
 	public static final Logger LOGGER = Logger.getLogger("DBServer");
 	private static final String PROPERTY_FILE_NAME = "config.properties";
@@ -34,7 +37,7 @@ public final class DBGenericServer implements DBGeneric {
 
 	private void initialise() throws IOException {
 
-		Properties properties = new Properties();
+		Properties properties = this.properties;
 		try (FileInputStream fis = new FileInputStream(PROPERTY_FILE_NAME)) {
 			properties.load(fis);
 		}
@@ -75,7 +78,8 @@ public final class DBGenericServer implements DBGeneric {
 		if (this.tablePool.containsKey(tableName)) {
 			this.currentlyUsedTable = this.tablePool.get(tableName);
 		} else {
-			Table _table = new MxrTable(tableName, schema, zClass, this.indexPool);
+			Table _table = new MxrTable(tableName, schema, zClass, this.indexPool,
+					TableSettings.fromProperties(this.properties, tableName));
 			this.tablePool.put(tableName, _table);
 			this.currentlyUsedTable = _table;
 		}
@@ -100,7 +104,7 @@ public final class DBGenericServer implements DBGeneric {
 		if (!file.exists()) {
 			throw new DBException("Cannot delete table " + tableName);
 		}
-		return file.delete();
+		return MxrTable.deleteTableFiles(tableName);
 	}
 
 	@Override
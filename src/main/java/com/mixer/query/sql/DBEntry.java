@@ -1,17 +1,68 @@
 package com.mixer.query.sql;
 
+import com.mixer.exceptions.DBException;
+
 /**
- * This class represents an entry in the database - a row
+ * This class represents an entry in the database - a row.
+ * The stored object is either given when the entry is created, or it is read from a RowSource when it
+ * is needed first. Until then the fields are read from the RowSource one by one.
  */
 public final class DBEntry {
-    // the stored object
-    public final Object object;
+    /**
+     * The stored object. In an entry which reads its row from a RowSource it is null until getObject() reads it
+     *
+     * @deprecated Use getObject(), which reads the object when it is needed
+     */
+    @Deprecated
+    public Object object;
+
+    // the row is read from here, if the object is not given
+    private final RowSource source;
 
     // index of the object
     public final long rowIndex;
 
     public DBEntry(final Object object, final long rowIndex) {
         this.object = object;
+        this.source = null;
+        this.rowIndex = rowIndex;
+    }
+
+    public DBEntry(final RowSource source, final long rowIndex) {
+        this.source = source;
         this.rowIndex = rowIndex;
     }
+
+    /**
+     * Returns the stored object. It is read from the source at the first call
+     *
+     * @return The stored object
+     * @throws DBException If the object cannot be read
+     */
+    public Object getObject() throws DBException {
+        if (this.object == null && this.source != null) {
+            this.object = this.source.readObject(this.rowIndex);
+        }
+        return this.object;
+    }
+
+    /**
+     * Returns the value of a field. If the object is not read yet, only the field is read from the source
+     *
+     * @param fieldName Name of the field
+     * @return Value of the field
+     * @throws DBException If the field does not exist
+     */
+    public Object getFieldValue(final String fieldName) throws DBException {
+        if (this.object == null && this.source != null) {
+            return this.source.readField(this.rowIndex, fieldName);
+        }
+        try {
+            java.lang.reflect.Field field = this.object.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            return field.get(this.object);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new DBException(e.getMessage());
+        }
+    }
 }
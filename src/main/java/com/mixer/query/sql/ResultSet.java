@@ -1,5 +1,7 @@
 package com.mixer.query.sql;
 
+import com.mixer.exceptions.DBException;
+
 import java.util.ArrayList;
 import java.util.Iterator;
 
@@ -20,10 +22,10 @@ public final class ResultSet implements Iterable<Object> {
 		return new MyIterator(this);
     }
 
-    public ResultSet convertToPureObjects() {
+    public ResultSet convertToPureObjects() throws DBException {
         ArrayList<Object> _tmp = new ArrayList<>();
         for(Object o: result) {
-            _tmp.add(((DBEntry)o).object);
+            _tmp.add(((DBEntry)o).getObject());
         }
 
         this.result = _tmp.toArray();
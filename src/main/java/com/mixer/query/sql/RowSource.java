@@ -0,0 +1,29 @@
+package com.mixer.query.sql;
+
+import com.mixer.exceptions.DBException;
+
+/**
+ * Gives access to the rows of a table for the query engine. Fields can be read one by one, so the
+ * whole stored object has to be created only for the rows which are really needed.
+ */
+public interface RowSource {
+
+    /**
+     * Reads one field of a row
+     *
+     * @param rowIndex Index of the row
+     * @param fieldName Name of the field
+     * @return Value of the field
+     * @throws DBException If the row or the field does not exist
+     */
+    Object readField(long rowIndex, String fieldName) throws DBException;
+
+    /**
+     * Reads the stored object of a row
+     *
+     * @param rowIndex Index of the row
+     * @return The stored object
+     * @throws DBException If the row cannot be read
+     */
+    Object readObject(long rowIndex) throws DBException;
+}
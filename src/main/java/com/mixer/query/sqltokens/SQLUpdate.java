@@ -70,10 +70,11 @@ public class SQLUpdate extends SQLToken {
         // update the elements from the table
         try{
             for(DBEntry o : result) {
+                Object object = o.getObject();
                 for(int i=0;i< fieldNames.length;i++){
-                    Field field = o.object.getClass().getDeclaredField(fieldNames[i].trim());
+                    Field field = object.getClass().getDeclaredField(fieldNames[i].trim());
                     field.setAccessible(true);
-                    field.set(o.object, values[i].substring(1, values[i].length()-1));
+                    field.set(object, values[i].substring(1, values[i].length()-1));
                 }
             }
         }catch(IllegalArgumentException|NoSuchFieldException|IllegalAccessException iae) {
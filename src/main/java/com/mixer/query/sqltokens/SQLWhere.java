@@ -99,7 +99,7 @@ public class SQLWhere extends SQLToken {
                                   final String fieldValue,
                                   final String operation) throws DBException {
         try {
-            Object _fieldValue = dbentry.object.getClass().getDeclaredField(fieldName).get(dbentry.object);
+            Object _fieldValue = dbentry.getFieldValue(fieldName);
 
             if(this.handleOperation(_fieldValue, fieldValue, operation)) {
                 return dbentry;
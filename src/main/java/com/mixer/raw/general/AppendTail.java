@@ -0,0 +1,72 @@
+package com.mixer.raw.general;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The end of a table file, where the new rows are appended. The space of an append is reserved without a lock, so
+ * the appends of concurrent commits are written at the same time, each into its own part of the file.
+ * The readers see the file up to the written end: every append before it is written, the appends after it are
+ * still being written. An append must be completed even if its write failed, otherwise the written end stops
+ * before it.
+ */
+final class AppendTail {
+
+    // end of the reserved space, the next append starts here
+    private final AtomicLong reservedEnd = new AtomicLong();
+    // every append before it is written
+    private final AtomicLong writtenEnd = new AtomicLong();
+    // appends which are written, but an append before them is not: position -> end
+    private final ConcurrentHashMap<Long, Long> completed = new ConcurrentHashMap<>();
+
+    /**
+     * Sets the end of the file. No append may run meanwhile
+     *
+     * @param end Length of the file
+     */
+    void reset(long end) {
+        this.completed.clear();
+        this.reservedEnd.set(end);
+        this.writtenEnd.set(end);
+    }
+
+    /**
+     * Reserves space at the end of the file
+     *
+     * @param length Number of bytes
+     * @return Position of the reserved space
+     */
+    long reserve(int length) {
+        return this.reservedEnd.getAndAdd(length);
+    }
+
+    /**
+     * Marks an append as written. The written end moves over it, if every append before it is written
+     *
+     * @param position Position returned by reserve()
+     * @param end End of the reserved space
+     */
+    void complete(long position, long end) {
+        this.completed.put(position, end);
+        // the append which moves the written end to the position of an other one moves it further too
+        while (true) {
+            long written = this.writtenEnd.get();
+            Long next = this.completed.get(written);
+            if (next == null) {
+                return;
+            }
+            if (this.writtenEnd.compareAndSet(written, next)) {
+                this.completed.remove(written);
+            }
+        }
+    }
+
+    /**
+     * Returns the end of the written part of the file
+     *
+     * @return long
+     */
+    long getWrittenEnd() {
+        return this.writtenEnd.get();
+    }
+}
@@ -0,0 +1,351 @@
+package com.mixer.raw.general;
+
+import com.mixer.exceptions.DBException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Row format of the 0.3 table files, made for small rows.
+ * The row header is one flag byte (bit 0: isTemporary, bit 1: isDeleted) and the length of the row data as an
+ * unsigned varint. The fields follow each other in the order of Schema.fields:
+ * <ul>
+ *     <li>String: length of the UTF-8 bytes (unsigned varint), the UTF-8 bytes</li>
+ *     <li>int, long: zigzag varint, small positive and negative numbers take one byte</li>
+ *     <li>double: 8 bytes</li>
+ * </ul>
+ * A varint stores 7 bits in every byte, the highest bit is set if more bytes follow. A String shorter than 128
+ * bytes has a one byte length, so a typical row is 3-4 bytes shorter per String field than in the 0.1 format,
+ * and the row header is 2 bytes instead of 6. A field can be found only by walking through the fields before it.
+ */
+final class CompactRecordCodec extends RecordCodec {
+
+    private static final int TEMPORARY_FLAG = 1;
+    private static final int DELETED_FLAG = 2;
+
+    CompactRecordCodec(final RecordCodec other) {
+        super(other);
+    }
+
+    @Override
+    String getVersion() {
+        return COMPACT_FORMAT;
+    }
+
+    @Override
+    Object decode(final ByteBuffer buffer) throws IOException {
+        try {
+            Object result = (Object) this.constructor.invokeExact();
+            for (FieldCodec field : this.fields) {
+                switch (field.type) {
+                    case STRING:
+                        field.setter.invokeExact(result, (Object) readString(buffer, readUnsignedVarInt(buffer)));
+                        break;
+                    case INT:
+                        field.setter.invokeExact(result, decodeZigZag(readUnsignedVarInt(buffer)));
+                        break;
+                    case LONG:
+                        field.setter.invokeExact(result, decodeZigZag(readUnsignedVarLong(buffer)));
+                        break;
+                    case DOUBLE:
+                        field.setter.invokeExact(result, buffer.getDouble());
+                        break;
+                }
+            }
+            return result;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new EOFException("Row data is shorter than the schema requires");
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    String decodeIndexedValue(final ByteBuffer buffer) throws IOException {
+        try {
+            // skip the fields before the indexed field
+            for (int i = 0; i < this.indexedField; i++) {
+                int length = this.getEncodedLength(buffer, buffer.position(), this.fields[i].type);
+                buffer.position(buffer.position() + length);
+            }
+            return readString(buffer, readUnsignedVarInt(buffer));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new EOFException("Row data is shorter than the schema requires");
+        }
+    }
+
+    @Override
+    ByteBuffer encode(final Object object, ByteBuffer buffer) throws DBException {
+        try {
+            for (FieldCodec field : this.fields) {
+                switch (field.type) {
+                    case STRING: {
+                        Object value = field.getter.invokeExact(object);
+                        if (value == null)
+                            throw new DBException(field.fieldName + " is null. Cannot store it");
+                        buffer = this.writeCompactString((String) value, buffer);
+                        break;
+                    }
+                    case INT:
+                        buffer = ensureRemaining(buffer, 5);
+                        writeUnsignedVarInt(buffer, encodeZigZag((int) field.getter.invokeExact(object)));
+                        break;
+                    case LONG:
+                        buffer = ensureRemaining(buffer, 10);
+                        writeUnsignedVarLong(buffer, encodeZigZag((long) field.getter.invokeExact(object)));
+                        break;
+                    case DOUBLE:
+                        buffer = ensureRemaining(buffer, 8);
+                        buffer.putDouble((double) field.getter.invokeExact(object));
+                        break;
+                }
+            }
+            return buffer;
+        } catch (DBException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new DBException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the length (varint) and the UTF-8 bytes of the string
+     */
+    private ByteBuffer writeCompactString(final String value, ByteBuffer buffer) {
+        // the length of the UTF-8 bytes is not known before the string is written: one byte is reserved for
+        // it, and the bytes are moved if the length needs more
+        buffer = ensureRemaining(buffer, 1);
+        int lengthIndex = buffer.position();
+        buffer.put((byte) 0);
+        buffer = writeStringBytes(value, buffer);
+        int length = buffer.position() - lengthIndex - 1;
+        int lengthSize = getUnsignedVarIntSize(length);
+        if (lengthSize > 1) {
+            buffer = ensureRemaining(buffer, lengthSize - 1);
+            for (int i = length - 1; i >= 0; i--) {
+                buffer.put(lengthIndex + lengthSize + i, buffer.get(lengthIndex + 1 + i));
+            }
+        }
+        int end = lengthIndex + lengthSize + length;
+        buffer.position(lengthIndex);
+        writeUnsignedVarInt(buffer, length);
+        buffer.position(end);
+        return buffer;
+    }
+
+    /**
+     * Returns the number of bytes of a field, which starts at the given index
+     */
+    private int getEncodedLength(final ByteBuffer buffer, int offset, final FieldType type) {
+        switch (type) {
+            case STRING: {
+                int length = getUnsignedVarInt(buffer, offset);
+                return getUnsignedVarIntSize(length) + length;
+            }
+            case DOUBLE:
+                return 8;
+            default:
+                return getVarIntLength(buffer, offset);
+        }
+    }
+
+    /**
+     * The fields are located one after the other, from the last located field
+     */
+    @Override
+    void locate(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        while (locations.locatedPrefix <= fieldPosition) {
+            int i = locations.locatedPrefix;
+            int start = i == 0 ? locations.dataStart
+                    : locations.offsets[i - 1] + locations.lengths[i - 1];
+            switch (this.fields[i].type) {
+                case STRING: {
+                    int length = getUnsignedVarInt(row, start);
+                    locations.offsets[i] = start + getUnsignedVarIntSize(length);
+                    locations.lengths[i] = length;
+                    break;
+                }
+                case DOUBLE:
+                    locations.offsets[i] = start;
+                    locations.lengths[i] = 8;
+                    break;
+                default:
+                    locations.offsets[i] = start;
+                    locations.lengths[i] = getVarIntLength(row, start);
+                    break;
+            }
+            locations.locatedPrefix++;
+        }
+    }
+
+    @Override
+    int readInt(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        return decodeZigZag(getUnsignedVarInt(row, this.getOffset(row, fieldPosition, locations)));
+    }
+
+    @Override
+    long readLong(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        return decodeZigZag(getUnsignedVarLong(row, this.getOffset(row, fieldPosition, locations)));
+    }
+
+    @Override
+    int getHeaderLength(final ByteBuffer buffer, int offset) {
+        return 1 + getVarIntLength(buffer, offset + 1);
+    }
+
+    @Override
+    int getDataLength(final ByteBuffer buffer, int offset) {
+        return getUnsignedVarInt(buffer, offset + 1);
+    }
+
+    @Override
+    boolean isTemporary(final ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & TEMPORARY_FLAG) != 0;
+    }
+
+    @Override
+    boolean isDeleted(final ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & DELETED_FLAG) != 0;
+    }
+
+    @Override
+    int writeHeader(final ByteBuffer buffer, boolean isTemporary, boolean isDeleted) {
+        int dataLength = buffer.position() - MAX_ROW_HEADER_LENGTH;
+        int headerStart = MAX_ROW_HEADER_LENGTH - 1 - getUnsignedVarIntSize(dataLength);
+        buffer.put(headerStart, getFlags(isTemporary, isDeleted));
+        int value = dataLength;
+        int index = headerStart + 1;
+        while ((value & ~0x7F) != 0) {
+            buffer.put(index++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(index, (byte) value);
+        return headerStart;
+    }
+
+    @Override
+    ByteBuffer encodeFlags(boolean isTemporary, boolean isDeleted) {
+        ByteBuffer flags = ByteBuffer.allocate(1);
+        flags.put(getFlags(isTemporary, isDeleted));
+        flags.flip();
+        return flags;
+    }
+
+    private static byte getFlags(boolean isTemporary, boolean isDeleted) {
+        return (byte) ((isTemporary ? TEMPORARY_FLAG : 0) | (isDeleted ? DELETED_FLAG : 0));
+    }
+
+    static int encodeZigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int decodeZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long encodeZigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int getUnsignedVarIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void writeUnsignedVarInt(final ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static void writeUnsignedVarLong(final ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint from the current position of the buffer
+     */
+    static int readUnsignedVarInt(final ByteBuffer buffer) {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static long readUnsignedVarLong(final ByteBuffer buffer) {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Reads an unsigned varint from the given index, without changing the position of the buffer
+     */
+    static int getUnsignedVarInt(final ByteBuffer buffer, int index) {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get(index++);
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static long getUnsignedVarLong(final ByteBuffer buffer, int index) {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get(index++);
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Returns the number of bytes of the varint, which starts at the given index
+     */
+    static int getVarIntLength(final ByteBuffer buffer, int index) {
+        int length = 1;
+        while ((buffer.get(index) & 0x80) != 0) {
+            index++;
+            length++;
+            if (length > 10) {
+                throw new IllegalArgumentException("Malformed varint");
+            }
+        }
+        return length;
+    }
+}
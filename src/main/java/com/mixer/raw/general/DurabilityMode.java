@@ -0,0 +1,22 @@
+package com.mixer.raw.general;
+
+/**
+ * When the commit log of a table is forced to the disk. The commits are always written into the log, so a crash
+ * of the process does not lose them. The mode decides what a crash of the operating system (or a power loss)
+ * can lose.
+ * <ul>
+ *     <li>NONE: the log is forced only when the table is closed. The fastest, for cache tables</li>
+ *     <li>COMMIT: every commit waits until its record is forced. The commits which arrive at the same time share
+ *     one force (group commit). Nothing committed is lost, for ledger tables</li>
+ *     <li>INTERVAL: a background flusher forces the log every DURABILITY_INTERVAL_MS milliseconds. A crash can
+ *     lose the commits of the last interval</li>
+ *     <li>BYTES: a background flusher forces the log when DURABILITY_BYTES bytes of commits are not forced yet.
+ *     A crash can lose that many bytes of commits</li>
+ * </ul>
+ */
+public enum DurabilityMode {
+    NONE,
+    COMMIT,
+    INTERVAL,
+    BYTES
+}
@@ -0,0 +1,146 @@
+package com.mixer.raw.general;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Keeps track of the slots of the deleted rows of a table file, so that new rows can be stored in them
+ * instead of being appended to the end of the file.
+ * A slot is a deleted row: its position and its capacity (the length of its row data). The slots are grouped by
+ * size class, class k contains the slots with capacity between 2^k and 2^(k+1) - 1. A new row is stored in a slot
+ * of its own class if one of the first few fits, otherwise in any slot of a bigger class, which surely fits.
+ * The row takes the whole slot, the unused bytes stay as free space at the end of the row data (like the slack
+ * of an in-place update), so the length of the slot does not change and the rows after it can still be found.
+ * The map is built by the startup scan (or loaded from the index checkpoint), the slots are added when a
+ * deletion is committed or a commit fails after its new rows were written. Must be used under the writeLock of the file handler.
+ */
+final class FreeSpaceMap {
+
+    private static final int SIZE_CLASSES = 32;
+    // number of slots checked in the own size class of a row
+    private static final int MAX_SLOTS_TO_CHECK = 16;
+
+    /**
+     * A deleted row
+     */
+    static final class Slot {
+        final long position;
+        final int capacity;
+
+        Slot(long position, int capacity) {
+            this.position = position;
+            this.capacity = capacity;
+        }
+    }
+
+    private final ArrayList<ArrayList<Slot>> sizeClasses = new ArrayList<>(SIZE_CLASSES);
+    private int slotCount = 0;
+    private long freeBytes = 0;
+
+    FreeSpaceMap() {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            this.sizeClasses.add(new ArrayList<>());
+        }
+    }
+
+    private static int getSizeClass(int capacity) {
+        return capacity == 0 ? 0 : 31 - Integer.numberOfLeadingZeros(capacity);
+    }
+
+    /**
+     * Adds a slot to the map
+     *
+     * @param position Position of the deleted row
+     * @param capacity Length of the row data of the deleted row
+     */
+    void add(long position, int capacity) {
+        this.sizeClasses.get(getSizeClass(capacity)).add(new Slot(position, capacity));
+        this.slotCount++;
+        this.freeBytes += capacity;
+    }
+
+    /**
+     * Finds a slot for a row and removes it from the map
+     *
+     * @param dataLength Length of the row data
+     * @return The slot, or null if there is no slot which is big enough
+     */
+    Slot allocate(int dataLength) {
+        int sizeClass = getSizeClass(dataLength);
+        ArrayList<Slot> slots = this.sizeClasses.get(sizeClass);
+        int checked = Math.min(slots.size(), MAX_SLOTS_TO_CHECK);
+        for (int i = slots.size() - 1; i >= slots.size() - checked; i--) {
+            if (slots.get(i).capacity >= dataLength) {
+                return this.remove(slots, i);
+            }
+        }
+        for (int i = sizeClass + 1; i < SIZE_CLASSES; i++) {
+            slots = this.sizeClasses.get(i);
+            if (!slots.isEmpty()) {
+                return this.remove(slots, slots.size() - 1);
+            }
+        }
+        return null;
+    }
+
+    private Slot remove(final ArrayList<Slot> slots, int i) {
+        Slot slot = slots.get(i);
+        // the last slot takes the place of the removed one
+        slots.set(i, slots.get(slots.size() - 1));
+        slots.remove(slots.size() - 1);
+        this.slotCount--;
+        this.freeBytes -= slot.capacity;
+        return slot;
+    }
+
+    int getSlotCount() {
+        return this.slotCount;
+    }
+
+    long getFreeBytes() {
+        return this.freeBytes;
+    }
+
+    void clear() {
+        for (ArrayList<Slot> slots : this.sizeClasses) {
+            slots.clear();
+        }
+        this.slotCount = 0;
+        this.freeBytes = 0;
+    }
+
+    /**
+     * Writes the slots. Used to store the map in the index checkpoint.
+     *
+     * @param output DataOutput
+     * @throws IOException
+     * @see IndexCheckpoint
+     */
+    void writeTo(final DataOutput output) throws IOException {
+        output.writeInt(this.slotCount);
+        for (ArrayList<Slot> slots : this.sizeClasses) {
+            for (Slot slot : slots) {
+                output.writeLong(slot.position);
+                output.writeInt(slot.capacity);
+            }
+        }
+    }
+
+    /**
+     * Loads the slots, which were written by writeTo()
+     *
+     * @param input DataInput
+     * @throws IOException
+     * @see IndexCheckpoint
+     */
+    void readFrom(final DataInput input) throws IOException {
+        this.clear();
+        int slots = input.readInt();
+        for (int i = 0; i < slots; i++) {
+            long position = input.readLong();
+            this.add(position, input.readInt());
+        }
+    }
+}
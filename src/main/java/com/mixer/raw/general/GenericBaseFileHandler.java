@@ -2,14 +2,27 @@ package com.mixer.raw.general;
 
 import com.mixer.dbserver.DBServer;
 import com.mixer.exceptions.DBException;
+import com.mixer.transaction.ITransaction;
+import com.mixer.transaction.RowIdentity;
 import com.mixer.util.DebugRowInfo;
+import com.mixer.util.LongLongMap;
 
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -21,17 +34,109 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 class GenericBaseFileHandler {
 
     RandomAccessFile dbFile;
+    // channel of the dbFile, used for positional reads - it does not use the file pointer of dbFile
+    volatile FileChannel dbChannel;
+    // memory mapping of the file, only used if the storage mode is MMAP
+    private volatile MappedTableFile mappedFile;
+    private StorageMode storageMode = StorageMode.FILE;
+    // end of the file, new rows are appended here
+    final AppendTail fileTail = new AppendTail();
+    // sequence number of the file: odd while the file is replaced by the compacted file and the index is
+    // relocated, incremented again when both are done. The readers which do not lock the table check it
+    private volatile long fileGeneration = 0;
     private final String dbFileName;
     Schema schema;
     Class<?> zClass;
+    // encodes and decodes the rows, built once for the schema and the class
+    RecordCodec codec;
     String indexByFieldName;
     final GenericIndex index;
+    // persistent snapshot of the index, helps to open the table quickly
+    final IndexCheckpoint checkpoint;
+    // slots of the deleted rows, which can be reused by new rows. Used under the writeLock
+    FreeSpaceMap freeSpace = new FreeSpaceMap();
+    // positions of the rows modified in place while a TableCompactor copies the file, otherwise null.
+    // Used under the writeLock
+    private Set<Long> modifiedRows;
+    // positions of the committed rows whose flags still say temporary. The commit log contains them as
+    // committed rows. Used under the writeLock
+    private final Set<Long> pendingFlags = new HashSet<>();
+    // rows (deleted or updated) and indexed values (added) of the commits between prepareCommit() and
+    // finishCommit(). A commit claims them before it checks them, so the commits of other rows do not wait
+    // for each other
+    private final Set<Long> claimedRows = ConcurrentHashMap.newKeySet();
+    private final Set<String> claimedValues = ConcurrentHashMap.newKeySet();
+    // old versions of the rows for the open snapshots
+    private final VersionStore versions = new VersionStore();
+    // version stamps of the rows added or changed since the table was opened: row number -> stamp. The other rows
+    // have the stamp versionBase. Updated at the end of finishCommit(), after the rows are written, under the
+    // writeLock. The stamp of a row is dropped when the row is removed
+    private final LongLongMap rowVersions = new LongLongMap();
+    // the stamps start from the time of the opening, so the stamps read before the table was opened again are
+    // not valid any more
+    private final long versionBase = System.currentTimeMillis() * 1_000_000L;
+    // version stored in the header of the file
+    private String tableVersion;
+    // the table file did not exist (or it was empty) before initialise()
+    private boolean created = false;
 
+    // the table lock: the writeLock is held while the free space, the index or the file is changed (not while
+    // new rows are appended), the readers of the committed rows do not use it
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     final Lock readLock = readWriteLock.readLock();
     final Lock writeLock = readWriteLock.writeLock();
-    private final static int HEADER_INFO_SPACE = 100;
-    final String VERSION = "0.1";
+    // locks of the rows by byte position: a row is read under the read lock, and overwritten in place under the
+    // write lock of its stripe
+    private final StripedLock rowLocks = new StripedLock(ROW_LOCK_STRIPES);
+    final static int HEADER_INFO_SPACE = 100;
+    // number of bytes we read in one go when the length of the row is not known yet
+    private final static int ROW_READ_AHEAD = 512;
+    // longest deleted row written into a part of the file which was lost in a crash
+    private final static int FILLER_ROW_LENGTH = 1 << 16;
+    // the pending flags are written when there are more of them
+    private final static int MAX_PENDING_FLAGS = 1 << 16;
+    private final static int ROW_LOCK_STRIPES = 64;
+    // a reader which does not lock the table retries this many times, if the file or the row is changed meanwhile
+    final static int OPTIMISTIC_READ_ATTEMPTS = 3;
+
+    /**
+     * A commit between prepareCommit() and finishCommit(): the new rows are written as temporary rows, and the
+     * record of the commit log is built
+     */
+    static final class PreparedCommit {
+        final ITransaction transaction;
+        final WriteAheadLog.Record record = new WriteAheadLog.Record();
+        // the rows and the values claimed by the commit
+        final List<Long> claimedRows = new ArrayList<>();
+        final List<String> claimedValues = new ArrayList<>();
+        // indexed values and positions of the new rows, in the order of the transaction
+        final List<String> newValues = new ArrayList<>();
+        final List<Long> newPositions = new ArrayList<>();
+        // the new rows which are already in the file
+        final List<Long> writtenRows = new ArrayList<>();
+        // position -> row number of the deleted rows
+        final Map<Long, Long> deletedRows = new LinkedHashMap<>();
+        // position -> header length of the rows updated in place
+        final Map<Long, Integer> updatedRows = new LinkedHashMap<>();
+        // indexed values of the deleted and the updated rows
+        final List<String> changedValues = new ArrayList<>();
+        // the commit failed, because an other commit changed its rows
+        private boolean conflict = false;
+
+        PreparedCommit(final ITransaction transaction) {
+            this.transaction = transaction;
+        }
+
+        /**
+         * Returns true if prepareCommit() failed, because an other commit changed (or is changing) the rows of
+         * the transaction, or a version check failed. The transaction can be retried.
+         *
+         * @return boolean
+         */
+        boolean isConflict() {
+            return this.conflict;
+        }
+    }
 
 
     /**
@@ -46,6 +151,8 @@ class GenericBaseFileHandler {
         this.index = index;
         this.dbFileName = dbFileName;
         this.dbFile = new RandomAccessFile(dbFileName, "rw");
+        this.dbChannel = this.dbFile.getChannel();
+        this.checkpoint = new IndexCheckpoint(dbFileName);
     }
 
     /**
@@ -61,19 +168,47 @@ class GenericBaseFileHandler {
         this.index = index;
         this.dbFileName = dbFileName;
         this.dbFile = randomAccessFile;
+        this.dbChannel = this.dbFile.getChannel();
+        this.checkpoint = new IndexCheckpoint(dbFileName);
     }
 
     public void initialise() throws IOException {
         DBServer.LOGGER.info("[GenericBaseFileHandler] Initialise");
-        if (this.dbFile.length() == 0) {
-            this.setTableVersion();
+        this.created = this.dbChannel.size() == 0;
+        if (this.created) {
+            // a new table gets the row format of its codec (the version of the Schema)
+            this.setTableVersion(this.codec.getVersion());
+            // the rows of the commit log are written after the header, it must be on the disk
+            this.dbChannel.force(true);
+            // a checkpoint left behind by a deleted table with the same name must not be used
+            this.checkpoint.invalidate();
         } else {
             String dbVersion = this.getTableVersion();
             System.out.println("DB version: " + dbVersion);
         }
+        this.tableVersion = this.getTableVersion();
+        // an existing table is always read with the row format stored in its header
+        try {
+            this.codec = this.codec.forVersion(this.tableVersion);
+        } catch (DBException e) {
+            throw new IOException(e.getMessage());
+        }
+        this.fileTail.reset(this.dbChannel.size());
+        if (this.storageMode == StorageMode.MMAP) {
+            this.mappedFile = new MappedTableFile(this.dbChannel);
+        }
         DBServer.LOGGER.info("[GenericBaseFileHandler] Initialisation done");
     }
 
+    /**
+     * Returns true if the table file was created by initialise()
+     *
+     * @return boolean
+     */
+    boolean isCreated() {
+        return this.created;
+    }
+
     /**
      * Set schema of the table
      *
@@ -99,10 +234,37 @@ class GenericBaseFileHandler {
     }
 
     /**
-     * Loads all data from the database to Index
+     * Set the codec of the rows. The codec belongs to the schema and the class of the table. Must be called
+     * before initialise(), which selects the row format of the table file
+     *
+     * @param codec RecordCodec
+     * @see RecordCodec
+     */
+    void setCodec(final RecordCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Set how the rows are read from the file. Must be called before initialise()
+     *
+     * @param storageMode StorageMode
+     * @see StorageMode
+     */
+    public void setStorageMode(final StorageMode storageMode) {
+        this.storageMode = storageMode;
+    }
+
+    /**
+     * Loads all data from the database to Index.
+     * If there is a usable checkpoint of the index, then it is loaded, and only the rows which were written
+     * after the checkpoint are read from the file.
+     * The rows are loaded with the ParallelIndexLoader: a fast scan of the row headers, and then the indexed
+     * values are decoded in parallel.
      *
      * @param zClass Class of the strored object
      * @throws DBException
+     * @see IndexCheckpoint
+     * @see ParallelIndexLoader
      */
     public void loadAllDataToIndex(final Class<?> zClass) throws DBException {
         DBServer.LOGGER.info("[GenericBaseFileHandler] Loading index data");
@@ -113,47 +275,28 @@ class GenericBaseFileHandler {
 
         readLock.lock();
         try {
-            synchronized (this) {
-                while (currentPos < this.dbFile.length()) {
-                    this.dbFile.seek(currentPos);
-                    boolean isTemporary = this.dbFile.readBoolean();
-                    if (isTemporary)
-                        temporaryRows += 1;
-
-                    currentPos += 1;
-                    this.dbFile.seek(currentPos);
-                    boolean isDeleted = this.dbFile.readBoolean();
-
-                    if (!isDeleted) {
-                        this.index.add(currentPos - 1);
-                    } else
-                        deletedRows++;
-
-                    currentPos += 1;
-                    this.dbFile.seek(currentPos);
-                    int recordLength = this.dbFile.readInt();
-
-                    currentPos += 4;
-                    this.dbFile.seek(currentPos);
-                    if (!isDeleted && !isTemporary) {
-                        byte[] b = new byte[recordLength];
-                        this.dbFile.read(b);
-                        Object object = this.readFromByteStream(new DataInputStream(new ByteArrayInputStream(b)),
-                                zClass);
-
-                        String _name = (String) object.getClass().getDeclaredField(this.schema.indexBy).get(object);
-                        this.index.addIndexedValue(_name, rowNum);
-                        rowNum++;
-                    }
-                    currentPos += recordLength;
-                }
+            long fileLength = this.dbChannel.size();
+            long coveredLength = this.checkpoint.load(this.index, this.freeSpace, this.tableVersion,
+                    this.schema.indexBy, fileLength);
+            if (coveredLength > 0) {
+                currentPos = coveredLength;
+                rowNum = this.index.getNumberOfIndexedValues();
+                System.out.println("Index checkpoint loaded, rows: " + rowNum + ", replaying from position "
+                        + coveredLength);
             }
 
+            ParallelIndexLoader loader = new ParallelIndexLoader(this);
+            rowNum += loader.load(this.index, currentPos, fileLength);
+            deletedRows = loader.getDeletedRows();
+            temporaryRows = loader.getTemporaryRows();
+
             System.out.println("After startup: total row number in Database: " + rowNum);
             System.out.println("After startup: total deleted row number in Database: " + deletedRows);
             System.out.println("After startup: total temporary row number in Database: " + temporaryRows);
+            System.out.println("After startup: free slots in Database: " + this.freeSpace.getSlotCount()
+                    + ", free bytes: " + this.freeSpace.getFreeBytes());
 
-        } catch (IllegalAccessException | NoSuchFieldException | IOException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             throw new DBException(e.getMessage());
         } finally {
@@ -162,73 +305,533 @@ class GenericBaseFileHandler {
         }
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    Object readFromByteStream(final DataInputStream stream, final Class<?> zClass) throws IOException {
-        Object result;
+    /**
+     * Reads the raw record from the file from the given file position.
+     *
+     * @param bytePositionOfRow byte position of the given row in database/table
+     * @return ByteBuffer positioned to the row data, or null if the row is deleted
+     * @throws IOException
+     */
+    ByteBuffer readRawRecord(long bytePositionOfRow) throws IOException {
+        DBServer.LOGGER.info("[GenericBaseFileHandler] Read raw record, position: " + bytePositionOfRow);
+        readLock.lock();
         try {
-            result = Class.forName(zClass.getCanonicalName()).getDeclaredConstructor(new Class[]{}).newInstance();
-
-            for (Field field : this.schema.fields) {
-                if (field.fieldType.equalsIgnoreCase("String")) {
-                    int fieldLength = stream.readInt();
-                    byte[] b = new byte[fieldLength];
-                    stream.read(b);
-                    String value = new String(b, StandardCharsets.UTF_8);
-                    // set the field value to result object
-                    result.getClass().getDeclaredField(field.fieldName).set(result, value);
-                } else if (field.fieldType.equalsIgnoreCase("int")) {
-                    int value = stream.readInt();
-                    // set the field value to result object
-                    result.getClass().getDeclaredField(field.fieldName).set(result, value);
+            return this.toRowData(this.readRowBuffer(bytePositionOfRow));
+        } finally {
+            readLock.unlock();
+            DBServer.LOGGER.info("[GenericBaseFileHandler] Read raw record, position, Done ");
+        }
+    }
+
+    /**
+     * Reads a committed row by row number, without locking the table. The position of the row is looked up in the
+     * index, and the row is read under the lock of its stripe. If the file is being replaced (compaction), it was
+     * replaced or the row was deleted or moved meanwhile, the read is repeated; after OPTIMISTIC_READ_ATTEMPTS
+     * the table is locked.
+     *
+     * @param rowNumber Number of the row
+     * @param reader Reads the row from the given position
+     * @return The result of the reader, or null if the row does not exist
+     * @throws IOException
+     */
+    <T> T readByRowNumber(long rowNumber, final RowReader<T> reader) throws IOException {
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            long generation = this.fileGeneration;
+            if ((generation & 1) != 0) {
+                // the file and the positions of the index are being replaced
+                continue;
+            }
+            long position = this.index.getBytePosition(rowNumber);
+            if (position == -1) {
+                return null;
+            }
+            T result;
+            try {
+                result = reader.read(position);
+            } catch (IOException | RuntimeException e) {
+                // the old file may be closed already
+                if (generation == this.fileGeneration) {
+                    throw e;
                 }
-                // TODO implement other field types
+                continue;
+            }
+            if (generation == this.fileGeneration && this.index.getBytePosition(rowNumber) == position) {
+                return result;
             }
-        } catch (ClassNotFoundException | IllegalAccessException | InstantiationException | NoSuchFieldException | NoSuchMethodException | InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException(e.getMessage());
         }
 
-        return result;
+        readLock.lock();
+        try {
+            long position = this.index.getBytePosition(rowNumber);
+            return position == -1 ? null : reader.read(position);
+        } finally {
+            readLock.unlock();
+        }
     }
 
     /**
-     * Reads the raw record from the file from the given file position.
+     * Reads a row from a position, used by readByRowNumber()
+     */
+    @FunctionalInterface
+    interface RowReader<T> {
+        T read(long bytePosition) throws IOException;
+    }
+
+    /**
+     * Reads a whole row under the lock of its stripe, so it is not overwritten in place meanwhile. The returned
+     * buffer is not a view of the mapped file, a later update in place does not change it.
      *
-     * @param bytePositionOfRow byte position of the given row in database/table
-     * @return byte array
+     * @param bytePositionOfRow byte position of the row in database/table
+     * @param reuse Buffer which can be used for the read, can be null
+     * @return ByteBuffer, the row header starts at index 0
      * @throws IOException
      */
-    byte[] readRawRecord(long bytePositionOfRow) throws IOException {
-        DBServer.LOGGER.info("[GenericBaseFileHandler] Read raw record, position: " + bytePositionOfRow);
-        readLock.lock();
+    ByteBuffer readRowCopy(long bytePositionOfRow, final ByteBuffer reuse) throws IOException {
+        Lock rowLock = this.rowLocks.readLock(bytePositionOfRow);
+        rowLock.lock();
         try {
-            synchronized (this) {
-                this.dbFile.seek(bytePositionOfRow);
-                this.dbFile.readBoolean();
+            return this.copyIfMapped(this.readRowBuffer(bytePositionOfRow, reuse), reuse);
+        } finally {
+            rowLock.unlock();
+        }
+    }
+
+    /**
+     * Reads a whole row under the lock of its stripe. In MMAP storage mode the returned buffer is a view of the
+     * mapped file.
+     *
+     * @param bytePositionOfRow byte position of the row in database/table
+     * @param reuse Buffer which can be used for the read, can be null
+     * @return ByteBuffer, the row header starts at index 0
+     * @throws IOException
+     */
+    ByteBuffer readRowLocked(long bytePositionOfRow, final ByteBuffer reuse) throws IOException {
+        Lock rowLock = this.rowLocks.readLock(bytePositionOfRow);
+        rowLock.lock();
+        try {
+            return this.readRowBuffer(bytePositionOfRow, reuse);
+        } finally {
+            rowLock.unlock();
+        }
+    }
 
-                this.dbFile.seek(bytePositionOfRow + 1);
-                if (this.dbFile.readBoolean())
-                    return new byte[0];
+    private ByteBuffer copyIfMapped(final ByteBuffer row, final ByteBuffer reuse) {
+        if (this.mappedFile == null) {
+            return row;
+        }
+        ByteBuffer copy = reuse != null && reuse.capacity() >= row.limit()
+                ? reuse : ByteBuffer.allocate(row.limit());
+        copy.clear();
+        copy.put(row);
+        copy.flip();
+        return copy;
+    }
 
-                this.dbFile.seek(bytePositionOfRow + 2);
-                int recordLength = this.dbFile.readInt();
+    /**
+     * Returns the row data of a whole row
+     *
+     * @param row The whole row, the row header starts at index 0
+     * @return ByteBuffer positioned to the row data, or null if the row is deleted (the codec must not decode
+     * it)
+     */
+    ByteBuffer toRowData(final ByteBuffer row) {
+        // is deleted
+        if (this.codec.isDeleted(row, 0))
+            return null;
 
-                this.dbFile.seek(bytePositionOfRow + 6);
+        row.position(this.codec.getHeaderLength(row, 0));
+        return row;
+    }
+
+    /**
+     * Reads a whole row (header and data) from the given position. The read is a positional read on the
+     * FileChannel, so it does not move the file pointer of dbFile and concurrent readers do not have to wait
+     * for each other. In most cases one read is enough: we read ROW_READ_AHEAD bytes, and only if the row is
+     * longer than that, the rest of it is read with a second call.
+     * In MMAP storage mode the returned buffer is a view of the mapped file.
+     *
+     * @param bytePositionOfRow byte position of the row in database/table
+     * @return ByteBuffer, the row header starts at index 0, the row data after the header. The limit of the
+     * buffer is the end of the row
+     * @throws IOException
+     */
+    ByteBuffer readRowBuffer(long bytePositionOfRow) throws IOException {
+        return this.readRowBuffer(bytePositionOfRow, null);
+    }
 
-                byte[] data = new byte[recordLength];
-                this.dbFile.read(data);
+    /**
+     * Reads a whole row, like readRowBuffer(long), but the given heap buffer is used for the read if it is big
+     * enough. Useful for scans, where the rows are read one after the other.
+     *
+     * @param bytePositionOfRow byte position of the row in database/table
+     * @param reuse Buffer which can be used for the read, can be null
+     * @return ByteBuffer, the given buffer or a new one
+     * @throws IOException
+     */
+    ByteBuffer readRowBuffer(long bytePositionOfRow, final ByteBuffer reuse) throws IOException {
+        MappedTableFile mappedFile = this.mappedFile;
+        if (mappedFile != null) {
+            ByteBuffer header = mappedFile.readAtMost(bytePositionOfRow, RecordCodec.MAX_ROW_HEADER_LENGTH);
+            try {
+                return mappedFile.read(bytePositionOfRow,
+                        this.codec.getHeaderLength(header, 0) + this.codec.getDataLength(header, 0));
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new EOFException("Row header cannot be read from position " + bytePositionOfRow);
+            }
+        }
 
-                return data;
+        ByteBuffer buffer = reuse != null ? reuse : ByteBuffer.allocate(ROW_READ_AHEAD);
+        buffer.clear();
+        int read = this.readFully(buffer, bytePositionOfRow);
+        int rowLength;
+        try {
+            buffer.limit(read);
+            rowLength = this.codec.getHeaderLength(buffer, 0) + this.codec.getDataLength(buffer, 0);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new EOFException("Row header cannot be read from position " + bytePositionOfRow);
+        }
+        buffer.limit(buffer.capacity());
+        if (rowLength > buffer.capacity()) {
+            // a reader which does not lock the table may read a row of the old file in the compacted file
+            if (bytePositionOfRow + rowLength > this.dbChannel.size()) {
+                throw new EOFException("Row is truncated at position " + bytePositionOfRow);
             }
+            ByteBuffer rowBuffer = ByteBuffer.allocate(rowLength);
+            buffer.flip();
+            rowBuffer.put(buffer);
+            read += this.readFully(rowBuffer, bytePositionOfRow + read);
+            buffer = rowBuffer;
+        }
+        if (read < rowLength) {
+            throw new EOFException("Row is truncated at position " + bytePositionOfRow);
+        }
+        buffer.position(0);
+        buffer.limit(rowLength);
+
+        return buffer;
+    }
+
+    /**
+     * Reads a block of the file. In MMAP storage mode the returned buffer is a view of the mapping, otherwise
+     * the block is read into the given buffer.
+     *
+     * @param position File position
+     * @param length Number of bytes to read. Must not be bigger than the capacity of the buffer
+     * @param buffer Buffer which can be used for the read
+     * @return ByteBuffer, the block starts at index 0, the limit is the number of bytes read
+     * @throws IOException
+     */
+    ByteBuffer readBlock(long position, int length, final ByteBuffer buffer) throws IOException {
+        MappedTableFile mappedFile = this.mappedFile;
+        if (mappedFile != null) {
+            return mappedFile.read(position, length);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        this.readFully(buffer, position);
+        buffer.flip();
+
+        return buffer;
+    }
 
+    /**
+     * Fills the buffer from the given file position, or reads until the end of the file
+     *
+     * @param buffer Buffer to fill
+     * @param position File position to read from
+     * @return Number of bytes read
+     * @throws IOException
+     */
+    private int readFully(final ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = this.dbChannel.read(buffer, position + total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Overwrites the flags (isTemporary, isDeleted) in the header of a row. The length of the row does not change.
+     *
+     * @param bytePositionOfRow byte position of the row in database/table
+     * @param isTemporary New value of the isTemporary flag
+     * @param isDeleted New value of the isDeleted flag
+     * @throws IOException
+     */
+    void writeRowFlags(long bytePositionOfRow, boolean isTemporary, boolean isDeleted) throws IOException {
+        // the flags written later by applyPendingFlags() would overwrite these
+        this.pendingFlags.remove(bytePositionOfRow);
+        this.markModified(bytePositionOfRow);
+        this.writeFully(this.codec.encodeFlags(isTemporary, isDeleted), bytePositionOfRow);
+    }
+
+    /**
+     * Must be called before a row is modified in place, if the modification changes the index (flags, the row
+     * in the slot of a deleted row)
+     *
+     * @param bytePositionOfRow byte position of the row in database/table
+     */
+    void markModified(long bytePositionOfRow) {
+        this.checkpoint.markModified(bytePositionOfRow);
+        this.trackModification(bytePositionOfRow);
+    }
+
+    /**
+     * Must be called before a row is modified in place. The running compaction copies the row again.
+     *
+     * @param bytePositionOfRow byte position of the row in database/table
+     */
+    void trackModification(long bytePositionOfRow) {
+        if (this.modifiedRows != null) {
+            this.modifiedRows.add(bytePositionOfRow);
+        }
+    }
+
+    /**
+     * Starts to collect the positions of the rows which are modified in place. Must be called under the
+     * writeLock
+     */
+    void startTrackingModifications() {
+        this.modifiedRows = new HashSet<>();
+    }
+
+    /**
+     * Stops to collect the positions of the modified rows. Must be called under the writeLock
+     *
+     * @return Positions of the rows modified since startTrackingModifications()
+     */
+    Set<Long> stopTrackingModifications() {
+        Set<Long> result = this.modifiedRows != null ? this.modifiedRows : Collections.<Long>emptySet();
+        this.modifiedRows = null;
+        return result;
+    }
+
+    /**
+     * Replaces the table file with the compacted file, which contains the same rows at other positions.
+     * Must be called under the writeLock.
+     *
+     * @param compactedFile The compacted file
+     * @param compactedRaf The compacted file, opened
+     * @param freeSpace Slots of the deleted rows of the compacted file
+     * @param newPositions Old position -> new position of the rows
+     * @throws IOException
+     * @see TableCompactor
+     */
+    void switchToCompactedFile(final File compactedFile, final RandomAccessFile compactedRaf,
+                               final FreeSpaceMap freeSpace, final Map<Long, Long> newPositions)
+            throws IOException {
+        compactedRaf.getFD().sync();
+        // the rename replaces the table file atomically, a crash leaves either the old or the new file behind
+        Files.move(compactedFile.toPath(), new File(this.dbFileName).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the readers which do not lock the table read the row again, until both the file and the positions
+        // are replaced
+        this.fileGeneration++;
+        try {
+            this.dbFile.close();
+            this.dbFile = compactedRaf;
+            this.dbChannel = compactedRaf.getChannel();
+            this.fileTail.reset(this.dbChannel.size());
+            this.mappedFile = this.storageMode == StorageMode.MMAP ? new MappedTableFile(this.dbChannel) : null;
+            this.freeSpace = freeSpace;
+            this.index.relocate(newPositions);
+        } finally {
+            this.fileGeneration++;
+        }
+        Set<Long> pendingPositions = new HashSet<>(this.pendingFlags);
+        this.pendingFlags.clear();
+        for (long position : pendingPositions) {
+            this.pendingFlags.add(newPositions.getOrDefault(position, position));
+        }
+        this.checkpoint.invalidate();
+    }
+
+    /**
+     * Returns the size of the slots of the deleted rows, which can be reused
+     *
+     * @return Number of bytes
+     */
+    long getFreeBytes() {
+        readLock.lock();
+        try {
+            return this.freeSpace.getFreeBytes();
         } finally {
             readLock.unlock();
-            DBServer.LOGGER.info("[GenericBaseFileHandler] Read raw record, position, Done ");
         }
     }
 
+    /**
+     * Returns the length of the table file
+     *
+     * @return Number of bytes
+     */
+    long getFileLength() {
+        return this.fileTail.getWrittenEnd();
+    }
+
+    /**
+     * Marks a row as deleted for good (not temporary). The slot of the row can be reused by new rows, when no
+     * open snapshot can read the row.
+     *
+     * @param bytePositionOfRow byte position of the row in database/table
+     * @throws IOException
+     */
+    void releaseRow(long bytePositionOfRow) throws IOException {
+        this.writeRowFlags(bytePositionOfRow, false, true);
+        ByteBuffer row = this.readRowBuffer(bytePositionOfRow);
+        if (this.index.hasOpenSnapshots()) {
+            // an open snapshot may still read the row
+            this.versions.retireSlot(bytePositionOfRow, this.codec.getDataLength(row, 0), this.index.getNextVersion());
+        } else {
+            this.freeSpace.add(bytePositionOfRow, this.codec.getDataLength(row, 0));
+        }
+    }
+
+    /**
+     * Appends rows at the end of the file. The space is reserved without locking the table, so the appends of
+     * concurrent commits are written at the same time. If the write fails, the space is filled with deleted rows.
+     *
+     * @param rows The rows to write, from the position to the limit of the buffer
+     * @return Position of the first row
+     * @throws IOException
+     * @see AppendTail
+     */
+    long append(final ByteBuffer rows) throws IOException {
+        int length = rows.remaining();
+        long position = this.fileTail.reserve(length);
+        try {
+            this.writeFully(rows, position);
+        } catch (IOException | RuntimeException e) {
+            // the appends after this one are readable, the rows must be found after it
+            try {
+                this.writeFillerRows(position, position + length);
+            } catch (IOException ioe) {
+                DBServer.LOGGER.severe("[GenericBaseFileHandler] Failed append cannot be filled: " + ioe.getMessage());
+            }
+            throw e;
+        } finally {
+            this.fileTail.complete(position, position + length);
+        }
+        return position;
+    }
+
+    /**
+     * Writes the whole buffer (from its position to its limit) to the given file position. The write is a
+     * positional write on the FileChannel, it does not use the file pointer of dbFile.
+     *
+     * @param buffer Buffer to write
+     * @param position File position
+     * @throws IOException
+     */
+    void writeFully(final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += this.dbChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Writes the records of the commit log into the file, after initialise() and before loadAllDataToIndex().
+     * The rows of the log may be beyond the end of the file, if the end of the file was lost in a crash. The
+     * lost parts which are not in the log (rows of transactions which were not committed) are filled with
+     * deleted rows, so the rows after them can be found. The index checkpoint is deleted if the replay modifies
+     * a row which it covers.
+     *
+     * @param log The commit log
+     * @return Number of replayed commits
+     * @throws IOException
+     */
+    int replayLog(final WriteAheadLog log) throws IOException {
+        writeLock.lock();
+        try {
+            // the checkpoint is loaded after the replay, markModified() needs its covered length now
+            this.checkpoint.readCoveredLength(this.tableVersion, this.schema.indexBy);
+            long fileLength = this.dbChannel.size();
+            // parts of the file after fileLength, which are written by the log: start -> end
+            TreeMap<Long, Long> restored = new TreeMap<>();
+            int commits = log.replay((position, data) -> {
+                this.markModified(position);
+                this.writeFully(ByteBuffer.wrap(data), position);
+                long end = position + data.length;
+                if (end > fileLength) {
+                    restored.merge(Math.max(position, fileLength), end, Math::max);
+                }
+            });
+
+            long position = fileLength;
+            for (Map.Entry<Long, Long> part : restored.entrySet()) {
+                if (part.getKey() > position) {
+                    this.markModified(position);
+                    this.writeFillerRows(position, part.getKey());
+                }
+                position = Math.max(position, part.getValue());
+            }
+            if (commits > 0) {
+                this.dbChannel.force(false);
+                DBServer.LOGGER.info("[GenericBaseFileHandler] Commit log replayed, commits: " + commits);
+            }
+            this.fileTail.reset(this.dbChannel.size());
+            return commits;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Fills a part of the file with deleted rows
+     */
+    private void writeFillerRows(long position, long end) throws IOException {
+        DBServer.LOGGER.warning("[GenericBaseFileHandler] Lost rows replaced with deleted rows: " + position
+                + " - " + end);
+        while (position < end) {
+            long remaining = end - position;
+            // the last row is never shorter than FILLER_ROW_LENGTH
+            int length = (int) (remaining > 2L * FILLER_ROW_LENGTH ? FILLER_ROW_LENGTH : remaining);
+            position += this.writeFillerRow(position, length);
+        }
+    }
+
+    /**
+     * Writes a deleted row with the given length. If no row header gives exactly this length (a varint length
+     * can grow by one byte), then a shorter row is written.
+     *
+     * @return Length of the written row
+     */
+    private int writeFillerRow(long position, int length) throws IOException {
+        for (int headerLength = RecordCodec.MAX_ROW_HEADER_LENGTH; headerLength > 0; headerLength--) {
+            int dataLength = length - headerLength;
+            if (dataLength < 0) {
+                continue;
+            }
+            ByteBuffer row = ByteBuffer.allocate(RecordCodec.MAX_ROW_HEADER_LENGTH + dataLength);
+            row.position(row.capacity());
+            int headerStart = this.codec.writeHeader(row, false, true);
+            if (RecordCodec.MAX_ROW_HEADER_LENGTH - headerStart == headerLength) {
+                row.position(headerStart);
+                this.writeFully(row, position);
+                return length;
+            }
+        }
+        if (length < 2) {
+            throw new IOException("Lost part of the table file cannot be filled at position " + position);
+        }
+        return this.writeFillerRow(position, length / 2);
+    }
+
+    /**
+     * Forces the changes of the file to the disk. After it the commit log can be truncated.
+     *
+     * @throws IOException
+     */
+    void force() throws IOException {
+        this.dbChannel.force(false);
+    }
+
     public void close() throws IOException {
         DBServer.LOGGER.info("[GenericBaseFileHandler] Closing");
+        this.mappedFile = null;
         this.dbFile.close();
     }
 
@@ -240,43 +843,110 @@ class GenericBaseFileHandler {
      * @throws IOException
      */
     public List<DebugRowInfo> loadAllDataFromFile(final Class<?> zClass) throws IOException {
-        readLock.lock();
+        ArrayList<DebugRowInfo> result = new ArrayList<>();
+        // the listing shows the committed rows as committed
+        this.applyPendingFlags();
         try {
+            this.scanFile(view -> {
+                result.add(new DebugRowInfo(view.toObject(), view.isDeleted(), view.isTemporary()));
+                return true;
+            });
+        } catch (DBException e) {
+            throw new IOException(e.getMessage());
+        }
 
-            if (this.dbFile.length() == 0) {
-                return new ArrayList<>();
-            }
-            synchronized (this) {
-                ArrayList<DebugRowInfo> result = new ArrayList<>();
-                long currentPosition = HEADER_INFO_SPACE;
-
-                while (currentPosition < this.dbFile.length()) {
-                    this.dbFile.seek(currentPosition);
-                    boolean isTemporary = this.dbFile.readBoolean();
-
-                    currentPosition += 1;
-                    this.dbFile.seek(currentPosition);
-                    boolean isDeleted = this.dbFile.readBoolean();
-
-                    currentPosition += 1;
-                    this.dbFile.seek(currentPosition);
-                    int recordLength = this.dbFile.readInt();
-                    currentPosition += 4;
-
-                    byte[] b = new byte[recordLength];
-                    this.dbFile.read(b);
-                    Object p = this.readFromByteStream(new DataInputStream(new ByteArrayInputStream(b)), zClass);
-                    result.add(new DebugRowInfo(p, isDeleted, isTemporary));
-                    currentPosition += recordLength;
-                }
+        return result;
+    }
 
-                return result;
+    /**
+     * Visits all rows of the file in file order, the deleted and temporary rows too. The same RecordView is
+     * moved from row to row, so the visitor must not keep it.
+     *
+     * @param visitor RecordVisitor
+     * @throws IOException
+     * @throws DBException If the visitor throws it
+     */
+    void scanFile(final RecordVisitor visitor) throws IOException, DBException {
+        // the rows are read from a snapshot, the locks are held only while a row is read
+        try (Snapshot snapshot = this.openSnapshot()) {
+            RecordView view = new RecordView(this, snapshot);
+            long currentPosition = HEADER_INFO_SPACE;
+
+            while (currentPosition < snapshot.getFileLength()) {
+                currentPosition += view.moveToPosition(currentPosition);
+                if (!visitor.visit(view)) {
+                    break;
+                }
             }
+        }
+    }
+
+    /**
+     * Opens a snapshot of the committed rows. It must be closed.
+     *
+     * @return Snapshot
+     * @see Snapshot
+     */
+    Snapshot openSnapshot() {
+        // no commit publishes its changes meanwhile
+        readLock.lock();
+        try {
+            return new Snapshot(this, this.index.openSnapshot(), this.fileTail.getWrittenEnd());
         } finally {
             readLock.unlock();
         }
     }
 
+    /**
+     * Closes a snapshot: the old versions of the rows which no open snapshot needs are dropped
+     *
+     * @param snapshot Snapshot
+     */
+    void closeSnapshot(final Snapshot snapshot) {
+        writeLock.lock();
+        try {
+            this.versions.reclaim(this.index.closeSnapshot(snapshot.getVersion()), this.freeSpace);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if a snapshot is open. The positions of the rows must not change meanwhile
+     *
+     * @return boolean
+     */
+    boolean hasOpenSnapshots() {
+        return this.index.hasOpenSnapshots();
+    }
+
+    /**
+     * Reads a whole row as a snapshot sees it: from the file, or the image kept for the snapshot if the row was
+     * updated in place since. The returned buffer is not a view of the mapped file, a later update in place
+     * does not change it.
+     *
+     * @param bytePositionOfRow byte position of the row in database/table
+     * @param snapshotVersion Version of the snapshot
+     * @param reuse Buffer which can be used for the read, can be null
+     * @return ByteBuffer, the row header starts at index 0
+     * @throws IOException
+     */
+    ByteBuffer readRowVersion(long bytePositionOfRow, long snapshotVersion, final ByteBuffer reuse)
+            throws IOException {
+        // the image is kept and the row is overwritten under the same lock
+        Lock rowLock = this.rowLocks.readLock(bytePositionOfRow);
+        rowLock.lock();
+        try {
+            ByteBuffer image = this.versions.getImage(bytePositionOfRow, snapshotVersion);
+            if (image != null) {
+                return image;
+            }
+            return this.copyIfMapped(this.readRowBuffer(bytePositionOfRow, reuse), reuse);
+        } finally {
+            rowLock.unlock();
+        }
+    }
+
     /**
      * Delete database file. Name of the db file is stored in the dbFileName variable.
      * @return true if successful
@@ -285,6 +955,7 @@ class GenericBaseFileHandler {
     public boolean deleteFile() throws IOException {
         writeLock.lock();
         try {
+            this.checkpoint.invalidate();
             this.dbFile.close();
             if (new File(this.dbFileName).delete()) {
                 System.out.println("File has been deleted");
@@ -307,103 +978,423 @@ class GenericBaseFileHandler {
     }
 
     /**
-     * Commit operations on the database/table
+     * First phase of a commit. The rows which the transaction deletes or updates, and its new indexed values are
+     * claimed; a row or a value claimed by an other commit is a conflict. Then it checks that the rows were not
+     * changed by an earlier commit, and that the new values are not taken. The new rows are written as temporary
+     * rows: into the slots of deleted rows, and the others at the end of the file with one append, which does not
+     * lock the table. No row is read back, the record of the commit log is built from the staged rows. The claims
+     * are kept until finishCommit() or abortCommit(). The version checks of the transaction are validated with the
+     * other checks, no lock is held for them before the commit.
      *
-     * @param newRows list of new rows inserted
-     * @param deletedRows list of deleted rows
-     * @throws DBException
+     * @param prepared A new PreparedCommit of the transaction to commit
+     * @throws DBException If the transaction conflicts with an other commit (see PreparedCommit.isConflict()), or
+     * the rows cannot be written
      */
-    public void commit(List<Long> newRows, List<Long> deletedRows) throws DBException {
+    void prepareCommit(final PreparedCommit prepared) throws DBException {
         DBServer.LOGGER.info("[GenericBaseFileHandler] Commit");
+        ITransaction transaction = prepared.transaction;
+        try {
+            this.claim(prepared);
+
+            // the commits which hold the writeLock change the index and the rows
+            readLock.lock();
+            try {
+                for (long position : transaction.getStagedDeletes()) {
+                    prepared.deletedRows.put(position, this.findCommittedRow(prepared, position));
+                }
+                for (long position : transaction.getStagedUpdates().keySet()) {
+                    this.findCommittedRow(prepared, position);
+                    prepared.updatedRows.put(position, this.codec.getHeaderLength(this.readRowBuffer(position), 0));
+                }
+                for (Map.Entry<String, Long> expected : transaction.getExpectedVersions().entrySet()) {
+                    String value = expected.getKey();
+                    if (!this.index.hasInIndex(value) || this.getRowVersion(value) != expected.getValue()) {
+                        throw this.conflict(prepared, String.format("Version of '%s' was changed by an other "
+                                + "transaction", value));
+                    }
+                }
+                for (String value : transaction.getStagedRows().keySet()) {
+                    if (this.index.hasInIndex(value) && !prepared.deletedRows.containsKey(
+                            this.index.getBytePosition(this.index.getRowNumberByIndex(value)))) {
+                        throw new DBException(String.format("Name '%s' already exists!", value));
+                    }
+                }
+            } finally {
+                readLock.unlock();
+            }
+
+            this.writeNewRows(prepared);
+
+            ByteBuffer deletedFlags = this.codec.encodeFlags(false, true);
+            for (long position : prepared.deletedRows.keySet()) {
+                byte[] flags = new byte[deletedFlags.remaining()];
+                deletedFlags.duplicate().get(flags);
+                prepared.record.add(position, flags);
+            }
+            for (Map.Entry<Long, Integer> updatedRow : prepared.updatedRows.entrySet()) {
+                long position = updatedRow.getKey();
+                prepared.record.add(position + updatedRow.getValue(), transaction.getStagedUpdates().get(position));
+            }
+        } catch (IOException e) {
+            this.unclaim(prepared);
+            throw new DBException(e.getMessage());
+        } catch (DBException | RuntimeException e) {
+            this.unclaim(prepared);
+            throw e;
+        }
+    }
+
+    /**
+     * Claims the rows and the new indexed values of a commit
+     *
+     * @throws DBException If an other commit claimed one of them
+     */
+    private void claim(final PreparedCommit prepared) throws DBException {
+        ITransaction transaction = prepared.transaction;
+        for (long position : transaction.getStagedDeletes()) {
+            this.claimRow(prepared, position);
+        }
+        for (long position : transaction.getStagedUpdates().keySet()) {
+            this.claimRow(prepared, position);
+        }
+        for (String value : transaction.getStagedRows().keySet()) {
+            if (!this.claimedValues.add(value)) {
+                throw new DBException(String.format("Name '%s' already exists!", value));
+            }
+            prepared.claimedValues.add(value);
+        }
+    }
+
+    private void claimRow(final PreparedCommit prepared, long bytePositionOfRow) throws DBException {
+        if (!this.claimedRows.add(bytePositionOfRow)) {
+            throw this.conflict(prepared, "Row was changed by an other transaction, position: " + bytePositionOfRow);
+        }
+        prepared.claimedRows.add(bytePositionOfRow);
+    }
+
+    private DBException conflict(final PreparedCommit prepared, final String message) {
+        prepared.conflict = true;
+        return new DBException(message);
+    }
+
+    /**
+     * Returns the row number of a committed row, claimed by the commit. The indexed value of the row is added to
+     * the changed values of the commit.
+     * Must be called under the readLock or the writeLock.
+     *
+     * @param prepared The commit
+     * @param bytePositionOfRow byte position of the row in database/table
+     * @return Row number
+     * @throws DBException If the row was deleted or moved by an other commit, or its slot was taken by an other
+     * row since the transaction staged it
+     */
+    private long findCommittedRow(final PreparedCommit prepared, long bytePositionOfRow)
+            throws IOException, DBException {
+        ByteBuffer row = this.readRowBuffer(bytePositionOfRow);
+        if (!this.codec.isDeleted(row, 0)) {
+            row.position(this.codec.getHeaderLength(row, 0));
+            String _name = this.codec.decodeIndexedValue(row);
+            long rowNumber = this.index.hasInIndex(_name) ? this.index.getRowNumberByIndex(_name) : -1;
+            RowIdentity staged = prepared.transaction.getStagedRowIdentities().get(bytePositionOfRow);
+            if (rowNumber != -1 && this.index.getBytePosition(rowNumber) == bytePositionOfRow
+                    && staged != null && staged.matches(rowNumber, _name)) {
+                prepared.changedValues.add(_name);
+                return rowNumber;
+            }
+        }
+        throw this.conflict(prepared, "Row was changed by an other transaction, position: " + bytePositionOfRow);
+    }
+
+    /**
+     * Returns the version stamp of a row. The stamp changes with every commit which changes the row
+     *
+     * @param indexedValue Value of the indexed field of the row
+     * @return long
+     * @see VersionedRow
+     */
+    long getRowVersion(final String indexedValue) {
+        long rowNumber = this.index.getRowNumberByIndex(indexedValue);
+        long stamp = rowNumber == -1 ? LongLongMap.NO_VALUE : this.rowVersions.get(rowNumber);
+        return stamp == LongLongMap.NO_VALUE ? this.versionBase : stamp;
+    }
+
+    /**
+     * Gives new version stamps to the rows of the indexed values, the values which are not in the index are
+     * skipped. Must be called under the writeLock, before the index version is published
+     */
+    void stampRows(final List<String> indexedValues) {
+        long stamp = this.versionBase + this.index.getNextVersion();
+        for (String value : indexedValues) {
+            long rowNumber = this.index.getRowNumberByIndex(value);
+            if (rowNumber != -1) {
+                this.rowVersions.put(rowNumber, stamp);
+            }
+        }
+    }
+
+    /**
+     * Writes the staged new rows of the commit as temporary rows, and adds them to the record of the commit log as
+     * committed rows. The slots of the deleted rows are taken and written under the writeLock, the other rows are
+     * appended at the end of the file without it. If a write fails, the rows written so far are released.
+     */
+    private void writeNewRows(final PreparedCommit prepared) throws IOException {
+        Map<String, byte[]> stagedRows = prepared.transaction.getStagedRows();
+        List<byte[]> rows = new ArrayList<>(stagedRows.size());
+        List<byte[]> tailRows = new ArrayList<>();
+        int tailLength = 0;
+        try {
+            writeLock.lock();
+            try {
+                for (byte[] rowData : stagedRows.values()) {
+                    // the row takes the whole slot of a deleted row, if there is one big enough
+                    FreeSpaceMap.Slot slot = this.freeSpace.allocate(rowData.length);
+                    byte[] row = this.buildRow(rowData, slot != null ? slot.capacity : rowData.length);
+                    if (slot != null) {
+                        this.markModified(slot.position);
+                        this.writeRow(ByteBuffer.wrap(row), slot.position);
+                        prepared.writtenRows.add(slot.position);
+                        prepared.newPositions.add(slot.position);
+                    } else {
+                        // the position is known after the append
+                        prepared.newPositions.add(-1L);
+                        tailRows.add(row);
+                        tailLength += row.length;
+                    }
+                    rows.add(row);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+
+            if (!tailRows.isEmpty()) {
+                ByteBuffer tail = ByteBuffer.allocate(tailLength);
+                for (byte[] row : tailRows) {
+                    tail.put(row);
+                }
+                tail.flip();
+                long position = this.append(tail);
+                for (int i = 0; i < rows.size(); i++) {
+                    if (prepared.newPositions.get(i) == -1L) {
+                        prepared.newPositions.set(i, position);
+                        prepared.writtenRows.add(position);
+                        position += rows.get(i).length;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            writeLock.lock();
+            try {
+                this.releaseRows(prepared.writtenRows);
+            } finally {
+                writeLock.unlock();
+            }
+            throw e;
+        }
+
+        ByteBuffer committedFlags = this.codec.encodeFlags(false, false);
+        int i = 0;
+        for (String value : stagedRows.keySet()) {
+            prepared.newValues.add(value);
+            byte[] committedRow = rows.get(i).clone();
+            committedFlags.duplicate().get(committedRow, 0, committedFlags.remaining());
+            prepared.record.add(prepared.newPositions.get(i), committedRow);
+            i++;
+        }
+    }
+
+    /**
+     * Overwrites a row in place under the write lock of its stripe, so the readers which do not lock the table
+     * read it before or after the write. Must be called under the writeLock.
+     *
+     * @param row The whole row, or a part of it
+     * @param position File position
+     * @throws IOException
+     */
+    private void writeRow(final ByteBuffer row, long position) throws IOException {
+        Lock rowLock = this.rowLocks.writeLock(position);
+        rowLock.lock();
+        try {
+            this.writeFully(row, position);
+        } finally {
+            rowLock.unlock();
+        }
+    }
+
+    /**
+     * Builds a temporary row: the header and the row data, followed by zeros up to the capacity
+     */
+    private byte[] buildRow(final byte[] rowData, int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(RecordCodec.MAX_ROW_HEADER_LENGTH + capacity);
+        buffer.position(RecordCodec.MAX_ROW_HEADER_LENGTH);
+        buffer.put(rowData);
+        buffer.position(buffer.limit());
+        int rowStart = this.codec.writeHeader(buffer, true, false);
+        return Arrays.copyOfRange(buffer.array(), rowStart, buffer.limit());
+    }
+
+    /**
+     * Last phase of a commit, after its record is in the commit log: the deletes and the updates in place are
+     * written, and the index is updated with the staged indexed values. The new rows stay temporary in the file
+     * for now, they are committed by the log: their flags are written later by applyPendingFlags(), sorted by
+     * position.
+     *
+     * @param prepared The PreparedCommit of prepareCommit()
+     * @throws DBException
+     */
+    void finishCommit(final PreparedCommit prepared) throws DBException {
         writeLock.lock();
         try {
-            for (long position : newRows) {
-                this.dbFile.seek(position);
-                this.dbFile.writeBoolean(false); // it is not temporary
-                // re-read the record
-                byte[] b = this.readRawRecord(position);
-                Object object = this.readFromByteStream(new DataInputStream(new ByteArrayInputStream(b)), this.zClass);
-
-                // add it to the index
-
-                String _name = (String) object.getClass().getDeclaredField(this.schema.indexBy).get(object);
-                this.index.addIndexedValue(_name, this.index.getTotalNumberOfRows());
-                this.index.add(position);
+            Map<Long, byte[]> stagedUpdates = prepared.transaction.getStagedUpdates();
+            boolean keepImages = this.index.hasOpenSnapshots();
+            for (Map.Entry<Long, Integer> updatedRow : prepared.updatedRows.entrySet()) {
+                long position = updatedRow.getKey();
+                // the image is kept and the row is overwritten under the lock of the row, the snapshots read
+                // one of them
+                Lock rowLock = this.rowLocks.writeLock(position);
+                rowLock.lock();
+                try {
+                    if (keepImages) {
+                        this.versions.addImage(position, this.index.getNextVersion(),
+                                copyRow(this.readRowBuffer(position)));
+                    }
+                    // the flags and the indexed value stay the same, so the index checkpoint remains valid
+                    this.trackModification(position);
+                    this.writeFully(ByteBuffer.wrap(stagedUpdates.get(position)), position + updatedRow.getValue());
+                } finally {
+                    rowLock.unlock();
+                }
+            }
+
+            for (Map.Entry<Long, Long> deletedRow : prepared.deletedRows.entrySet()) {
+                this.index.remove(deletedRow.getValue());
+                this.rowVersions.remove(deletedRow.getValue());
+                // it is deleted, and not temporary
+                this.releaseRow(deletedRow.getKey());
+            }
+
+            // the rows moved by updates keep their numbers
+            Map<String, Long> movedRows = prepared.transaction.getStagedMoves();
+            List<Long> rowNumbers = new ArrayList<>(prepared.newValues.size());
+            for (String value : prepared.newValues) {
+                rowNumbers.add(movedRows.getOrDefault(value, -1L));
             }
+            this.index.addAll(prepared.newValues, prepared.newPositions, rowNumbers);
+            this.pendingFlags.addAll(prepared.newPositions);
 
-            // operate on deleted rows
-            for (long position : deletedRows) {
-                this.dbFile.seek(position);
-                this.dbFile.writeBoolean(false);
-                this.index.removeByFilePosition(position);
+            if (this.pendingFlags.size() > MAX_PENDING_FLAGS) {
+                this.applyPendingFlags();
             }
-        } catch (IllegalAccessException | NoSuchFieldException | IOException e) {
+            // after the rows are written: a reader which sees the new stamp reads the new rows
+            this.stampRows(prepared.changedValues);
+            this.stampRows(prepared.newValues);
+        } catch (IOException e) {
             throw new DBException(e.getMessage());
         } finally {
+            this.index.publish();
+            this.unclaim(prepared);
             writeLock.unlock();
             DBServer.LOGGER.info("[GenericBaseFileHandler] Commit, Done");
         }
     }
 
     /**
-     * Rolling back operations on the database/table
+     * Cancels a commit after prepareCommit(), if its record cannot be written into the commit log. The new rows
+     * are released.
      *
-     * @param newRows list of new rows inserted
-     * @param deletedRows list of deleted rows
-     * @throws DBException
+     * @param prepared The PreparedCommit of prepareCommit()
      */
-    public void rollback(List<Long> newRows, List<Long> deletedRows) throws DBException {
-        DBServer.LOGGER.info("[GenericBaseFileHandler] Rollback");
+    void abortCommit(final PreparedCommit prepared) {
         writeLock.lock();
         try {
-            for (long position : newRows) {
-                this.dbFile.seek(position);
-                // not temporary
-                this.dbFile.writeBoolean(false);
-
-                // deleted
-                this.dbFile.seek(position + 1);
-                this.dbFile.writeBoolean(true);
-                this.index.removeByFilePosition(position);
-            }
+            this.releaseRows(prepared.writtenRows);
+        } finally {
+            writeLock.unlock();
+        }
+        this.unclaim(prepared);
+    }
 
-            for (long position : deletedRows) {
-                this.dbFile.seek(position);
-                // not temporary
-                this.dbFile.writeBoolean(false);
+    /**
+     * Releases the claims of a commit. The index must be updated before it, the next commit of the same rows and
+     * values checks them in the index.
+     */
+    private void unclaim(final PreparedCommit prepared) {
+        this.claimedRows.removeAll(prepared.claimedRows);
+        this.claimedValues.removeAll(prepared.claimedValues);
+    }
 
-                // isdeleted
-                this.dbFile.seek(position + 1);
-                this.dbFile.writeBoolean(false);
-                // re-read the record
-                byte[] b = this.readRawRecord(position);
-                Object object = this.readFromByteStream(new DataInputStream(new ByteArrayInputStream(b)), this.zClass);
+    private static byte[] copyRow(final ByteBuffer row) {
+        byte[] bytes = new byte[row.limit()];
+        ByteBuffer source = row.duplicate();
+        source.position(0);
+        source.get(bytes);
+        return bytes;
+    }
 
+    /**
+     * Marks the rows as deleted, the error is only logged. Must be called under the writeLock.
+     */
+    void releaseRows(final List<Long> positions) {
+        try {
+            for (long position : positions) {
+                this.releaseRow(position);
+            }
+        } catch (IOException e) {
+            DBServer.LOGGER.severe("[GenericBaseFileHandler] Rows cannot be deleted: " + e.getMessage());
+        }
+    }
 
-                // add it to the index
-                String _name = (String) object.getClass().getDeclaredField("pname").get(object);
-                this.index.addIndexedValue(_name, this.index.getTotalNumberOfRows());
-                this.index.add(position);
+    /**
+     * Writes the flags of the committed rows which are still temporary in the file. Must be called before the
+     * table file is forced and the commit log is truncated, and before the file is scanned.
+     *
+     * @throws IOException
+     */
+    void applyPendingFlags() throws IOException {
+        writeLock.lock();
+        try {
+            Long[] positions = this.pendingFlags.toArray(new Long[0]);
+            Arrays.sort(positions);
+            ByteBuffer committedFlags = this.codec.encodeFlags(false, false);
+            for (long position : positions) {
+                // the index does not change, the index checkpoint remains valid
+                this.trackModification(position);
+                this.writeFully(committedFlags.duplicate(), position);
             }
-        } catch (IllegalAccessException | NoSuchFieldException | IOException e) {
-            e.printStackTrace();
-            throw new DBException(e.getMessage());
+            this.pendingFlags.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the index, which covers the whole table file.
+     *
+     * @throws DBException
+     * @see IndexCheckpoint
+     */
+    public void writeCheckpoint() throws DBException {
+        writeLock.lock();
+        try {
+            this.checkpoint.write(this.index, this.freeSpace, this.tableVersion, this.schema.indexBy,
+                    this.fileTail.getWrittenEnd());
+        } catch (IOException e) {
+            throw new DBException("Index checkpoint cannot be written: " + e.getMessage());
         } finally {
             writeLock.unlock();
-            DBServer.LOGGER.info("[GenericBaseFileHandler] Rollback, Done");
         }
     }
 
     /**
      * Set the table version
      *
+     * @param version Version of the row format
      * @throws IOException
      */
-    private void setTableVersion() throws IOException {
+    private void setTableVersion(final String version) throws IOException {
         DBServer.LOGGER.info("[GenericBaseFileHandler] set DB version");
         this.dbFile.seek(0);
-        this.dbFile.write(VERSION.getBytes(StandardCharsets.UTF_8));
-        char[] chars = new char[HEADER_INFO_SPACE - VERSION.length()];
+        this.dbFile.write(version.getBytes(StandardCharsets.UTF_8));
+        char[] chars = new char[HEADER_INFO_SPACE - version.length()];
         Arrays.fill(chars, ' ');
         this.dbFile.write(new String(chars).getBytes());
     }
@@ -416,52 +1407,12 @@ class GenericBaseFileHandler {
     public String getTableVersion() throws IOException {
         readLock.lock();
         try {
-            this.dbFile.seek(0);
-            byte[] b = new byte[HEADER_INFO_SPACE];
-            this.dbFile.read(b);
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_INFO_SPACE);
+            this.readFully(buffer, 0);
 
-            return new String(b, StandardCharsets.UTF_8).trim();
+            return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).trim();
         } finally {
             readLock.unlock();
         }
     }
-
-    /**
-     * Depending on field type, the field can have different length. This method
-     * return the field length by its type
-     *
-     * @param field Field object
-     * @param object Reference to the object which we would like to store in db/table
-     * @return Length of the field
-     * @see Field
-     * @throws NoSuchFieldException
-     * @throws IllegalAccessException
-     */
-    int getFieldLengthByType(Field field, Object object) throws NoSuchFieldException, IllegalAccessException {
-        int result = 0;
-
-        switch (field.fieldType) {
-            case "String": {
-                Object value = object.getClass().getDeclaredField(field.fieldName).get(object);
-                result += ((String) value).length();
-                result += 4;
-                break;
-            }
-            case "int": {
-                result = 4;
-                break;
-            }
-            case "long": {
-                result += 4;
-                break;
-            }
-            default: {
-                DBServer.LOGGER.info("[GenericBaseFileHandler] No field was found : " + field.fieldType);
-                throw new NoSuchFieldException(field.fieldType);
-            }
-            // TODO add more types
-        }
-
-        return result;
-    }
 }
@@ -4,13 +4,18 @@ package com.mixer.raw.general;
 import com.mixer.dbserver.DBServer;
 import com.mixer.exceptions.DBException;
 import com.mixer.exceptions.DuplicateNameException;
+import com.mixer.transaction.ITransaction;
 import com.mixer.util.Leveinshtein;
 import com.mixer.util.OperationUnit;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -21,6 +26,17 @@ import java.util.Set;
  */
 class GenericFileHandler extends GenericBaseFileHandler {
 
+    private final static int INITIAL_WRITE_BUFFER_SIZE = 4096;
+    // the bulk load writes the rows in blocks of this size
+    private final static int BULK_LOAD_BLOCK_SIZE = 1 << 20;
+    // a new row is encoded in this buffer and written into the file with one call. Used under the writeLock
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(INITIAL_WRITE_BUFFER_SIZE);
+    // the rows of the transactions are encoded in this buffer, by the thread of the transaction
+    private final ThreadLocal<ByteBuffer> encodeBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_WRITE_BUFFER_SIZE));
+    // free space at the end of a new row, in percent of the row data
+    private int rowSlackPercent = 0;
+
     /**
      * Construct a new GenericFileHandler object
      * @param dbFileName Name of the database file
@@ -47,88 +63,213 @@ class GenericFileHandler extends GenericBaseFileHandler {
     }
 
     /**
-     * Store object in the database
+     * Stages a new row in the transaction. The object is encoded now, the row is written into the file by the
+     * commit.
      *
      * @param object   Object to store
-     * @param defragOperation Is a defragment operation?
-     * @return OperationUnit
-     * @see OperationUnit
+     * @param transaction The transaction of the caller
      *
      * @throws DuplicateNameException
      * @throws DBException
      */
-    public OperationUnit add(final Object object, boolean defragOperation) throws DuplicateNameException, DBException {
-
+    void stageAdd(final Object object, final ITransaction transaction) throws DuplicateNameException, DBException {
+        String _name = this.codec.getIndexedValue(object);
+        if (_name == null)
+            throw new DBException(this.indexByFieldName + " is null. Cannot store it");
 
-        OperationUnit ou = new OperationUnit();
-        writeLock.lock();
+        readLock.lock();
         try {
-            String _name = (String) object.getClass().getDeclaredField(this.indexByFieldName).get(object);
-
-            if (this.index.hasInIndex(_name)) {
+            if (this.isTaken(_name, transaction)) {
                 throw new DuplicateNameException(String.format("Name '%s' already exists!", _name));
             }
+            transaction.stageAdd(_name, this.encodeRowData(object, this.rowSlackPercent));
+            DBServer.LOGGER.info("[GenericFileHandler] Add staged: " + _name);
+        } finally {
+            readLock.unlock();
+        }
+    }
 
-            // seek to the end of the file
-            long currentPositionToInsert = this.dbFile.length();
-            this.dbFile.seek(currentPositionToInsert);
-
-            /** we have to store the following data in case of a row:
-                o isTemporary byte
-                o isDeleted byte
-                o record length : int
-                o name length : int
-                o name
-                o address length : int
-                o address
-                o carplatenumber length
-                o carplatenum
-                o description length : int
-                o description
-            **/
-            int recordLength = 0;
-            for (Field field : this.schema.fields) {
-                recordLength += getFieldLengthByType(field, object);
-            }
-            // is temporary
-            if (defragOperation) {
-                this.dbFile.writeBoolean(false);
-            } else {
-                this.dbFile.writeBoolean(true);
-            }
+    /**
+     * Returns true if a row with the indexed value exists for the transaction: it is in the index and the
+     * transaction does not delete it, or the transaction adds it.
+     * Must be called under the readLock or the writeLock.
+     */
+    private boolean isTaken(final String indexedValue, final ITransaction transaction) {
+        if (transaction.getStagedRows().containsKey(indexedValue)) {
+            return true;
+        }
+        if (!this.index.hasInIndex(indexedValue)) {
+            return false;
+        }
+        long rowNumber = this.index.getRowNumberByIndex(indexedValue);
+        return !transaction.getStagedDeletes().contains(this.index.getBytePosition(rowNumber));
+    }
 
+    /**
+     * Encodes the fields of the object, followed by free space for later in-place updates. The free space is
+     * part of the row data (record length), the codecs ignore the bytes after the last field.
+     *
+     * @param object Object to encode
+     * @param slackPercent Free space in percent of the encoded fields
+     * @return Row data, without the row header
+     */
+    private byte[] encodeRowData(final Object object, int slackPercent) throws DBException {
+        ByteBuffer buffer = this.encodeBuffer.get();
+        buffer.clear();
+        buffer = this.codec.encode(object, buffer);
+        this.encodeBuffer.set(buffer);
+        int length = buffer.position();
+        byte[] rowData = new byte[length + length * slackPercent / 100];
+        buffer.flip();
+        buffer.get(rowData, 0, length);
+        return rowData;
+    }
 
-            // it is deleted
-            this.dbFile.writeBoolean(false);
+    /**
+     * Appends a row of an other table file with the same schema, without decoding it. Used by the
+     * defragmentation, the row is stored as a non-temporary row.
+     *
+     * @param view RecordView which points to the row
+     * @return OperationUnit
+     * @throws DBException
+     */
+    OperationUnit addRaw(final RecordView view) throws DBException {
+        writeLock.lock();
+        try {
+            ByteBuffer data = view.getRowData();
 
-            // record length
-            this.dbFile.writeInt(recordLength);
+            ByteBuffer buffer = this.writeBuffer;
+            buffer.clear();
+            buffer.position(RecordCodec.MAX_ROW_HEADER_LENGTH);
+            buffer = RecordCodec.ensureRemaining(buffer, data.remaining());
+            buffer.put(data);
+            this.writeBuffer = buffer;
+            int rowEnd = buffer.position();
+            buffer.position(this.codec.writeHeader(buffer, false, false));
+            buffer.limit(rowEnd);
 
-            // write down the records
-            for (Field field : this.schema.fields) {
-                // get the value
-                Object value = object.getClass().getDeclaredField(field.fieldName).get(object);
-                if (value == null)
-                    throw new DBException(field.fieldName + " is null. Cannot store it");
-                if (field.fieldType.equals("String")) {
-                    this.dbFile.writeInt(((String) value).length());
-                    this.dbFile.write(((String) value).getBytes(StandardCharsets.UTF_8));
+            long currentPositionToInsert = this.append(buffer);
 
-                } else if (field.fieldType.equals("int")) {
-                    this.dbFile.writeInt((Integer) value);
-                }
-                // TODO implement other field types
-            }
+            OperationUnit ou = new OperationUnit();
+            ou.addedRowPosition = currentPositionToInsert;
+            return ou;
+        } catch (IOException e) {
+            throw new DBException(e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
+    /**
+     * Appends many objects as committed rows. The rows are encoded into a block, and the block is appended at the
+     * end of the file with one call when it is full, without locking the table. The duplicates are checked in
+     * memory, and the rows are added to the index at the end, under the writeLock.
+     * If an error occurs, the rows written so far are marked as deleted.
+     * The caller must make sure that the positions of the rows do not change meanwhile (no compaction).
+     *
+     * @param objects Objects to store
+     * @return Number of stored objects
+     * @throws DuplicateNameException
+     * @throws DBException
+     */
+    long bulkLoad(final Iterator<?> objects) throws DuplicateNameException, DBException {
+        List<String> indexedValues = new ArrayList<>();
+        List<Long> positions = new ArrayList<>();
+        Set<String> loadedValues = new HashSet<>();
+        ByteBuffer block = ByteBuffer.allocate(BULK_LOAD_BLOCK_SIZE);
+        // beginning of the rows of the block, relative to the beginning of the block
+        List<Integer> rowOffsets = new ArrayList<>();
+        ByteBuffer rowBuffer = ByteBuffer.allocate(INITIAL_WRITE_BUFFER_SIZE);
+        try {
+            while (objects.hasNext()) {
+                Object object = objects.next();
+                String _name = this.codec.getIndexedValue(object);
+                if (_name == null)
+                    throw new DBException(this.indexByFieldName + " is null. Cannot store it");
+                if (!loadedValues.add(_name) || this.index.hasInIndex(_name)) {
+                    throw new DuplicateNameException(String.format("Name '%s' already exists!", _name));
+                }
 
-            ou.addedRowPosition = currentPositionToInsert;
-            DBServer.LOGGER.info("[GenericFileHandler] Add person, position " + currentPositionToInsert);
+                rowBuffer.clear();
+                rowBuffer.position(RecordCodec.MAX_ROW_HEADER_LENGTH);
+                rowBuffer = this.codec.encode(object, rowBuffer);
+                int slack = (rowBuffer.position() - RecordCodec.MAX_ROW_HEADER_LENGTH) * this.rowSlackPercent / 100;
+                rowBuffer = RecordCodec.ensureRemaining(rowBuffer, slack);
+                for (int i = 0; i < slack; i++) {
+                    rowBuffer.put((byte) 0);
+                }
+                int rowEnd = rowBuffer.position();
+                int rowStart = this.codec.writeHeader(rowBuffer, false, false);
+                rowBuffer.position(rowStart);
+                rowBuffer.limit(rowEnd);
+
+                if (rowBuffer.remaining() > block.remaining()) {
+                    this.appendBlock(block, rowOffsets, positions);
+                    if (rowBuffer.remaining() > block.capacity()) {
+                        block = ByteBuffer.allocate(rowBuffer.remaining());
+                    }
+                }
+                rowOffsets.add(block.position());
+                block.put(rowBuffer);
+                indexedValues.add(_name);
+            }
+            this.appendBlock(block, rowOffsets, positions);
+
+            writeLock.lock();
+            try {
+                // an other thread may have committed the same value meanwhile
+                for (String value : indexedValues) {
+                    if (this.index.hasInIndex(value)) {
+                        throw new DuplicateNameException(String.format("Name '%s' already exists!", value));
+                    }
+                }
+                this.index.addAll(indexedValues, positions);
+                // the new rows get the stamp of the load, a value read before it was deleted and loaded again is
+                // outdated
+                this.stampRows(indexedValues);
+                this.index.publish();
+            } finally {
+                writeLock.unlock();
+            }
+            DBServer.LOGGER.info("[GenericFileHandler] Bulk load, rows: " + positions.size());
+            return positions.size();
+        } catch (DuplicateNameException | DBException | RuntimeException e) {
+            this.releaseLoadedRows(positions);
+            throw e;
+        } catch (IOException e) {
+            this.releaseLoadedRows(positions);
+            throw new DBException("Field related problems during bulk load " + e.getLocalizedMessage());
+        }
+    }
 
-            return ou;
+    /**
+     * Writes the block at the end of the file, and clears it
+     *
+     * @param block Encoded rows
+     * @param rowOffsets Beginning of the rows in the block, cleared too
+     * @param positions The positions of the rows are added to it
+     */
+    private void appendBlock(final ByteBuffer block, final List<Integer> rowOffsets, final List<Long> positions)
+            throws IOException {
+        if (block.position() == 0) {
+            return;
+        }
+        block.flip();
+        long blockPosition = this.append(block);
+        for (int offset : rowOffsets) {
+            positions.add(blockPosition + offset);
+        }
+        block.clear();
+        rowOffsets.clear();
+    }
 
-        } catch (NoSuchFieldException | IllegalAccessException | IOException e) {
-            e.printStackTrace();
-            throw new DBException("Field related problems during add " + e.getLocalizedMessage());
+    /**
+     * Marks the rows of a failed bulk load as deleted. The error of the load is reported, this one is only logged
+     */
+    private void releaseLoadedRows(final List<Long> positions) {
+        writeLock.lock();
+        try {
+            this.releaseRows(positions);
         } finally {
             writeLock.unlock();
         }
@@ -138,111 +279,217 @@ class GenericFileHandler extends GenericBaseFileHandler {
      * Read a given row
      *
      * @param rowNumber Number of row to read from table/db
-     * @return The object is filled with data from table/db
+     * @return The object is filled with data from table/db, null if there is no such row or it is deleted
      *
      * @throws DBException
      */
     public Object readRow(long rowNumber) throws DBException {
         DBServer.LOGGER.info("[GenericFileHandler] Read row: " + rowNumber);
-        readLock.lock();
         try {
-            long bytePosition = this.index.getBytePosition(rowNumber);
-            if (bytePosition == -1) {
+            // the table is not locked, the row is copied under the lock of the row and decoded after it
+            ByteBuffer row = this.readByRowNumber(rowNumber,
+                    position -> this.toRowData(this.readRowCopy(position, null)));
+            if (row == null) {
                 return null;
             }
 
-            byte[] row = this.readRawRecord(bytePosition);
-
-            DataInputStream stream = new DataInputStream(new ByteArrayInputStream(row));
-
             DBServer.LOGGER.info("[GenericFileHandler] Read done");
 
-            return this.readFromByteStream(stream, this.zClass);
+            return this.codec.decode(row);
         } catch (IOException ioe) {
             throw new DBException(ioe.getMessage());
-        } finally {
-            readLock.unlock();
         }
     }
 
     /**
-     * Delete a given row
+     * Stages the delete of a given row in the transaction
+     *
      * @param rowNumber Number of row to delete
-     * @return OperationUnit
-     * @see OperationUnit
+     * @param transaction The transaction of the caller
      *
      * @throws DBException
      */
-    public OperationUnit deleteRow(long rowNumber) throws DBException {
+    void stageDelete(long rowNumber, final ITransaction transaction) throws DBException {
         DBServer.LOGGER.info("[GenericFileHandler] Delete row: " + rowNumber);
-        writeLock.lock();
+        readLock.lock();
         try {
             long bytePositionOfRecord = this.index.getBytePosition(rowNumber);
-            if (bytePositionOfRecord == -1) {
+            if (bytePositionOfRecord == -1 || transaction.getStagedDeletes().contains(bytePositionOfRecord)) {
                 throw new DBException("Row does not exists in Index");
             }
+            transaction.stageDelete(bytePositionOfRecord, rowNumber, this.index.getIndexedValue(rowNumber));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Stages the delete of the row with the given indexed value in the transaction
+     *
+     * @param indexedFieldName Value of the indexed field of the row
+     * @param transaction The transaction of the caller
+     * @return false if there is no such row
+     * @throws DBException
+     */
+    boolean stageDelete(final String indexedFieldName, final ITransaction transaction) throws DBException {
+        DBServer.LOGGER.info("[GenericFileHandler] Delete row: " + indexedFieldName);
+        // the row number and the position are read together, no commit changes them meanwhile
+        readLock.lock();
+        try {
+            long rowNumber = this.index.getRowNumberByIndex(indexedFieldName);
+            if (rowNumber == -1 || transaction.getStagedDeletes().contains(this.index.getBytePosition(rowNumber))) {
+                return false;
+            }
+            this.stageDelete(rowNumber, transaction);
+            return true;
+        } finally {
+            readLock.unlock();
+        }
+    }
 
-            this.dbFile.seek(bytePositionOfRecord);
-            // it is temporary
-            this.dbFile.writeBoolean(true);
-            this.dbFile.seek(bytePositionOfRecord + 1);
-            this.dbFile.writeBoolean(true);
+    /**
+     * Reads an object with the version stamp of its row. The stamp is read before and after the object, the
+     * read is repeated if a commit changed the row meanwhile; after OPTIMISTIC_READ_ATTEMPTS the table is locked,
+     * so the stamp cannot change
+     *
+     * @param indexedFieldName Value of the indexed field of the row
+     * @return VersionedRow, or null if there is no such row
+     * @throws DBException
+     */
+    VersionedRow readVersioned(final String indexedFieldName) throws DBException {
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            long version = this.getRowVersion(indexedFieldName);
+            Object object = this.search(indexedFieldName);
+            if (object == null) {
+                return null;
+            }
+            if (version == this.getRowVersion(indexedFieldName)) {
+                return new VersionedRow(object, version);
+            }
+        }
 
-            // update the index
-            this.index.remove(rowNumber);
-            OperationUnit ou = new OperationUnit();
-            ou.deletedRowPosition = bytePositionOfRecord;
-            DBServer.LOGGER.info("[GenericFileHandler] Row deleted ");
-            return ou;
-        } catch (IOException ioe) {
-            throw new DBException(ioe.getMessage());
+        // the commits change the stamps under the writeLock
+        readLock.lock();
+        try {
+            Object object = this.search(indexedFieldName);
+            return object == null ? null : new VersionedRow(object, this.getRowVersion(indexedFieldName));
         } finally {
-            writeLock.unlock();
+            readLock.unlock();
         }
     }
 
     /**
-     * Update a given row
+     * Stages the update of a given row in the transaction. If the encoded object fits into the row (row data and
+     * free space) and the indexed value does not change, the row will be overwritten in place, otherwise the
+     * row is deleted and the object is added as a new row.
      *
      * @param rowNumber Number of row to update
      * @param object The object which contains the information to store
-     * @return OperationUnit
-     * @see OperationUnit
+     * @param transaction The transaction of the caller
      *
      * @throws DuplicateNameException
      * @throws DBException
      */
-    public OperationUnit update(long rowNumber, final Object object) throws DuplicateNameException, DBException {
+    void stageUpdate(long rowNumber, final Object object, final ITransaction transaction) throws
+            DuplicateNameException, DBException {
         DBServer.LOGGER.info("[GenericFileHandler] Update row: " + rowNumber);
-        writeLock.lock();
+        String _name = this.codec.getIndexedValue(object);
+        if (_name == null)
+            throw new DBException(this.indexByFieldName + " is null. Cannot store it");
+
+        readLock.lock();
         try {
-            OperationUnit deleteoperation = this.deleteRow(rowNumber);
-            OperationUnit addoperation = this.add(object, false);
-            OperationUnit operation = new OperationUnit();
-            operation.deletedRowPosition = deleteoperation.deletedRowPosition;
-            operation.addedRowPosition = addoperation.addedRowPosition;
+            long bytePositionOfRecord = this.index.getBytePosition(rowNumber);
+            if (bytePositionOfRecord == -1) {
+                throw new DBException("Row does not exists in Index");
+            }
+            ByteBuffer row = this.readRowBuffer(bytePositionOfRecord);
+            int capacity = this.codec.getDataLength(row, 0);
+            row.position(this.codec.getHeaderLength(row, 0));
+            String storedName = this.codec.decodeIndexedValue(row.duplicate());
+
+            if (transaction.getStagedDeletes().contains(bytePositionOfRecord)) {
+                // the row was moved by an earlier update of the transaction, its new row is updated
+                if (!transaction.getStagedRows().containsKey(storedName)) {
+                    throw new DBException("Row does not exists in Index");
+                }
+                this.restage(storedName, _name, object, transaction);
+                return;
+            }
 
-            DBServer.LOGGER.info("[GenericFileHandler] Update row done");
-            return operation;
+            if (_name.equals(storedName)) {
+                byte[] rowData = this.encodeRowData(object, 0);
+                if (rowData.length <= capacity) {
+                    // the rest of the row is cleared, so it looks the same as the free space of a new row
+                    transaction.stageUpdate(bytePositionOfRecord, rowNumber, storedName,
+                            Arrays.copyOf(rowData, capacity));
+                    DBServer.LOGGER.info("[GenericFileHandler] Update row in place staged");
+                    return;
+                }
+            } else if (this.isTaken(_name, transaction)) {
+                throw new DuplicateNameException(String.format("Name '%s' already exists!", _name));
+            }
 
+            // the new row keeps the row number
+            transaction.stageDelete(bytePositionOfRecord, rowNumber, storedName);
+            transaction.stageAdd(_name, this.encodeRowData(object, this.rowSlackPercent));
+            transaction.stageMove(rowNumber, _name);
+            DBServer.LOGGER.info("[GenericFileHandler] Update row staged");
+        } catch (IOException ioe) {
+            throw new DBException(ioe.getMessage());
         } finally {
-            writeLock.unlock();
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces a new row of the transaction with the object
+     */
+    private void restage(final String stagedName, final String name, final Object object,
+                         final ITransaction transaction) throws DuplicateNameException, DBException {
+        if (!name.equals(stagedName) && this.isTaken(name, transaction)) {
+            throw new DuplicateNameException(String.format("Name '%s' already exists!", name));
+        }
+        transaction.getStagedRows().remove(stagedName);
+        transaction.stageAdd(name, this.encodeRowData(object, this.rowSlackPercent));
+        // a moved row keeps its row number with the new value too
+        Long movedRow = transaction.getStagedMoves().remove(stagedName);
+        if (movedRow != null) {
+            transaction.stageMove(movedRow, name);
         }
     }
 
-    public OperationUnit update(final String indexedFieldName, final Object object) throws
+    /**
+     * Stages the update of the row with the given indexed value. A row added by the transaction can be updated
+     * too. Nothing happens if there is no such row.
+     *
+     * @param indexedFieldName Value of the indexed field of the row
+     * @param object The object which contains the information to store
+     * @param transaction The transaction of the caller
+     *
+     * @throws DuplicateNameException
+     * @throws DBException
+     */
+    void stageUpdate(final String indexedFieldName, final Object object, final ITransaction transaction) throws
             DuplicateNameException, DBException {
         DBServer.LOGGER.info("[GenericFileHandler] Update row: " + indexedFieldName);
-        writeLock.lock();
+        String _name = this.codec.getIndexedValue(object);
+        if (_name == null)
+            throw new DBException(this.indexByFieldName + " is null. Cannot store it");
+
+        readLock.lock();
         try {
-            long rowNumber = this.index.getRowNumberByIndex(indexedFieldName);
-            if (rowNumber == -1) {
-                return new OperationUnit();
+            if (transaction.getStagedRows().containsKey(indexedFieldName)) {
+                this.restage(indexedFieldName, _name, object, transaction);
+                return;
+            }
+            if (!this.index.hasInIndex(indexedFieldName)) {
+                return;
             }
 
-            return this.update(rowNumber, object);
+            this.stageUpdate(this.index.getRowNumberByIndex(indexedFieldName), object, transaction);
         } finally {
-            writeLock.unlock();
+            readLock.unlock();
             DBServer.LOGGER.info("[GenericFileHandler] Update row done");
         }
     }
@@ -274,18 +521,20 @@ class GenericFileHandler extends GenericBaseFileHandler {
     public List<Object> searchWithLeveinshtein(String indexedFieldName, int tolerance) throws DBException {
         List<Object> result = new ArrayList<>();
 
-        Set<String> names = this.index.getIndexedValues();
-        List<String> goodNames = new ArrayList<>();
-        for (String storedName : names) {
-            if (Leveinshtein.leveinshteinDistance(storedName, indexedFieldName) <= tolerance)
-                goodNames.add(storedName);
-        }
-        // now we have all the names, get the records
-        for (String goodName : goodNames) {
-            long rowIndex = this.index.getRowNumberByIndex(goodName);
-            if (rowIndex != -1) {
-                Object p = this.readRow(rowIndex);
-                result.add(p);
+        // the rows are read from a snapshot, the commits do not wait for the search
+        try (Snapshot snapshot = this.openSnapshot()) {
+            Map<String, Long> names = snapshot.getIndexedValues();
+            List<Long> goodRows = new ArrayList<>();
+            for (Map.Entry<String, Long> storedName : names.entrySet()) {
+                if (Leveinshtein.leveinshteinDistance(storedName.getKey(), indexedFieldName) <= tolerance)
+                    goodRows.add(storedName.getValue());
+            }
+            // now we have all the names, get the records
+            for (long rowIndex : goodRows) {
+                Object p = snapshot.readObject(rowIndex);
+                if (p != null) {
+                    result.add(p);
+                }
             }
         }
 
@@ -303,18 +552,20 @@ class GenericFileHandler extends GenericBaseFileHandler {
         DBServer.LOGGER.info("[GenericFileHandler] Search with regexp");
         List<Object> result = new ArrayList<>();
 
-        Set<String> names = this.index.getIndexedValues();
-        List<String> goodNames = new ArrayList<>();
-        for (String storedName : names) {
-            if (storedName.matches(regexp))
-                goodNames.add(storedName);
-        }
-        // now we have all the names, get the records
-        for (String goodName : goodNames) {
-            long rowIndex = this.index.getRowNumberByIndex(goodName);
-            if (rowIndex != -1) {
-                Object p = this.readRow(rowIndex);
-                result.add(p);
+        // the rows are read from a snapshot, the commits do not wait for the search (for example an export)
+        try (Snapshot snapshot = this.openSnapshot()) {
+            Map<String, Long> names = snapshot.getIndexedValues();
+            List<Long> goodRows = new ArrayList<>();
+            for (Map.Entry<String, Long> storedName : names.entrySet()) {
+                if (storedName.getKey().matches(regexp))
+                    goodRows.add(storedName.getValue());
+            }
+            // now we have all the names, get the records
+            for (long rowIndex : goodRows) {
+                Object p = snapshot.readObject(rowIndex);
+                if (p != null) {
+                    result.add(p);
+                }
             }
         }
 
@@ -322,4 +573,13 @@ class GenericFileHandler extends GenericBaseFileHandler {
 
         return result;
     }
+
+    /**
+     * Sets the free space which is reserved at the end of every new row, in percent of the row data
+     *
+     * @param rowSlackPercent Percent of the row data, 0 means no free space
+     */
+    public void setRowSlackPercent(int rowSlackPercent) {
+        this.rowSlackPercent = rowSlackPercent;
+    }
 }
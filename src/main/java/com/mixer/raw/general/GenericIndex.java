@@ -1,23 +1,80 @@
 package com.mixer.raw.general;
 
 import com.mixer.exceptions.DBException;
+import com.mixer.util.LongLongMap;
 
-import java.util.LinkedHashSet;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 public final class GenericIndex {
 
 	private final Schema schema;
 
-	// row number, byte position
-	private final ConcurrentHashMap<Long, Long> rowIndex;
+	// row number, byte position. Modified under the monitor, read without locking
+	private final LongLongMap rowIndex;
 
-	// String name of the index, String value, row Number
-	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Long>> indexes;
+	// String value of the indexed field <-> row Number, see IndexMode. Modified under the monitor
+	private final KeyIndex keyIndex;
 
-	// Total number of rows
-	private long totalRowNumber = 0;
+	// the reverse of rowIndex: byte position -> row number. A row is removed without scanning the maps. Modified
+	// under the monitor
+	private final LongLongMap positionIndex;
+
+	// Total number of rows. Modified under the monitor, read without it
+	private volatile long totalRowNumber = 0;
+
+	// A row keeps its number until it is removed, and the number is not given to an other row later, so a row
+	// number held by a caller never refers to an other row. Used under the monitor
+	private long nextRowNumber = 0;
+
+	// version of the last published change. A snapshot reads the index as of a version, the changes which are
+	// made meanwhile get the next version
+	private long version = 0;
+
+	// versions of the open snapshots -> number of snapshots
+	private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>();
+
+	// row number -> version of the change which added the row, only while snapshots are open. The rows which
+	// are not in it are older than every open snapshot
+	private final ConcurrentHashMap<Long, Long> addedVersions = new ConcurrentHashMap<>();
+
+	// the rows removed while snapshots are open, by row number and by indexed value. Used under the monitor
+	private final HashMap<Long, List<RemovedRow>> removedRows = new HashMap<>();
+	private final HashMap<String, List<RemovedRow>> removedValues = new HashMap<>();
+
+	/**
+	 * A row removed from the index, the snapshots older than the removal still see it
+	 */
+	private static final class RemovedRow {
+		final long rowNumber;
+		final long bytePosition;
+		final String indexedValue;
+		final long addedVersion;
+		final long removedVersion;
+
+		RemovedRow(long rowNumber, long bytePosition, String indexedValue, long addedVersion, long removedVersion) {
+			this.rowNumber = rowNumber;
+			this.bytePosition = bytePosition;
+			this.indexedValue = indexedValue;
+			this.addedVersion = addedVersion;
+			this.removedVersion = removedVersion;
+		}
+
+		boolean isVisible(long snapshotVersion) {
+			return this.addedVersion <= snapshotVersion && snapshotVersion < this.removedVersion;
+		}
+	}
 
 	/**
 	 * Constructor needs the schema, because it contains information about the object fields,
@@ -28,23 +85,71 @@ public final class GenericIndex {
 	 * object into file, so we have to stop creating the GenericIndex file.
 	 */
 	public GenericIndex(final Schema schema) throws DBException {
+		this(schema, IndexMode.HEAP);
+	}
+
+	/**
+	 * Constructor with the place of the indexed values
+	 *
+	 * @param schema Scheme
+	 * @param indexMode Where the values of the indexed field are kept
+	 * @throws DBException If the schema is null or is empty
+	 */
+	public GenericIndex(final Schema schema, final IndexMode indexMode) throws DBException {
 		this.schema = schema;
 		String indexBy = this.schema.indexBy;
 		if (indexBy == null || indexBy.isEmpty()) {
 			throw new DBException("No index field was set in schema!");
 		}
-		this.rowIndex = new ConcurrentHashMap<>();
-		this.indexes = new ConcurrentHashMap<>();
+		this.rowIndex = new LongLongMap();
+		this.keyIndex = KeyIndex.create(indexMode);
+		this.positionIndex = new LongLongMap();
 	}
 
 	/**
 	 * store which row number is at which byte position
 	 * 
 	 * @param bytePosition Position of the row in the database file
+	 * @return long, the number of the new row
 	 */
-	public synchronized void add(long bytePosition) {
-		this.rowIndex.put(this.totalRowNumber, bytePosition);
+	public synchronized long add(long bytePosition) {
+		long row = this.nextRowNumber++;
+		this.tagAdded(row);
+		this.rowIndex.put(row, bytePosition);
+		this.positionIndex.put(bytePosition, row);
 		this.totalRowNumber++;
+		return row;
+	}
+
+	/**
+	 * Adds many rows at once, with their indexed values. The rows get new row numbers in the order of the list
+	 * 
+	 * @param indexedValues Values of the indexed field
+	 * @param bytePositions Positions of the rows in the database file, in the same order
+	 */
+	public synchronized void addAll(final List<String> indexedValues, final List<Long> bytePositions) {
+		this.addAll(indexedValues, bytePositions, null);
+	}
+
+	/**
+	 * Adds many rows at once, with their indexed values and row numbers. A row which replaces a removed one (it
+	 * was moved by an update) gets the number of the removed row, the others get new row numbers
+	 *
+	 * @param indexedValues Values of the indexed field
+	 * @param bytePositions Positions of the rows in the database file, in the same order
+	 * @param rowNumbers Numbers of the removed rows which the rows replace, -1 for a new row. If it is null,
+	 * every row is new
+	 */
+	public synchronized void addAll(final List<String> indexedValues, final List<Long> bytePositions,
+									final List<Long> rowNumbers) {
+		for (int i = 0; i < indexedValues.size(); i++) {
+			long row = rowNumbers != null && rowNumbers.get(i) >= 0 ? rowNumbers.get(i) : this.nextRowNumber++;
+			this.tagAdded(row);
+			this.keyIndex.put(indexedValues.get(i), row);
+			this.rowIndex.put(row, bytePositions.get(i));
+			this.positionIndex.put(bytePositions.get(i), row);
+			this.totalRowNumber++;
+		}
 	}
 
 	/**
@@ -54,7 +159,7 @@ public final class GenericIndex {
 	 * @return long, the byte position of the row inside the file
 	 */
 	public long getBytePosition(long rowNumber) {
-		return this.rowIndex.getOrDefault(rowNumber, -1L);
+		return this.rowIndex.get(rowNumber);
 	}
 
 	/**
@@ -63,23 +168,193 @@ public final class GenericIndex {
 	 * @param row Row number
 	 */
 	public synchronized void remove(long row) {
+		long position = this.rowIndex.get(row);
+		if (position == LongLongMap.NO_VALUE) {
+			return;
+		}
+		String nameToDelete = this.keyIndex.keyOf(row);
+		// the open snapshots still see the row, it is logged before it is removed
+		if (!this.openSnapshots.isEmpty()) {
+			RemovedRow removed = new RemovedRow(row, position, nameToDelete, this.addedVersions.getOrDefault(row, 0L),
+					this.version + 1);
+			this.removedRows.computeIfAbsent(row, key -> new ArrayList<>()).add(removed);
+			if (nameToDelete != null) {
+				this.removedValues.computeIfAbsent(nameToDelete, key -> new ArrayList<>()).add(removed);
+			}
+		}
+
 		this.rowIndex.remove(row);
+		if (this.positionIndex.get(position) == row) {
+			this.positionIndex.remove(position);
+		}
+		// the other rows keep their numbers, and this one is not reused
 		this.totalRowNumber--;
 		// remove also from the indexes
-		ConcurrentHashMap<String, Long> _index = this.indexes.get(this.schema.indexBy);
-
-		String nameToDelete = _index.search(2, (k, v) -> v == row ? k : null);
 		if (nameToDelete != null) {
-			_index.remove(nameToDelete);
+			this.keyIndex.removeRow(row);
+		}
+	}
+
+	/**
+	 * Records the version of a new row, if snapshots are open. Must be called before the row is added
+	 */
+	private void tagAdded(long row) {
+		if (!this.openSnapshots.isEmpty()) {
+			this.addedVersions.put(row, this.version + 1);
 		}
 	}
 
+	/**
+	 * Publishes the changes made since the last call: they get a new version, the snapshots opened from now on
+	 * see them. The changes of a commit and its publish must not overlap with the opening of a snapshot (the
+	 * file handler makes them under its writeLock, and opens the snapshots under its readLock).
+	 */
+	public synchronized void publish() {
+		this.version++;
+	}
+
+	/**
+	 * Returns the version of the changes which are being made, they are published with this version
+	 *
+	 * @return long
+	 */
+	synchronized long getNextVersion() {
+		return this.version + 1;
+	}
+
+	/**
+	 * Registers a snapshot of the current version
+	 *
+	 * @return Version of the snapshot
+	 */
+	synchronized long openSnapshot() {
+		this.openSnapshots.merge(this.version, 1, Integer::sum);
+		return this.version;
+	}
+
+	/**
+	 * Unregisters a snapshot. The removed rows and the versions which no open snapshot needs are dropped
+	 *
+	 * @param snapshotVersion Version of the snapshot
+	 * @return Version of the oldest open snapshot, Long.MAX_VALUE if there is none
+	 */
+	synchronized long closeSnapshot(long snapshotVersion) {
+		this.openSnapshots.computeIfPresent(snapshotVersion, (key, count) -> count > 1 ? count - 1 : null);
+		if (this.openSnapshots.isEmpty()) {
+			this.addedVersions.clear();
+			this.removedRows.clear();
+			this.removedValues.clear();
+			return Long.MAX_VALUE;
+		}
+		long oldest = this.openSnapshots.firstKey();
+		this.addedVersions.values().removeIf(added -> added <= oldest);
+		pruneRemoved(this.removedRows, oldest);
+		pruneRemoved(this.removedValues, oldest);
+		return oldest;
+	}
+
+	private static <K> void pruneRemoved(final Map<K, List<RemovedRow>> removed, long oldestSnapshotVersion) {
+		Iterator<List<RemovedRow>> lists = removed.values().iterator();
+		while (lists.hasNext()) {
+			List<RemovedRow> list = lists.next();
+			list.removeIf(row -> row.removedVersion <= oldestSnapshotVersion);
+			if (list.isEmpty()) {
+				lists.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns true if a snapshot is open
+	 *
+	 * @return boolean
+	 */
+	synchronized boolean hasOpenSnapshots() {
+		return !this.openSnapshots.isEmpty();
+	}
+
+	private boolean isVisible(long row, long snapshotVersion) {
+		Long added = this.addedVersions.get(row);
+		return added == null || added <= snapshotVersion;
+	}
+
+	/**
+	 * Returns the byte position of a row as of a version. The current rows are read without locking, the
+	 * rows added later are hidden by their version, and the removed ones are found in the log.
+	 *
+	 * @param rowNumber Number of the row
+	 * @param snapshotVersion Version of the snapshot
+	 * @return long, the byte position of the row, -1 if the row is not visible
+	 */
+	long getBytePosition(long rowNumber, long snapshotVersion) {
+		long position = this.rowIndex.get(rowNumber);
+		if (position != LongLongMap.NO_VALUE && this.isVisible(rowNumber, snapshotVersion)) {
+			return position;
+		}
+		synchronized (this) {
+			for (RemovedRow removed : this.removedRows.getOrDefault(rowNumber, Collections.emptyList())) {
+				if (removed.isVisible(snapshotVersion)) {
+					return removed.bytePosition;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the row number of an indexed value as of a version
+	 *
+	 * @param indexedValue String value
+	 * @param snapshotVersion Version of the snapshot
+	 * @return long, the row number, -1 if the value is not visible
+	 */
+	long getRowNumberByIndex(final String indexedValue, long snapshotVersion) {
+		long row = this.keyIndex.get(indexedValue);
+		if (row != -1 && this.isVisible(row, snapshotVersion)) {
+			return row;
+		}
+		synchronized (this) {
+			for (RemovedRow removed : this.removedValues.getOrDefault(indexedValue, Collections.emptyList())) {
+				if (removed.isVisible(snapshotVersion)) {
+					return removed.rowNumber;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the indexed values as of a version
+	 *
+	 * @param snapshotVersion Version of the snapshot
+	 * @return Indexed value -> row number
+	 */
+	Map<String, Long> getIndexedValues(long snapshotVersion) {
+		Map<String, Long> result = new HashMap<>();
+		this.keyIndex.forEach((key, row) -> {
+			if (this.isVisible(row, snapshotVersion)) {
+				result.put(key, row);
+			}
+		});
+		// a row removed during the iteration is in the log, it was logged before it was removed
+		synchronized (this) {
+			for (List<RemovedRow> list : this.removedValues.values()) {
+				for (RemovedRow removed : list) {
+					if (removed.isVisible(snapshotVersion)) {
+						result.put(removed.indexedValue, removed.rowNumber);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * Returns the total number of rows
 	 * 
 	 * @return long
 	 */
-	public synchronized long getTotalNumberOfRows() {
+	public long getTotalNumberOfRows() {
 		return this.totalRowNumber;
 	}
 
@@ -89,13 +364,8 @@ public final class GenericIndex {
 	 * @param indexedValue String, the indexed field's value
 	 * @param rowIndex Number of the row which contains the value
 	 */
-	public void addIndexedValue(final String indexedValue, long rowIndex) {
-
-		if (!this.indexes.containsKey(this.schema.indexBy)) {
-			this.indexes.putIfAbsent(this.schema.indexBy, new ConcurrentHashMap<>());
-		}
-		ConcurrentHashMap<String, Long> _index = this.indexes.get(this.schema.indexBy);
-		_index.put(indexedValue, rowIndex);
+	public synchronized void addIndexedValue(final String indexedValue, long rowIndex) {
+		this.keyIndex.put(indexedValue, rowIndex);
 	}
 
 	/**
@@ -105,10 +375,7 @@ public final class GenericIndex {
 	 * @return true if it can be found in the index
 	 */
 	public boolean hasInIndex(final String indexedValue) {
-		ConcurrentHashMap<String, Long> _index = this.indexes.get(this.schema.indexBy);
-		if (_index == null)
-			return false;
-		return _index.containsKey(indexedValue);
+		return this.keyIndex.get(indexedValue) != -1;
 	}
 
 	/**
@@ -119,21 +386,36 @@ public final class GenericIndex {
 	 * this method will return with -1
 	 */
 	public long getRowNumberByIndex(final String indexedValue) {
-		ConcurrentHashMap<String, Long> _index = this.indexes.get(this.schema.indexBy);
-		return _index.getOrDefault(indexedValue, -1L);
+		return this.keyIndex.get(indexedValue);
+	}
+
+	/**
+	 * Returns the indexed value of a row
+	 *
+	 * @param rowNumber Row number
+	 * @return String, null if the row is not in the index
+	 */
+	public String getIndexedValue(long rowNumber) {
+		return this.keyIndex.keyOf(rowNumber);
 	}
 
 	/**
-	 * Return keys of the index
+	 * Return keys of the index. The OFF_HEAP and RADIX_TREE indexes return a copy, the RADIX_TREE index in the
+	 * order of the keys
 	 * 
 	 * @return Set of Strings
 	 */
 	public Set<String> getIndexedValues() {
-		ConcurrentHashMap<String, Long> _index = this.indexes.get(this.schema.indexBy);
-		if (_index == null)
-			return new LinkedHashSet<>();
+		return this.keyIndex.keySet();
+	}
 
-		return _index.keySet();
+	/**
+	 * Returns the number of keys in the index
+	 *
+	 * @return int
+	 */
+	public int getNumberOfIndexedValues() {
+		return this.keyIndex.size();
 	}
 
 	/**
@@ -141,9 +423,16 @@ public final class GenericIndex {
 	 * the Index has to be closed
 	 */
 	public void clear() {
-		this.totalRowNumber = 0;
-		this.rowIndex.clear();
-		this.indexes.clear();
+		synchronized (this) {
+			this.keyIndex.clear();
+			this.totalRowNumber = 0;
+			this.nextRowNumber = 0;
+			this.rowIndex.clear();
+			this.positionIndex.clear();
+			this.addedVersions.clear();
+			this.removedRows.clear();
+			this.removedValues.clear();
+		}
 	}
 
 	/**
@@ -151,12 +440,72 @@ public final class GenericIndex {
 	 * 
 	 * @param position Byte position of the row 
 	 */
-	public void removeByFilePosition(long position) {
-		if (this.rowIndex.isEmpty())
-			return;
-		long row = this.rowIndex.search(1, (k, v) -> v == position ? k : -1);
-		if (row != -1) {
+	public synchronized void removeByFilePosition(long position) {
+		long row = this.positionIndex.get(position);
+		if (row != LongLongMap.NO_VALUE) {
 			this.remove(row);
 		}
 	}
+
+	/**
+	 * Changes the byte positions of the rows, the row numbers stay the same. Used when the table file
+	 * is compacted.
+	 * 
+	 * @param newPositions Old byte position -> new byte position
+	 */
+	public synchronized void relocate(final Map<Long, Long> newPositions) {
+		this.rowIndex.replaceValues(position -> newPositions.getOrDefault(position, position));
+		this.positionIndex.clear();
+		this.rowIndex.forEach((row, position) -> this.positionIndex.put(position, row));
+	}
+
+	/**
+	 * Writes the content of the index. Used to create a checkpoint of the index.
+	 *
+	 * @param output DataOutput
+	 * @throws IOException
+	 * @see IndexCheckpoint
+	 */
+	synchronized void writeTo(final DataOutput output) throws IOException {
+		output.writeLong(this.totalRowNumber);
+		output.writeInt(this.rowIndex.size());
+		this.rowIndex.forEach((row, position) -> {
+			output.writeLong(row);
+			output.writeLong(position);
+		});
+
+		output.writeInt(this.keyIndex.size());
+		this.keyIndex.forEach((value, row) -> {
+			byte[] key = value.getBytes(StandardCharsets.UTF_8);
+			output.writeInt(key.length);
+			output.write(key);
+			output.writeLong(row);
+		});
+	}
+
+	/**
+	 * Loads the content of the index, which was written by writeTo()
+	 *
+	 * @param input DataInput
+	 * @throws IOException
+	 * @see IndexCheckpoint
+	 */
+	synchronized void readFrom(final DataInput input) throws IOException {
+		this.clear();
+		this.totalRowNumber = input.readLong();
+		int rows = input.readInt();
+		for (int i = 0; i < rows; i++) {
+			long row = input.readLong();
+			long position = input.readLong();
+			this.rowIndex.put(row, position);
+			this.positionIndex.put(position, row);
+			this.nextRowNumber = Math.max(this.nextRowNumber, row + 1);
+		}
+		int keys = input.readInt();
+		for (int i = 0; i < keys; i++) {
+			byte[] key = new byte[input.readInt()];
+			input.readFully(key);
+			this.addIndexedValue(new String(key, StandardCharsets.UTF_8), input.readLong());
+		}
+	}
 }
@@ -21,7 +21,21 @@ public final class GenericIndexPool {
     }
 
     public GenericIndex createIndex(final String tableName, final Schema schema) throws DBException {
-        GenericIndex _index = new GenericIndex(schema);
+        return this.createIndex(tableName, schema, IndexMode.HEAP);
+    }
+
+    /**
+     * Creates the index of a table
+     *
+     * @param tableName Name of the table
+     * @param schema Schema of the table
+     * @param indexMode Where the values of the indexed field are kept
+     * @return GenericIndex
+     * @throws DBException If the schema has no indexed field
+     */
+    public GenericIndex createIndex(final String tableName, final Schema schema, final IndexMode indexMode)
+            throws DBException {
+        GenericIndex _index = new GenericIndex(schema, indexMode);
         this.indexStore.put(tableName, _index);
 
         return _index;
@@ -0,0 +1,73 @@
+package com.mixer.raw.general;
+
+import com.mixer.util.LongObjectMap;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * KeyIndex of the HEAP mode: the values are Strings in a ConcurrentHashMap. The lookups do not lock.
+ */
+final class HeapKeyIndex implements KeyIndex {
+
+    // String value, row Number
+    private final ConcurrentHashMap<String, Long> keys = new ConcurrentHashMap<>();
+    // row number, String value
+    private final LongObjectMap<String> rowKeys = new LongObjectMap<>();
+
+    @Override
+    public long get(final String key) {
+        return this.keys.getOrDefault(key, -1L);
+    }
+
+    @Override
+    public String keyOf(long row) {
+        return this.rowKeys.get(row);
+    }
+
+    @Override
+    public long put(final String key, long row) {
+        Long previous = this.keys.put(key, row);
+        // the value moved to an other row, the old row does not have it any more
+        if (previous != null && previous != row && key.equals(this.rowKeys.get(previous))) {
+            this.rowKeys.remove(previous);
+        }
+        String oldKey = this.rowKeys.put(row, key);
+        if (oldKey != null && !oldKey.equals(key)) {
+            this.keys.remove(oldKey, row);
+        }
+        return previous != null ? previous : -1;
+    }
+
+    @Override
+    public void removeRow(long row) {
+        String key = this.rowKeys.remove(row);
+        if (key != null) {
+            this.keys.remove(key, row);
+        }
+    }
+
+    @Override
+    public <E extends Exception> void forEach(final KeyVisitor<E> visitor) throws E {
+        for (Map.Entry<String, Long> entry : this.keys.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return this.keys.keySet();
+    }
+
+    @Override
+    public int size() {
+        return this.keys.size();
+    }
+
+    @Override
+    public void clear() {
+        this.keys.clear();
+        this.rowKeys.clear();
+    }
+}
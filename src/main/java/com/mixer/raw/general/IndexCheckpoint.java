@@ -0,0 +1,201 @@
+package com.mixer.raw.general;
+
+import com.mixer.dbserver.DBServer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persistent snapshot of the GenericIndex of a table, stored beside the table file (tablename.idx).
+ * The checkpoint contains the row index, the indexed values, the free slots (deleted rows) and the length of
+ * the table file it covers.
+ * When the table is opened and the checkpoint is usable, only the tail of the table file (written after
+ * the checkpoint) has to be scanned.
+ * Rows before the covered length must not change after the checkpoint was written. Every in-place
+ * modification of the table file (flipping the isTemporary/isDeleted flags, reusing the slot of a deleted
+ * row) has to call markModified(),
+ * which deletes the checkpoint if the modified row is covered by it.
+ */
+final class IndexCheckpoint {
+
+    private static final String FILE_EXTENSION = ".idx";
+    private static final int MAGIC = 0x4d584958; // MXIX
+    private static final int FORMAT_VERSION = 2;
+
+    private final File checkpointFile;
+    // table file length covered by the checkpoint on disk. -1 if there is no usable checkpoint
+    private volatile long coveredLength = -1;
+
+    /**
+     * Constructor
+     *
+     * @param dbFileName Name of the table file
+     */
+    IndexCheckpoint(final String dbFileName) {
+        this.checkpointFile = new File(getFileName(dbFileName));
+    }
+
+    /**
+     * Returns the name of the checkpoint file which belongs to the table file
+     *
+     * @param dbFileName Name of the table file
+     * @return Name of the checkpoint file
+     */
+    static String getFileName(final String dbFileName) {
+        return dbFileName + FILE_EXTENSION;
+    }
+
+    /**
+     * Loads the checkpoint into the (empty) index and free space map.
+     *
+     * @param index GenericIndex to fill
+     * @param freeSpace FreeSpaceMap to fill
+     * @param tableVersion Version of the table file
+     * @param indexBy Name of the indexed field
+     * @param fileLength Current length of the table file
+     * @return Length of the table file which is covered by the checkpoint, or -1 if there is no usable
+     * checkpoint. In that case the index and the free space map are left empty.
+     */
+    long load(final GenericIndex index, final FreeSpaceMap freeSpace, final String tableVersion,
+              final String indexBy, long fileLength) {
+        this.coveredLength = -1;
+        if (!this.checkpointFile.exists()) {
+            return -1;
+        }
+
+        try (CheckedInputStream checkedStream = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(this.checkpointFile), 1 << 16), new CRC32());
+             DataInputStream stream = new DataInputStream(checkedStream)) {
+
+            long covered = readHeader(stream, tableVersion, indexBy);
+            if (covered == -1) {
+                return -1;
+            }
+            if (covered > fileLength) {
+                DBServer.LOGGER.info("[IndexCheckpoint] Checkpoint covers more than the table file, ignored");
+                return -1;
+            }
+
+            index.readFrom(stream);
+            freeSpace.readFrom(stream);
+            long checksum = checkedStream.getChecksum().getValue();
+            if (stream.readLong() != checksum) {
+                DBServer.LOGGER.warning("[IndexCheckpoint] Checkpoint checksum mismatch, ignored");
+                index.clear();
+                freeSpace.clear();
+                return -1;
+            }
+
+            this.coveredLength = covered;
+            return covered;
+        } catch (IOException e) {
+            DBServer.LOGGER.warning("[IndexCheckpoint] Checkpoint cannot be read: " + e.getMessage());
+            index.clear();
+            freeSpace.clear();
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the length of the table file which is covered by the checkpoint, without loading it. Must be called
+     * before the commit log is replayed into the table file: markModified() deletes the checkpoint if the replay
+     * modifies a covered row.
+     *
+     * @param tableVersion Version of the table file
+     * @param indexBy Name of the indexed field
+     * @return Covered length, or -1 if there is no usable checkpoint
+     */
+    long readCoveredLength(final String tableVersion, final String indexBy) {
+        this.coveredLength = -1;
+        if (!this.checkpointFile.exists()) {
+            return -1;
+        }
+
+        try (DataInputStream stream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(this.checkpointFile)))) {
+            this.coveredLength = readHeader(stream, tableVersion, indexBy);
+        } catch (IOException e) {
+            DBServer.LOGGER.warning("[IndexCheckpoint] Checkpoint cannot be read: " + e.getMessage());
+        }
+        return this.coveredLength;
+    }
+
+    /**
+     * Reads the header of the checkpoint file
+     *
+     * @return Covered length, or -1 if the checkpoint belongs to an other table version
+     */
+    private static long readHeader(final DataInputStream stream, final String tableVersion, final String indexBy)
+            throws IOException {
+        if (stream.readInt() != MAGIC || stream.readInt() != FORMAT_VERSION
+                || !stream.readUTF().equals(tableVersion) || !stream.readUTF().equals(indexBy)) {
+            DBServer.LOGGER.info("[IndexCheckpoint] Checkpoint belongs to another table version, ignored");
+            return -1;
+        }
+        return stream.readLong();
+    }
+
+    /**
+     * Writes the index and the free space map into the checkpoint file. The data is written into a temporary file first, which
+     * is renamed to the checkpoint file, so a crash never leaves a half written checkpoint behind.
+     * The caller must make sure that the index and the table file do not change meanwhile.
+     *
+     * @param index GenericIndex to store
+     * @param freeSpace FreeSpaceMap to store
+     * @param tableVersion Version of the table file
+     * @param indexBy Name of the indexed field
+     * @param coveredLength Length of the table file, which is covered by the index
+     * @throws IOException
+     */
+    void write(final GenericIndex index, final FreeSpaceMap freeSpace, final String tableVersion,
+               final String indexBy, long coveredLength) throws IOException {
+        DBServer.LOGGER.info("[IndexCheckpoint] Writing checkpoint, covered length: " + coveredLength);
+        File tmpFile = new File(this.checkpointFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmpFile);
+             CheckedOutputStream checkedStream = new CheckedOutputStream(
+                     new BufferedOutputStream(fos, 1 << 16), new CRC32());
+             DataOutputStream stream = new DataOutputStream(checkedStream)) {
+
+            stream.writeInt(MAGIC);
+            stream.writeInt(FORMAT_VERSION);
+            stream.writeUTF(tableVersion);
+            stream.writeUTF(indexBy);
+            stream.writeLong(coveredLength);
+            index.writeTo(stream);
+            freeSpace.writeTo(stream);
+            stream.writeLong(checkedStream.getChecksum().getValue());
+            stream.flush();
+            fos.getFD().sync();
+        }
+
+        Files.move(tmpFile.toPath(), this.checkpointFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.coveredLength = coveredLength;
+    }
+
+    /**
+     * Must be called before a row of the table file is modified in place. If the row is covered by the
+     * checkpoint, then the checkpoint is not valid anymore, so it is deleted.
+     *
+     * @param bytePosition Position of the modified row
+     */
+    void markModified(long bytePosition) {
+        if (bytePosition < this.coveredLength) {
+            this.invalidate();
+        }
+    }
+
+    /**
+     * Deletes the checkpoint file
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    void invalidate() {
+        DBServer.LOGGER.info("[IndexCheckpoint] Checkpoint invalidated");
+        this.coveredLength = -1;
+        this.checkpointFile.delete();
+    }
+}
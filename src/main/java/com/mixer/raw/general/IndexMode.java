@@ -0,0 +1,19 @@
+package com.mixer.raw.general;
+
+/**
+ * Where the index of a table keeps the values of the indexed field.
+ * <ul>
+ *     <li>HEAP: in a ConcurrentHashMap, as String objects</li>
+ *     <li>OFF_HEAP: as UTF-8 bytes in direct memory, in an open addressing hash table. The garbage collector
+ *     does not see the values, so its work does not grow with the table. Useful for tables with many millions
+ *     of rows</li>
+ *     <li>RADIX_TREE: in an adaptive radix tree on the heap. The common prefixes of the values are stored once,
+ *     so it takes less memory when the values share long prefixes (names, plates), and the values are kept
+ *     in order</li>
+ * </ul>
+ */
+public enum IndexMode {
+    HEAP,
+    OFF_HEAP,
+    RADIX_TREE
+}
@@ -0,0 +1,90 @@
+package com.mixer.raw.general;
+
+import java.util.Set;
+
+/**
+ * The values of the indexed field and the numbers of their rows, in both directions: a row has one value, and a
+ * value belongs to one row. Used by GenericIndex, which serializes the modifications under its monitor; the
+ * lookups do not wait for each other.
+ *
+ * @see IndexMode
+ */
+interface KeyIndex {
+
+    /**
+     * Visits the values of the index
+     */
+    @FunctionalInterface
+    interface KeyVisitor<E extends Exception> {
+        void visit(String key, long row) throws E;
+    }
+
+    /**
+     * Creates the implementation of an IndexMode
+     *
+     * @param indexMode IndexMode
+     * @return KeyIndex
+     */
+    static KeyIndex create(final IndexMode indexMode) {
+        switch (indexMode) {
+            case OFF_HEAP:
+                return new OffHeapKeyIndex();
+            case RADIX_TREE:
+                return new RadixKeyIndex();
+            default:
+                return new HeapKeyIndex();
+        }
+    }
+
+    /**
+     * Returns the row of a value
+     *
+     * @param key Value of the indexed field
+     * @return Row number, -1 if the value is not in the index
+     */
+    long get(String key);
+
+    /**
+     * Returns the value of a row
+     *
+     * @param row Row number
+     * @return Value of the indexed field, null if the row has no value
+     */
+    String keyOf(long row);
+
+    /**
+     * Stores the value of a row. If the value belonged to an other row, or the row had an other value, they
+     * are not in the index any more
+     *
+     * @param key Value of the indexed field
+     * @param row Row number
+     * @return The previous row of the value, -1 if it is new
+     */
+    long put(String key, long row);
+
+    /**
+     * Removes the value of a row
+     *
+     * @param row Row number
+     */
+    void removeRow(long row);
+
+    /**
+     * Visits every value, in no particular order
+     *
+     * @param visitor KeyVisitor, it must not modify the index
+     * @throws E If the visitor throws it
+     */
+    <E extends Exception> void forEach(KeyVisitor<E> visitor) throws E;
+
+    /**
+     * Returns the values of the index
+     *
+     * @return Set of Strings
+     */
+    Set<String> keySet();
+
+    int size();
+
+    void clear();
+}
@@ -0,0 +1,135 @@
+package com.mixer.raw.general;
+
+import com.mixer.exceptions.DBException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Row format of the 0.1 table files. The fields follow each other in the order of Schema.fields:
+ * <ul>
+ *     <li>String: length of the UTF-8 bytes (int), the UTF-8 bytes</li>
+ *     <li>int: 4 bytes</li>
+ *     <li>long: 8 bytes</li>
+ *     <li>double: 8 bytes</li>
+ * </ul>
+ * A field can be found only by walking through the fields before it.
+ */
+final class LegacyRecordCodec extends RecordCodec {
+
+    LegacyRecordCodec(final Class<?> zClass, final MethodHandle constructor, final FieldCodec[] fields,
+                      int indexedField) {
+        super(zClass, constructor, fields, indexedField);
+    }
+
+    LegacyRecordCodec(final RecordCodec other) {
+        super(other);
+    }
+
+    @Override
+    String getVersion() {
+        return LEGACY_FORMAT;
+    }
+
+    @Override
+    Object decode(final ByteBuffer buffer) throws IOException {
+        try {
+            Object result = (Object) this.constructor.invokeExact();
+            for (FieldCodec field : this.fields) {
+                switch (field.type) {
+                    case STRING:
+                        field.setter.invokeExact(result, (Object) readString(buffer, buffer.getInt()));
+                        break;
+                    case INT:
+                        field.setter.invokeExact(result, buffer.getInt());
+                        break;
+                    case LONG:
+                        field.setter.invokeExact(result, buffer.getLong());
+                        break;
+                    case DOUBLE:
+                        field.setter.invokeExact(result, buffer.getDouble());
+                        break;
+                }
+            }
+            return result;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new EOFException("Row data is shorter than the schema requires");
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    String decodeIndexedValue(final ByteBuffer buffer) throws IOException {
+        try {
+            // skip the fields before the indexed field
+            for (int i = 0; i < this.indexedField; i++) {
+                int length = this.fields[i].type == FieldType.STRING ? buffer.getInt()
+                        : getFixedWidth(this.fields[i].type);
+                buffer.position(buffer.position() + length);
+            }
+            return readString(buffer, buffer.getInt());
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new EOFException("Row data is shorter than the schema requires");
+        }
+    }
+
+    @Override
+    ByteBuffer encode(final Object object, ByteBuffer buffer) throws DBException {
+        try {
+            for (FieldCodec field : this.fields) {
+                switch (field.type) {
+                    case STRING: {
+                        Object value = field.getter.invokeExact(object);
+                        if (value == null)
+                            throw new DBException(field.fieldName + " is null. Cannot store it");
+                        buffer = writeString((String) value, buffer);
+                        break;
+                    }
+                    case INT:
+                        buffer = ensureRemaining(buffer, 4);
+                        buffer.putInt((int) field.getter.invokeExact(object));
+                        break;
+                    case LONG:
+                        buffer = ensureRemaining(buffer, 8);
+                        buffer.putLong((long) field.getter.invokeExact(object));
+                        break;
+                    case DOUBLE:
+                        buffer = ensureRemaining(buffer, 8);
+                        buffer.putDouble((double) field.getter.invokeExact(object));
+                        break;
+                }
+            }
+            return buffer;
+        } catch (DBException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new DBException(e.getMessage());
+        }
+    }
+
+    /**
+     * The fields are located one after the other, from the last located field
+     */
+    @Override
+    void locate(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        while (locations.locatedPrefix <= fieldPosition) {
+            int i = locations.locatedPrefix;
+            int start = i == 0 ? locations.dataStart
+                    : locations.offsets[i - 1] + locations.lengths[i - 1];
+            if (this.fields[i].type == FieldType.STRING) {
+                locations.lengths[i] = row.getInt(start);
+                locations.offsets[i] = start + 4;
+            } else {
+                locations.lengths[i] = getFixedWidth(this.fields[i].type);
+                locations.offsets[i] = start;
+            }
+            locations.locatedPrefix++;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.mixer.raw.general;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read only memory mapping of a table file.
+ * The file is mapped in fixed size segments (one MappedByteBuffer can address max 2GB), the last segment
+ * covers only the existing part of the file. When the file grows because new rows are appended, the mapping
+ * is extended the first time somebody reads behind the currently mapped part.
+ * Writes still go through the FileChannel / RandomAccessFile; the mapping is shared with the page cache,
+ * so the written data is visible through the mapping immediately.
+ */
+final class MappedTableFile {
+
+    // 64MB
+    static final int SEGMENT_SIZE = 1 << 26;
+
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile long mappedLength = 0;
+
+    /**
+     * Maps the file of the given channel
+     *
+     * @param channel FileChannel of the table file
+     * @throws IOException If the file cannot be mapped
+     */
+    MappedTableFile(final FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.remap();
+    }
+
+    /**
+     * Maps the file up to its current length. Full segments which are already mapped are kept, only the last
+     * (partial) segment and the new segments are mapped again.
+     *
+     * @throws IOException If the file cannot be mapped
+     */
+    synchronized void remap() throws IOException {
+        long fileLength = this.channel.size();
+        if (fileLength == this.mappedLength) {
+            return;
+        }
+
+        int segmentCount = (int) ((fileLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        MappedByteBuffer[] newSegments = Arrays.copyOf(this.segments, segmentCount);
+        int firstSegmentToMap = fileLength < this.mappedLength ? 0 : (int) (this.mappedLength / SEGMENT_SIZE);
+        for (int i = firstSegmentToMap; i < segmentCount; i++) {
+            long start = (long) i * SEGMENT_SIZE;
+            newSegments[i] = this.channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(SEGMENT_SIZE, fileLength - start));
+        }
+
+        // readers check the mappedLength first, so the segments must be published before it
+        this.segments = newSegments;
+        this.mappedLength = fileLength;
+    }
+
+    /**
+     * Returns the given range of the file like read(long, int), but the range ends at the end of the file if the
+     * file is shorter. Used where the length of a structure is not known before it is read (row header).
+     *
+     * @param position File position
+     * @param length Max number of bytes
+     * @return ByteBuffer, the position is 0 and the limit is the number of bytes available
+     * @throws IOException If the position is behind the end of the file
+     */
+    ByteBuffer readAtMost(long position, int length) throws IOException {
+        if (position + length > this.mappedLength) {
+            this.remap();
+            length = (int) Math.min(length, this.mappedLength - position);
+        }
+        return this.read(position, Math.max(length, 0));
+    }
+
+    /**
+     * Returns the given range of the file. If the range is inside one segment, then the returned buffer is a
+     * view of the mapping (no copy), otherwise the parts are copied into a new buffer.
+     *
+     * @param position File position
+     * @param length Number of bytes
+     * @return ByteBuffer, the position is 0 and the limit is the length
+     * @throws IOException If the range is behind the end of the file
+     */
+    ByteBuffer read(long position, int length) throws IOException {
+        if (position + length > this.mappedLength) {
+            this.remap();
+            if (position + length > this.mappedLength) {
+                throw new EOFException("Cannot read " + length + " bytes from position " + position);
+            }
+        }
+
+        MappedByteBuffer[] _segments = this.segments;
+        int segmentIndex = (int) (position / SEGMENT_SIZE);
+        int offset = (int) (position % SEGMENT_SIZE);
+
+        if (offset + length <= _segments[segmentIndex].limit()) {
+            ByteBuffer view = _segments[segmentIndex].duplicate();
+            view.position(offset);
+            view.limit(offset + length);
+            return view.slice();
+        }
+
+        // the range is split between segments
+        ByteBuffer result = ByteBuffer.allocate(length);
+        while (result.hasRemaining()) {
+            ByteBuffer part = _segments[segmentIndex].duplicate();
+            part.position(offset);
+            part.limit(Math.min(part.limit(), offset + result.remaining()));
+            result.put(part);
+            segmentIndex++;
+            offset = 0;
+        }
+        result.flip();
+
+        return result;
+    }
+}
@@ -8,10 +8,10 @@ import com.mixer.exceptions.DuplicateNameException;
 import com.mixer.query.SQLRegexp;
 import com.mixer.query.sql.DBEntry;
 import com.mixer.query.sql.ResultSet;
+import com.mixer.query.sql.RowSource;
 import com.mixer.transaction.ITransaction;
 import com.mixer.transaction.Transaction;
 import com.mixer.util.DebugRowInfo;
-import com.mixer.util.OperationUnit;
 
 import java.io.File;
 import java.io.IOException;
@@ -20,10 +20,15 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * MxrTable represents a table in the database.
@@ -33,10 +38,32 @@ import java.util.Set;
 public class MxrTable implements Table {
 
     private GenericFileHandler fileHandler;
+    // the transactions of beginTransaction(), by thread id
     private Map<Long, ITransaction> transactions;
+    // every open transaction: of beginTransaction() and of begin()
+    private final Set<ITransaction> openTransactions = ConcurrentHashMap.newKeySet();
     private Schema schema;
     private Class<?> zClass;
+    // codec of the schema, built once when the table is opened. The file handler selects the row format
+    // of the table file with it
+    private RecordCodec codec;
     private GenericIndex index;
+    private final TableSettings settings;
+    // redo log of the commits, the table file is forced to the disk only when the log is truncated
+    private WriteAheadLog commitLog;
+    // number of commits since the last index checkpoint
+    private int commitsSinceCheckpoint = 0;
+    // the operations which use row positions (add, delete, update, commit, bulkLoad) hold the read lock, the
+    // compaction holds the write lock while it moves the rows into the compacted file
+    private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    // held by the compaction and the defragmentation, so they do not run at the same time
+    private final Object compactionMonitor = new Object();
+    // the running compaction, null if there is none
+    private volatile TableCompactor compactor;
+    // set while a background compaction is started or running
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+    // the commit log is truncated when it is longer than this
+    private static final long MAX_COMMIT_LOG_LENGTH = 64L << 20;
 
 
     /**
@@ -52,17 +79,44 @@ public class MxrTable implements Table {
                     final String schema,
                     final Class<?> zClass,
                     final GenericIndexPool indexPool) throws DBException {
+        this(dbFileName, schema, zClass, indexPool, new TableSettings());
+    }
+
+    /**
+     * Constructs a new MxrTable object.
+     *
+     * @param dbFileName Name of the database file
+     * @param schema	Schema of the object to be stored.Schema contains the object's field related information
+     * @param zClass	Class of the stored object
+     * @param indexPool	Reference to the used Index component
+     * @param settings	Settings of the table, for example the storage mode
+     * @throws DBException In case of error, DBException will be thrown
+     */
+    public MxrTable(final String dbFileName,
+                    final String schema,
+                    final Class<?> zClass,
+                    final GenericIndexPool indexPool,
+                    final TableSettings settings) throws DBException {
+        this.settings = settings;
         try {
             this.schema = this.readSchema(schema);
             this.zClass = zClass;
-            this.index = indexPool.createIndex(dbFileName, this.schema);
+            this.codec = RecordCodec.create(this.schema, this.zClass);
+            this.index = indexPool.createIndex(dbFileName, this.schema, this.settings.getIndexMode());
 
             this.fileHandler = new GenericFileHandler(dbFileName, this.index);
             this.fileHandler.setSchema(this.schema);
             this.fileHandler.setZClass(this.zClass);
+            this.fileHandler.setCodec(this.codec);
+            this.fileHandler.setStorageMode(this.settings.getStorageMode());
+            this.fileHandler.setRowSlackPercent(this.settings.getRowSlackPercent());
 
-            this.transactions = new LinkedHashMap<>();
+            this.transactions = new ConcurrentHashMap<>();
+            this.commitLog = new WriteAheadLog(dbFileName);
             this.initialise();
+            this.commitLog.setGroupCommitWindowNanos(this.settings.getGroupCommitWindowMicros() * 1000L);
+            this.commitLog.setDurability(this.settings.getDurabilityMode(),
+                    this.settings.getDurabilityIntervalMillis(), this.settings.getDurabilityBytes());
 
         }catch(IOException e) {
             throw new DBException(e.getMessage());
@@ -78,6 +132,12 @@ public class MxrTable implements Table {
     private void initialise() throws DBException{
         try {
             this.fileHandler.initialise();
+            // the commits which are in the log but maybe not in the table file (the table was not closed).
+            // A log left behind by a deleted table with the same name must not be replayed
+            if (!this.fileHandler.isCreated()) {
+                this.fileHandler.replayLog(this.commitLog);
+            }
+            this.commitLog.truncate();
         } catch (IOException ioe) {
             throw new DBException(ioe.getMessage());
         }
@@ -106,50 +166,115 @@ public class MxrTable implements Table {
     @Override
     public void close() throws DBException {
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Closing DBServer");
-        this.index.clear();
-        try {
-            this.fileHandler.close();
-        } catch (IOException ioe) {
-            throw new DBException(ioe.getMessage());
+        TableCompactor runningCompactor = this.compactor;
+        if (runningCompactor != null) {
+            runningCompactor.cancel();
+        }
+        // waits for the compaction to stop
+        synchronized (this.compactionMonitor) {
+            try {
+                this.checkpointLog();
+                // next time the table can be opened without scanning the whole file
+                this.fileHandler.writeCheckpoint();
+            } catch (DBException dbe) {
+                DBGenericServer.LOGGER.severe("[" + this.getClass().getName() + "]" + dbe.getMessage());
+            }
+            this.index.clear();
+            DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Commit log ("
+                    + this.settings.getDurabilityMode() + "): " + this.commitLog.getStatistics());
+            try {
+                this.commitLog.close();
+                this.fileHandler.close();
+            } catch (IOException ioe) {
+                throw new DBException(ioe.getMessage());
+            }
         }
     }
 
     @Override
     public void add(Object object) throws DuplicateNameException, DBException {
+        this.add(this.getActiveTransaction(), object);
+    }
+
+    private void add(final ITransaction transaction, final Object object) throws DuplicateNameException, DBException {
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" +"Adding object : " + object);
-        OperationUnit ou = this.fileHandler.add(object, false);
-        this.getTransaction().registerAdd(ou.addedRowPosition);
+        this.compactionLock.readLock().lock();
+        try {
+            this.fileHandler.stageAdd(object, transaction);
+        } finally {
+            this.compactionLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long bulkLoad(final Iterator<?> objects) throws DuplicateNameException, DBException {
+        DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Bulk load");
+        // the compaction must not move the rows while they are written
+        this.compactionLock.readLock().lock();
+        try {
+            long rows = this.fileHandler.bulkLoad(objects);
+            // the rows are not in the commit log, the table file is forced instead
+            if (this.settings.getDurabilityMode() != DurabilityMode.NONE) {
+                this.fileHandler.force();
+            }
+            return rows;
+        } catch (IOException ioe) {
+            throw new DBException(ioe.getMessage());
+        } finally {
+            this.compactionLock.readLock().unlock();
+        }
     }
 
     @Override
     public void delete(long rowNumber) throws DBException {
+        this.delete(this.getActiveTransaction(), rowNumber);
+    }
+
+    private void delete(final ITransaction transaction, long rowNumber) throws DBException {
         if (rowNumber < 0) {
             DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Row Number is less then 0:  " + rowNumber);
             throw new DBException("Row number is less then 0");
         }
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Delete person with rowNumber: " + rowNumber);
-        OperationUnit ou = this.fileHandler.deleteRow(rowNumber);
-        this.getTransaction().registerDelete(ou.deletedRowPosition);
+        this.compactionLock.readLock().lock();
+        try {
+            this.fileHandler.stageDelete(rowNumber, transaction);
+        } finally {
+            this.compactionLock.readLock().unlock();
+        }
     }
 
     @Override
     public void update(long rowNumber, final Object object) throws DuplicateNameException, DBException {
+        this.update(this.getActiveTransaction(), rowNumber, object);
+    }
+
+    private void update(final ITransaction transaction, long rowNumber, final Object object)
+            throws DuplicateNameException, DBException {
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "updating object. Row number " + rowNumber + " person: " + object);
-        OperationUnit operationUnit = this.fileHandler.update(rowNumber, object);
-        ITransaction transaction = this.getTransaction();
-        transaction.registerDelete(operationUnit.deletedRowPosition);
-        transaction.registerAdd(operationUnit.addedRowPosition);
+        this.compactionLock.readLock().lock();
+        try {
+            this.fileHandler.stageUpdate(rowNumber, object, transaction);
+        } finally {
+            this.compactionLock.readLock().unlock();
+        }
     }
 
     @Override
     public void update(String indexedFieldName, Object object) throws DuplicateNameException, DBException {
+        this.update(this.getActiveTransaction(), indexedFieldName, object);
+    }
+
+    private void update(final ITransaction transaction, final String indexedFieldName, final Object object)
+            throws DuplicateNameException, DBException {
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "updateing object. Name: " + indexedFieldName + " object:" +
                 " " + object);
-        OperationUnit operationUnit = this.fileHandler.update(indexedFieldName, object);
-        ITransaction transaction = this.getTransaction();
-        transaction.registerDelete(operationUnit.deletedRowPosition);
-        transaction.registerAdd(operationUnit.addedRowPosition);
-
+        this.compactionLock.readLock().lock();
+        try {
+            this.fileHandler.stageUpdate(indexedFieldName, object, transaction);
+        } finally {
+            this.compactionLock.readLock().unlock();
+        }
     }
 
     @Override
@@ -161,6 +286,33 @@ public class MxrTable implements Table {
         return object;
     }
 
+    @Override
+    public RecordView readView(long rowNumber) throws DBException {
+        DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Reading view of row:" + rowNumber);
+        RecordView view = new RecordView(this.fileHandler);
+        try {
+            return view.moveTo(rowNumber) ? view : null;
+        } catch (IOException ioe) {
+            throw new DBException(ioe.getMessage());
+        }
+    }
+
+    @Override
+    public void scan(final RecordVisitor visitor) throws DBException {
+        DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Scanning table");
+        // the scan reads a snapshot, the commits do not wait for it
+        try (Snapshot snapshot = this.fileHandler.openSnapshot()) {
+            RecordView view = new RecordView(this.fileHandler, snapshot);
+            for (long rowNumber : new TreeSet<>(snapshot.getIndexedValues().values())) {
+                if (view.moveTo(rowNumber) && !visitor.visit(view)) {
+                    break;
+                }
+            }
+        } catch (IOException ioe) {
+            throw new DBException(ioe.getMessage());
+        }
+    }
+
     @Override
     public Object search(String indexedFieldName) throws DBException {
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Searching for object: " + indexedFieldName);
@@ -188,12 +340,86 @@ public class MxrTable implements Table {
         return result;
     }
 
+    @Override
+    public VersionedRow readVersioned(final String indexedFieldName) throws DBException {
+        DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Reading versioned object: " + indexedFieldName);
+        return this.fileHandler.readVersioned(indexedFieldName);
+    }
+
+    @Override
+    public boolean updateIfVersion(final String indexedFieldName, long expectedVersion, final Object object)
+            throws DuplicateNameException, DBException {
+        ITransaction transaction = new Transaction();
+        this.openTransactions.add(transaction);
+        transaction.expectVersion(indexedFieldName, expectedVersion);
+        try {
+            this.update(transaction, indexedFieldName, object);
+        } catch (DuplicateNameException | DBException | RuntimeException e) {
+            this.discard(transaction);
+            throw e;
+        }
+        return this.commitIfValid(transaction);
+    }
+
+    @Override
+    public boolean deleteIfVersion(final String indexedFieldName, long expectedVersion) throws DBException {
+        ITransaction transaction = new Transaction();
+        this.openTransactions.add(transaction);
+        transaction.expectVersion(indexedFieldName, expectedVersion);
+        this.compactionLock.readLock().lock();
+        try {
+            if (!this.fileHandler.stageDelete(indexedFieldName, transaction)) {
+                this.discard(transaction);
+                return false;
+            }
+        } catch (DBException | RuntimeException e) {
+            this.discard(transaction);
+            throw e;
+        } finally {
+            this.compactionLock.readLock().unlock();
+        }
+        return this.commitIfValid(transaction);
+    }
+
+    /**
+     * Commits a transaction with version checks
+     *
+     * @return false if an other commit changed the rows of the transaction
+     */
+    private boolean commitIfValid(final ITransaction transaction) throws DBException {
+        GenericBaseFileHandler.PreparedCommit prepared = new GenericBaseFileHandler.PreparedCommit(transaction);
+        try {
+            this.commit(prepared);
+            return true;
+        } catch (DBException e) {
+            if (prepared.isConflict()) {
+                DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + e.getMessage());
+                return false;
+            }
+            throw e;
+        }
+    }
+
     private ITransaction getTransaction() {
         long threadID = Thread.currentThread().getId();
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Get transaction with id: " + threadID);
         return this.transactions.getOrDefault(threadID, null);
     }
 
+    /**
+     * Returns the transaction of the current thread, the writes are staged in it
+     *
+     * @return ITransaction
+     * @throws DBException If no transaction was started
+     */
+    private ITransaction getActiveTransaction() throws DBException {
+        ITransaction transaction = this.getTransaction();
+        if (transaction == null) {
+            throw new DBException("Transaction was not started");
+        }
+        return transaction;
+    }
+
     @Override
     public void beginTransaction() {
         long threadID = Thread.currentThread().getId();
@@ -203,9 +429,17 @@ public class MxrTable implements Table {
         }
 
         ITransaction transaction = new Transaction();
+        this.openTransactions.add(transaction);
         this.transactions.put(threadID, transaction);
     }
 
+    @Override
+    public TableTransaction begin() {
+        ITransaction transaction = new Transaction();
+        this.openTransactions.add(transaction);
+        return new TransactionHandle(transaction);
+    }
+
     @Override
     public void commit() throws DBException {
         ITransaction transaction = this.getTransaction();
@@ -214,24 +448,109 @@ public class MxrTable implements Table {
             return;
         }
 
-        this.fileHandler.commit(transaction.getNewRows(), transaction.getDeletedRows());
         this.transactions.remove(Thread.currentThread().getId());
-        transaction.clear();
+        this.commit(transaction);
+    }
+
+    private void commit(final ITransaction transaction) throws DBException {
+        this.commit(new GenericBaseFileHandler.PreparedCommit(transaction));
+    }
+
+    private void commit(final GenericBaseFileHandler.PreparedCommit prepared) throws DBException {
+        ITransaction transaction = prepared.transaction;
+        this.compactionLock.readLock().lock();
+        try {
+            // the new rows are written, the commit is durable when its record is in the log. The deletes, the
+            // updates and the index follow it
+            this.fileHandler.prepareCommit(prepared);
+            try {
+                this.commitLog.commit(prepared.record);
+            } catch (IOException ioe) {
+                this.fileHandler.abortCommit(prepared);
+                throw new DBException("Commit cannot be written to the commit log: " + ioe.getMessage());
+            }
+            this.fileHandler.finishCommit(prepared);
+        } finally {
+            // a transaction which cannot be committed is discarded too
+            this.discard(transaction);
+            this.compactionLock.readLock().unlock();
+        }
+        if (this.commitLog.getLength() > MAX_COMMIT_LOG_LENGTH) {
+            this.checkpointLog();
+        }
+        this.checkpointIfNeeded();
+        this.compactIfNeeded();
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + " Commit DONE (" + transaction.getUid() + ")");
     }
 
+    /**
+     * Writes a new index checkpoint, if enough commits happened since the last one
+     */
+    private synchronized void checkpointIfNeeded() throws DBException {
+        int interval = this.settings.getCheckpointInterval();
+        if (interval == 0) {
+            return;
+        }
+        this.commitsSinceCheckpoint++;
+        if (this.commitsSinceCheckpoint >= interval) {
+            this.commitsSinceCheckpoint = 0;
+            this.fileHandler.writeCheckpoint();
+        }
+    }
+
+    /**
+     * Writes the pending flags of the committed rows, forces the table file to the disk and truncates the commit
+     * log. No commit runs meanwhile, so every record of the log is already written into the table file.
+     *
+     * @throws DBException
+     * @see WriteAheadLog
+     */
+    private void checkpointLog() throws DBException {
+        this.compactionLock.writeLock().lock();
+        try {
+            this.fileHandler.applyPendingFlags();
+            this.fileHandler.force();
+            this.commitLog.truncate();
+        } catch (IOException ioe) {
+            throw new DBException("Commit log cannot be truncated: " + ioe.getMessage());
+        } finally {
+            this.compactionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the table file and the files which belong to it (for example the index checkpoint).
+     * The table must be closed.
+     *
+     * @param tableName Name of the table
+     * @return true if the table file has been deleted
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static boolean deleteTableFiles(final String tableName) {
+        new File(IndexCheckpoint.getFileName(tableName)).delete();
+        new File(WriteAheadLog.getFileName(tableName)).delete();
+        return new File(tableName).delete();
+    }
+
     @Override
     public void rollback() throws DBException {
         ITransaction transaction  = this.getTransaction();
         if (transaction == null) //write out error in logs
             return;
 
-        this.fileHandler.rollback(transaction.getNewRows(), transaction.getDeletedRows());
         this.transactions.remove(Thread.currentThread().getId());
-        transaction.clear();
+        this.discard(transaction);
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + " Rollback DONE (" + transaction.getUid() + ")");
     }
 
+    /**
+     * Drops the staged writes of a transaction, nothing was written into the file
+     */
+    private void discard(final ITransaction transaction) {
+        this.openTransactions.remove(transaction);
+        transaction.clear();
+    }
+
     public List<DebugRowInfo> listAllRowsWithDebug() throws DBException {
         try {
             return this.fileHandler.loadAllDataFromFile(this.zClass);
@@ -240,9 +559,22 @@ public class MxrTable implements Table {
         }
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Override
     public void defragmentDatabase() throws IOException, DuplicateNameException, DBException {
+        // a running compaction is finished first
+        synchronized (this.compactionMonitor) {
+            this.defragment();
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void defragment() throws IOException, DuplicateNameException, DBException {
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Defragmenting database");
+        if (this.fileHandler.hasOpenSnapshots()) {
+            throw new DBException("Table cannot be defragmented while snapshots are open");
+        }
+        // the positions of the rows change, the log must not be replayed into the new file
+        this.checkpointLog();
         File tmpFile = File.createTempFile("defrag", "dat");
         this.index.clear();
 
@@ -251,15 +583,16 @@ public class MxrTable implements Table {
                 this.index);
         defragFH.setSchema(this.schema);
         defragFH.setZClass(this.zClass);
+        // the rows are copied as they are, the new file must have the same row format
+        defragFH.setCodec(this.fileHandler.codec);
         defragFH.initialise();
-        List<DebugRowInfo> debugRowInfos = this.fileHandler.loadAllDataFromFile(this.zClass);
-        for (DebugRowInfo dri : debugRowInfos) {
-            if (dri.isDeleted() || dri.isTemporary()) {
-                continue;
+        // the live rows are copied without decoding them
+        this.fileHandler.scanFile(view -> {
+            if (!view.isDeleted() && !view.isTemporary()) {
+                defragFH.addRaw(view);
             }
-            Object p = dri.object();
-            defragFH.add(p, true);
-        }
+            return true;
+        });
 
         boolean wasDeleted = this.fileHandler.deleteFile();
         if (!wasDeleted) {
@@ -281,6 +614,10 @@ public class MxrTable implements Table {
         this.fileHandler = new GenericFileHandler(oldDatabaseName, this.index);
         this.fileHandler.setSchema(this.schema);
         this.fileHandler.setZClass(this.zClass);
+        this.fileHandler.setCodec(this.codec);
+        // the new file handler maps the new file again if the storage mode is MMAP
+        this.fileHandler.setStorageMode(this.settings.getStorageMode());
+        this.fileHandler.setRowSlackPercent(this.settings.getRowSlackPercent());
 
 
         this.index.clear();
@@ -290,6 +627,84 @@ public class MxrTable implements Table {
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Database file has been defragmented");
     }
 
+    @Override
+    public void compact() throws DBException {
+        synchronized (this.compactionMonitor) {
+            DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Compacting table");
+            TableCompactor tableCompactor = new TableCompactor(this.fileHandler);
+            this.compactor = tableCompactor;
+            try {
+                if (!tableCompactor.copy()) {
+                    DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Compaction cancelled");
+                    return;
+                }
+                // the positions of the rows change: no operation may use them meanwhile
+                this.compactionLock.writeLock().lock();
+                this.fileHandler.writeLock.lock();
+                try {
+                    // the open snapshots read the rows at their current positions, a later commit retries
+                    if (this.fileHandler.hasOpenSnapshots()) {
+                        tableCompactor.abort();
+                        DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]"
+                                + "Compaction postponed, the table has open snapshots");
+                        return;
+                    }
+                    // the log contains the old positions, it must not be replayed into the compacted file
+                    try {
+                        this.checkpointLog();
+                    } catch (DBException dbe) {
+                        tableCompactor.abort();
+                        throw dbe;
+                    }
+                    Map<Long, Long> newPositions = tableCompactor.swap();
+                    for (ITransaction transaction : this.openTransactions) {
+                        transaction.relocate(newPositions);
+                    }
+                } finally {
+                    this.fileHandler.writeLock.unlock();
+                    this.compactionLock.writeLock().unlock();
+                }
+                this.fileHandler.writeCheckpoint();
+                DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Table has been compacted");
+            } catch (IOException ioe) {
+                throw new DBException("Table cannot be compacted: " + ioe.getMessage());
+            } finally {
+                this.compactor = null;
+            }
+        }
+    }
+
+    /**
+     * Starts a compaction in the background, if the slots of the deleted rows take a big enough part of the
+     * table file
+     */
+    private void compactIfNeeded() {
+        int threshold = this.settings.getCompactionThresholdPercent();
+        if (threshold == 0 || this.compactionScheduled.get()) {
+            return;
+        }
+        long freeBytes = this.fileHandler.getFreeBytes();
+        if (freeBytes < this.settings.getCompactionMinFreeBytes()
+                || freeBytes * 100 < this.fileHandler.getFileLength() * threshold) {
+            return;
+        }
+        if (!this.compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                this.compact();
+            } catch (DBException dbe) {
+                DBGenericServer.LOGGER.severe("[" + this.getClass().getName() + "]" + dbe.getMessage());
+            } finally {
+                this.compactionScheduled.set(false);
+            }
+        }, "compactor-" + this.fileHandler.getTableName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     private void logInfoObject(final Object object) {
         DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Read object: " + object);
     }
@@ -325,14 +740,19 @@ public class MxrTable implements Table {
     @Override
     public ResultSet runQuery(final String query) throws DBException {
     	DBGenericServer.LOGGER.info("[" + this.getClass().getName() + "]" + "Running SQL query: " + query);
-    	Set<String> indexedValues = this.index.getIndexedValues();
+    	// the query reads a snapshot of the table, the commits do not wait for it
+    	try (Snapshot snapshot = this.fileHandler.openSnapshot()) {
+    		return this.runQuery(query, snapshot);
+    	}
+    }
+
+    private ResultSet runQuery(final String query, final Snapshot snapshot) throws DBException {
     	ArrayList<DBEntry> allObjects = new ArrayList<>();
-    	// get all objects
-        // TODO this is very slow, and consumes a lot of memory, modify it
-    	for(String  value : indexedValues) {
-    		long rowNumber = this.index.getRowNumberByIndex(value);
-    		Object object = this.fileHandler.readRow(rowNumber);
-    		allObjects.add(new DBEntry(object, rowNumber));
+    	// the objects are not read here: the query reads only the fields it needs, and the objects are
+    	// created only for the rows of the result
+    	RowSource rowSource = new ViewRowSource(snapshot);
+    	for(long rowNumber : snapshot.getIndexedValues().values()) {
+    		allObjects.add(new DBEntry(rowSource, rowNumber));
     	}
     	// run the query on these objects
         SQLRegexp sqlQuery = SQLRegexp.getInstance();
@@ -357,25 +777,120 @@ public class MxrTable implements Table {
 
 
     private void performDeleteObject(final DBEntry object) throws DBException {
-        //get the indexed field name
-        this.beginTransaction();
-        this.delete(object.rowIndex);
-        this.commit();
+        // an own transaction, the transaction of the calling thread is not committed
+        try (TableTransaction transaction = this.begin()) {
+            transaction.delete(object.rowIndex);
+            transaction.commit();
+        }
     }
 
    private void performUpdateObject(final DBEntry object) throws DBException {
 
-       try {
-           this.beginTransaction();
-           this.update(object.rowIndex, object.object);
-           this.commit();
+       try (TableTransaction transaction = this.begin()) {
+           transaction.update(object.rowIndex, object.getObject());
+           transaction.commit();
        } catch (DuplicateNameException e) {
-           this.rollback();
            throw new DBException(e.getMessage());
        }
 
     }
 
+    /**
+     * A transaction of begin(), which is not bound to a thread
+     */
+    private final class TransactionHandle implements TableTransaction {
+        private final ITransaction transaction;
+        private volatile boolean active = true;
+
+        TransactionHandle(final ITransaction transaction) {
+            this.transaction = transaction;
+        }
+
+        private ITransaction getTransaction() throws DBException {
+            if (!this.active) {
+                throw new DBException("Transaction is finished");
+            }
+            return this.transaction;
+        }
+
+        @Override
+        public void add(final Object object) throws DuplicateNameException, DBException {
+            MxrTable.this.add(this.getTransaction(), object);
+        }
+
+        @Override
+        public void delete(long rowNumber) throws DBException {
+            MxrTable.this.delete(this.getTransaction(), rowNumber);
+        }
+
+        @Override
+        public void update(long rowNumber, final Object object) throws DuplicateNameException, DBException {
+            MxrTable.this.update(this.getTransaction(), rowNumber, object);
+        }
+
+        @Override
+        public void update(final String indexedFieldName, final Object object)
+                throws DuplicateNameException, DBException {
+            MxrTable.this.update(this.getTransaction(), indexedFieldName, object);
+        }
+
+        @Override
+        public void commit() throws DBException {
+            ITransaction _transaction = this.getTransaction();
+            this.active = false;
+            MxrTable.this.commit(_transaction);
+        }
+
+        @Override
+        public void rollback() {
+            if (this.active) {
+                this.active = false;
+                MxrTable.this.discard(this.transaction);
+            }
+        }
+
+        @Override
+        public boolean isActive() {
+            return this.active;
+        }
+
+        @Override
+        public void close() {
+            this.rollback();
+        }
+    }
+
+    /**
+     * RowSource of the SQL queries. The fields are read with one RecordView, which is moved to the requested row
+     * of the snapshot
+     */
+    private final class ViewRowSource implements RowSource {
+        private final Snapshot snapshot;
+        private final RecordView view;
+
+        ViewRowSource(final Snapshot snapshot) {
+            this.snapshot = snapshot;
+            this.view = new RecordView(fileHandler, snapshot);
+        }
+
+        @Override
+        public Object readField(long rowIndex, String fieldName) throws DBException {
+            try {
+                if (this.view.getRowNumber() != rowIndex && !this.view.moveTo(rowIndex)) {
+                    throw new DBException("Row does not exists in Index");
+                }
+            } catch (IOException ioe) {
+                throw new DBException(ioe.getMessage());
+            }
+            return this.view.getValue(fieldName);
+        }
+
+        @Override
+        public Object readObject(long rowIndex) throws DBException {
+            return this.snapshot.readObject(rowIndex);
+        }
+    }
+
 //    /**
 //     * Get the row number by an object.
 //     * @param object
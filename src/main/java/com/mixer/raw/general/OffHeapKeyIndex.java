@@ -0,0 +1,379 @@
+package com.mixer.raw.general;
+
+import com.mixer.util.LongLongMap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * KeyIndex of the OFF_HEAP mode. The values are stored as UTF-8 bytes in direct memory, the heap holds only a few
+ * big buffers and the row -> slot map of primitive longs, so the garbage collector does not see the values.
+ * <ul>
+ *     <li>The hash table is a direct buffer of slots, with open addressing (linear probing). A slot is the
+ *     address of the value + 1 (0: empty, -1: removed), the row number and the hash of the value</li>
+ *     <li>The values are appended to direct chunks: the length, then the UTF-8 bytes. The address of a value
+ *     is the number of its chunk in the upper 32 bits and its offset in the lower 32 bits</li>
+ * </ul>
+ * The space of the removed values is reclaimed when the table is rebuilt: when it is full, or when the removed
+ * values take more space than the live ones. The slots have to fit into one buffer, so the index holds at most
+ * MAX_SIZE (about 47 million) values; a put of one more value fails with an IllegalStateException. The lookups read optimistically under a StampedLock, and they are
+ * repeated under the read lock if a modification ran meanwhile. The old buffers are released by the garbage
+ * collector.
+ */
+final class OffHeapKeyIndex implements KeyIndex {
+
+    private static final int SLOT_BYTES = 24;
+    private static final int ROW_OFFSET = 8;
+    private static final int HASH_OFFSET = 16;
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+    private static final int MIN_CAPACITY = 1024;
+    // the slots have to fit into one buffer: 1 << 26 slots take 1.5 GB
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final int MAX_LOAD_PERCENT = 70;
+    private static final int MAX_SIZE = (int) (MAX_CAPACITY * (long) MAX_LOAD_PERCENT / 100);
+    // a table of MAX_CAPACITY can not grow, it is rebuilt only to clear the removed slots, when they are at least
+    // the difference of the two loads, so the rebuilds stay rare
+    private static final int MAX_CAPACITY_LOAD_PERCENT = 90;
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    private final StampedLock lock = new StampedLock();
+
+    private ByteBuffer slots;
+    private int mask;
+    private ByteBuffer[] chunks;
+    private int chunkCount;
+    // row number -> slot of its value
+    private final LongLongMap rowSlots = new LongLongMap();
+
+    private volatile int size;
+    // slots which are not empty: live values and removed ones
+    private int used;
+    // bytes of the live and of the removed values in the chunks
+    private long liveBytes;
+    private long garbageBytes;
+
+    OffHeapKeyIndex() {
+        this.reset(MIN_CAPACITY);
+    }
+
+    /**
+     * Replaces the buffers with empty ones, the size is not changed
+     */
+    private void reset(int capacity) {
+        this.slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        this.mask = capacity - 1;
+        this.chunks = new ByteBuffer[4];
+        this.chunkCount = 0;
+        this.used = 0;
+        this.liveBytes = 0;
+        this.garbageBytes = 0;
+    }
+
+    private static int hash(final byte[] key) {
+        int hash = 0x811C9DC5;
+        for (byte b : key) {
+            hash = (hash ^ b) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public long get(final String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                long row = this.find(bytes, hash);
+                if (this.lock.validate(stamp)) {
+                    return row;
+                }
+            } catch (RuntimeException e) {
+                // a modification ran meanwhile, the buffers were read half changed
+            }
+        }
+        stamp = this.lock.readLock();
+        try {
+            return this.find(bytes, hash);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the row of a value, -1 if it is not in the index
+     */
+    private long find(final byte[] key, int hash) {
+        int slot = this.findSlot(key, hash);
+        return slot >= 0 ? this.slots.getLong(slot * SLOT_BYTES + ROW_OFFSET) : -1;
+    }
+
+    /**
+     * Returns the slot of a value, or -1 - the slot where it can be inserted if it is not in the index
+     */
+    private int findSlot(final byte[] key, int hash) {
+        ByteBuffer slots = this.slots;
+        int mask = this.mask;
+        int free = -1;
+        for (int slot = hash & mask, probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+            long address = slots.getLong(slot * SLOT_BYTES);
+            if (address == EMPTY) {
+                return -1 - (free >= 0 ? free : slot);
+            }
+            if (address == TOMBSTONE) {
+                if (free < 0) {
+                    free = slot;
+                }
+            } else if (slots.getInt(slot * SLOT_BYTES + HASH_OFFSET) == hash && this.keyEquals(address - 1, key)) {
+                return slot;
+            }
+        }
+        if (free < 0) {
+            throw new IllegalStateException("The off-heap index is full");
+        }
+        return -1 - free;
+    }
+
+    private boolean keyEquals(long address, final byte[] key) {
+        ByteBuffer chunk = this.chunks[(int) (address >>> 32)];
+        int offset = (int) address;
+        if (chunk.getInt(offset) != key.length) {
+            return false;
+        }
+        offset += Integer.BYTES;
+        for (int i = 0; i < key.length; i++) {
+            if (chunk.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] readKey(long address) {
+        ByteBuffer chunk = this.chunks[(int) (address >>> 32)];
+        int offset = (int) address;
+        int length = chunk.getInt(offset);
+        offset += Integer.BYTES;
+        // a length read during a modification can be garbage
+        if (length < 0 || length > chunk.capacity() - offset) {
+            throw new IndexOutOfBoundsException("Invalid key length: " + length);
+        }
+        byte[] key = new byte[length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = chunk.get(offset + i);
+        }
+        return key;
+    }
+
+    @Override
+    public String keyOf(long row) {
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                String key = this.readKeyOf(row);
+                if (this.lock.validate(stamp)) {
+                    return key;
+                }
+            } catch (RuntimeException e) {
+                // a modification ran meanwhile, the buffers were read half changed
+            }
+        }
+        stamp = this.lock.readLock();
+        try {
+            return this.readKeyOf(row);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    private String readKeyOf(long row) {
+        long slot = this.rowSlots.get(row);
+        if (slot == LongLongMap.NO_VALUE) {
+            return null;
+        }
+        long address = this.slots.getLong((int) slot * SLOT_BYTES);
+        return address > 0 ? new String(this.readKey(address - 1), StandardCharsets.UTF_8) : null;
+    }
+
+    @Override
+    public long put(final String key, long row) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        long stamp = this.lock.writeLock();
+        try {
+            int slot = this.findSlot(bytes, hash);
+            long previous = -1;
+            if (slot >= 0) {
+                previous = this.slots.getLong(slot * SLOT_BYTES + ROW_OFFSET);
+                if (previous == row) {
+                    return previous;
+                }
+                // the value moved to an other row, the old row does not have it any more
+                this.rowSlots.remove(previous);
+                this.slots.putLong(slot * SLOT_BYTES + ROW_OFFSET, row);
+            } else {
+                if (this.size >= MAX_SIZE && !this.rowSlots.containsKey(row)) {
+                    throw new IllegalStateException("The off-heap index is full: it holds at most " + MAX_SIZE
+                            + " values");
+                }
+                slot = -1 - slot;
+                if (this.slots.getLong(slot * SLOT_BYTES) == EMPTY) {
+                    this.used++;
+                }
+                long address = this.append(bytes);
+                this.slots.putLong(slot * SLOT_BYTES + ROW_OFFSET, row);
+                this.slots.putInt(slot * SLOT_BYTES + HASH_OFFSET, hash);
+                this.slots.putLong(slot * SLOT_BYTES, address + 1);
+                this.size++;
+            }
+            // the row had an other value
+            long oldSlot = this.rowSlots.put(row, slot);
+            if (oldSlot != LongLongMap.NO_VALUE && oldSlot != slot) {
+                this.removeSlot((int) oldSlot);
+            }
+            int capacity = this.mask + 1;
+            int loadPercent = capacity < MAX_CAPACITY ? MAX_LOAD_PERCENT : MAX_CAPACITY_LOAD_PERCENT;
+            if (this.used * 100L > capacity * (long) loadPercent
+                    || (this.garbageBytes > CHUNK_SIZE && this.garbageBytes > this.liveBytes)) {
+                this.rebuild();
+            }
+            return previous;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Appends a value to the chunks
+     *
+     * @return Address of the value
+     */
+    private long append(final byte[] key) {
+        int length = Integer.BYTES + key.length;
+        ByteBuffer chunk = this.chunkCount > 0 ? this.chunks[this.chunkCount - 1] : null;
+        if (chunk == null || chunk.remaining() < length) {
+            if (this.chunkCount == this.chunks.length) {
+                this.chunks = Arrays.copyOf(this.chunks, this.chunkCount * 2);
+            }
+            chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, length));
+            this.chunks[this.chunkCount++] = chunk;
+        }
+        long address = ((long) (this.chunkCount - 1) << 32) | chunk.position();
+        chunk.putInt(key.length);
+        chunk.put(key);
+        this.liveBytes += length;
+        return address;
+    }
+
+    private void removeSlot(int slot) {
+        long address = this.slots.getLong(slot * SLOT_BYTES);
+        if (address > 0) {
+            long length = Integer.BYTES + this.chunks[(int) ((address - 1) >>> 32)].getInt((int) (address - 1));
+            this.liveBytes -= length;
+            this.garbageBytes += length;
+            this.slots.putLong(slot * SLOT_BYTES, TOMBSTONE);
+            this.size--;
+        }
+    }
+
+    @Override
+    public void removeRow(long row) {
+        long stamp = this.lock.writeLock();
+        try {
+            long slot = this.rowSlots.remove(row);
+            if (slot != LongLongMap.NO_VALUE) {
+                this.removeSlot((int) slot);
+            }
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies the live values into new buffers, which are big enough for twice as many values. Called under the
+     * write lock
+     */
+    private void rebuild() {
+        int capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && capacity * (long) MAX_LOAD_PERCENT < this.size * 200L) {
+            capacity <<= 1;
+        }
+        ByteBuffer oldSlots = this.slots;
+        ByteBuffer[] oldChunks = this.chunks;
+        int oldCapacity = this.mask + 1;
+        this.reset(capacity);
+        this.rowSlots.clear();
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long address = oldSlots.getLong(slot * SLOT_BYTES);
+            if (address <= 0) {
+                continue;
+            }
+            ByteBuffer chunk = oldChunks[(int) ((address - 1) >>> 32)];
+            byte[] key = new byte[chunk.getInt((int) (address - 1))];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = chunk.get((int) (address - 1) + Integer.BYTES + i);
+            }
+            long row = oldSlots.getLong(slot * SLOT_BYTES + ROW_OFFSET);
+            int hash = oldSlots.getInt(slot * SLOT_BYTES + HASH_OFFSET);
+            int newSlot = hash & this.mask;
+            while (this.slots.getLong(newSlot * SLOT_BYTES) != EMPTY) {
+                newSlot = (newSlot + 1) & this.mask;
+            }
+            this.slots.putLong(newSlot * SLOT_BYTES + ROW_OFFSET, row);
+            this.slots.putInt(newSlot * SLOT_BYTES + HASH_OFFSET, hash);
+            this.slots.putLong(newSlot * SLOT_BYTES, this.append(key) + 1);
+            this.rowSlots.put(row, newSlot);
+            this.used++;
+        }
+    }
+
+    @Override
+    public <E extends Exception> void forEach(final KeyVisitor<E> visitor) throws E {
+        long stamp = this.lock.readLock();
+        try {
+            for (int slot = 0; slot <= this.mask; slot++) {
+                long address = this.slots.getLong(slot * SLOT_BYTES);
+                if (address > 0) {
+                    visitor.visit(new String(this.readKey(address - 1), StandardCharsets.UTF_8),
+                            this.slots.getLong(slot * SLOT_BYTES + ROW_OFFSET));
+                }
+            }
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns a copy of the values, the values are not kept as Strings
+     *
+     * @return Set of Strings
+     */
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new HashSet<>();
+        this.forEach((key, row) -> keys.add(key));
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void clear() {
+        long stamp = this.lock.writeLock();
+        try {
+            this.reset(MIN_CAPACITY);
+            this.rowSlots.clear();
+            this.size = 0;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.mixer.raw.general;
+
+import com.mixer.exceptions.DBException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Row format of the 0.2 table files. Every field can be found with one lookup:
+ * <ul>
+ *     <li>fixed part: the int, long and double fields in the order of Schema.fields, with fixed width (4 or 8
+ *     bytes), so their position is the same in every row</li>
+ *     <li>offset table: the end of every String field (int, relative to the beginning of the row data)</li>
+ *     <li>the UTF-8 bytes of the String fields, one after the other. A String starts where the previous one
+ *     ends (the first one right after the offset table)</li>
+ * </ul>
+ * The row data takes the same space as in the 0.1 format: the offset table replaces the length prefixes.
+ */
+final class OffsetTableRecordCodec extends RecordCodec {
+
+    // position of the primitive fields in the row data, -1 for the String fields
+    private final int[] fixedOffsets;
+    // position of the String fields in the offset table, -1 for the primitive fields
+    private final int[] stringIndexes;
+    // size of the fixed part
+    private final int fixedSize;
+    private final int stringCount;
+    // beginning of the first String
+    private final int variableStart;
+
+    OffsetTableRecordCodec(final RecordCodec other) {
+        super(other);
+        this.fixedOffsets = new int[this.fields.length];
+        this.stringIndexes = new int[this.fields.length];
+        int fixedSize = 0;
+        int stringCount = 0;
+        for (int i = 0; i < this.fields.length; i++) {
+            if (this.fields[i].type == FieldType.STRING) {
+                this.fixedOffsets[i] = -1;
+                this.stringIndexes[i] = stringCount++;
+            } else {
+                this.fixedOffsets[i] = fixedSize;
+                this.stringIndexes[i] = -1;
+                fixedSize += getFixedWidth(this.fields[i].type);
+            }
+        }
+        this.fixedSize = fixedSize;
+        this.stringCount = stringCount;
+        this.variableStart = fixedSize + 4 * stringCount;
+    }
+
+    @Override
+    String getVersion() {
+        return OFFSET_TABLE_FORMAT;
+    }
+
+    /**
+     * Returns the beginning of a String, relative to the beginning of the row data
+     */
+    private int getStringStart(final ByteBuffer buffer, int dataStart, int stringIndex) {
+        return stringIndex == 0 ? this.variableStart
+                : buffer.getInt(dataStart + this.fixedSize + 4 * (stringIndex - 1));
+    }
+
+    /**
+     * Returns the end of a String, relative to the beginning of the row data
+     */
+    private int getStringEnd(final ByteBuffer buffer, int dataStart, int stringIndex) {
+        return buffer.getInt(dataStart + this.fixedSize + 4 * stringIndex);
+    }
+
+    /**
+     * Reads a String of the row data
+     */
+    private String readStoredString(final ByteBuffer buffer, int dataStart, int stringIndex) {
+        int start = this.getStringStart(buffer, dataStart, stringIndex);
+        return readString(buffer, dataStart + start, this.getStringEnd(buffer, dataStart, stringIndex) - start);
+    }
+
+    @Override
+    Object decode(final ByteBuffer buffer) throws IOException {
+        int dataStart = buffer.position();
+        try {
+            Object result = (Object) this.constructor.invokeExact();
+            for (int i = 0; i < this.fields.length; i++) {
+                FieldCodec field = this.fields[i];
+                switch (field.type) {
+                    case STRING:
+                        field.setter.invokeExact(result,
+                                (Object) this.readStoredString(buffer, dataStart, this.stringIndexes[i]));
+                        break;
+                    case INT:
+                        field.setter.invokeExact(result, buffer.getInt(dataStart + this.fixedOffsets[i]));
+                        break;
+                    case LONG:
+                        field.setter.invokeExact(result, buffer.getLong(dataStart + this.fixedOffsets[i]));
+                        break;
+                    case DOUBLE:
+                        field.setter.invokeExact(result, buffer.getDouble(dataStart + this.fixedOffsets[i]));
+                        break;
+                }
+            }
+            int dataLength = this.stringCount == 0 ? this.variableStart
+                    : this.getStringEnd(buffer, dataStart, this.stringCount - 1);
+            buffer.position(dataStart + dataLength);
+            return result;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new EOFException("Row data is shorter than the schema requires");
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    String decodeIndexedValue(final ByteBuffer buffer) throws IOException {
+        try {
+            return this.readStoredString(buffer, buffer.position(), this.stringIndexes[this.indexedField]);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new EOFException("Row data is shorter than the schema requires");
+        }
+    }
+
+    @Override
+    ByteBuffer encode(final Object object, ByteBuffer buffer) throws DBException {
+        try {
+            buffer = ensureRemaining(buffer, this.variableStart);
+            int dataStart = buffer.position();
+            // fixed part
+            for (FieldCodec field : this.fields) {
+                switch (field.type) {
+                    case INT:
+                        buffer.putInt((int) field.getter.invokeExact(object));
+                        break;
+                    case LONG:
+                        buffer.putLong((long) field.getter.invokeExact(object));
+                        break;
+                    case DOUBLE:
+                        buffer.putDouble((double) field.getter.invokeExact(object));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            // offset table, filled when the Strings are written
+            for (int i = 0; i < this.stringCount; i++) {
+                buffer.putInt(0);
+            }
+            for (int i = 0; i < this.fields.length; i++) {
+                FieldCodec field = this.fields[i];
+                if (field.type != FieldType.STRING) {
+                    continue;
+                }
+                Object value = field.getter.invokeExact(object);
+                if (value == null)
+                    throw new DBException(field.fieldName + " is null. Cannot store it");
+                buffer = writeStringBytes((String) value, buffer);
+                buffer.putInt(dataStart + this.fixedSize + 4 * this.stringIndexes[i], buffer.position() - dataStart);
+            }
+            return buffer;
+        } catch (DBException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new DBException(e.getMessage());
+        }
+    }
+
+    /**
+     * Every field is located directly, without touching the other fields
+     */
+    @Override
+    void locate(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        int dataStart = locations.dataStart;
+        if (this.fields[fieldPosition].type == FieldType.STRING) {
+            int stringIndex = this.stringIndexes[fieldPosition];
+            int start = this.getStringStart(row, dataStart, stringIndex);
+            locations.offsets[fieldPosition] = dataStart + start;
+            locations.lengths[fieldPosition] = this.getStringEnd(row, dataStart, stringIndex) - start;
+        } else {
+            locations.offsets[fieldPosition] = dataStart + this.fixedOffsets[fieldPosition];
+            locations.lengths[fieldPosition] = getFixedWidth(this.fields[fieldPosition].type);
+        }
+    }
+}
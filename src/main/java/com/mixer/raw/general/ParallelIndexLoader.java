@@ -0,0 +1,237 @@
+package com.mixer.raw.general;
+
+import com.mixer.dbserver.DBServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the GenericIndex from the table file in two phases:
+ * <ol>
+ *     <li>One sequential pass over the file, which reads it in big blocks, parses the row headers (isTemporary,
+ *     isDeleted, length) and collects the positions of the rows. The slots of the deleted rows are added to the
+ *     FreeSpaceMap of the file handler.</li>
+ *     <li>The indexed field of the rows is decoded in parallel in a fork-join pool, from the blocks of the first
+ *     phase. Every task works on the rows of one block, and it is started as soon as the block is scanned.</li>
+ * </ol>
+ * Every row is read from the file once: a block holds the whole rows which are decoded from it. At the end the
+ * results are merged into the index in row order, so the row numbers are the same as with a sequential load.
+ */
+final class ParallelIndexLoader {
+
+    private static final int SCAN_BLOCK_SIZE = 1 << 20;
+    // blocks which are scanned but not decoded yet, the scan waits when there are more
+    private static final int MAX_PENDING_BLOCKS = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+
+    private final GenericBaseFileHandler fileHandler;
+
+    // result of the header scan: the rows which are not deleted
+    private long[] positions = new long[1024];
+    private boolean[] temporary = new boolean[1024];
+    private int rowCount = 0;
+    private long deletedRows = 0;
+    private long temporaryRows = 0;
+
+    // decoding of the blocks, in file order
+    private final List<DecodeTask> tasks = new ArrayList<>();
+    private int joinedTasks = 0;
+
+    ParallelIndexLoader(final GenericBaseFileHandler fileHandler) {
+        this.fileHandler = fileHandler;
+    }
+
+    /**
+     * Loads the rows between the two file positions into the index
+     *
+     * @param index GenericIndex to fill
+     * @param fromPosition Position of the first row
+     * @param fileLength Length of the file
+     * @return number of rows with indexed value (not deleted and not temporary)
+     * @throws IOException
+     */
+    long load(final GenericIndex index, long fromPosition, long fileLength) throws IOException {
+        try {
+            this.scan(fromPosition, fileLength);
+            while (this.joinedTasks < this.tasks.size()) {
+                this.tasks.get(this.joinedTasks++).join();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // merge in row order
+        long loadedRows = 0;
+        int taskIndex = 0;
+        int valueIndex = 0;
+        for (int i = 0; i < this.rowCount; i++) {
+            long rowNumber = index.add(this.positions[i]);
+            if (!this.temporary[i]) {
+                while (valueIndex == this.tasks.get(taskIndex).indexedValues.length) {
+                    taskIndex++;
+                    valueIndex = 0;
+                }
+                index.addIndexedValue(this.tasks.get(taskIndex).indexedValues[valueIndex++], rowNumber);
+                loadedRows++;
+            }
+        }
+
+        return loadedRows;
+    }
+
+    long getDeletedRows() {
+        return this.deletedRows;
+    }
+
+    long getTemporaryRows() {
+        return this.temporaryRows;
+    }
+
+    /**
+     * First phase: parses the row headers, stores the position of the rows which are not deleted, and starts the
+     * decoding of every block
+     */
+    private void scan(long fromPosition, long fileLength) throws IOException {
+        DBServer.LOGGER.info("[ParallelIndexLoader] Scanning row headers from position " + fromPosition);
+        ByteBuffer block = null;
+        long blockStart = 0;
+        // offsets of the rows to decode in the current block
+        int[] offsets = new int[256];
+        int offsetCount = 0;
+        long position = fromPosition;
+
+        RecordCodec codec = this.fileHandler.codec;
+        while (position < fileLength) {
+            // the length of the row header depends on the row format, at most MAX_ROW_HEADER_LENGTH
+            int headerBytes = (int) Math.min(RecordCodec.MAX_ROW_HEADER_LENGTH, fileLength - position);
+            if (block == null || position + headerBytes > blockStart + block.limit()) {
+                this.startDecoding(block, offsets, offsetCount);
+                offsetCount = 0;
+                block = this.readBlock(position, SCAN_BLOCK_SIZE, fileLength);
+                blockStart = position;
+                if (block.limit() < headerBytes) {
+                    throw new EOFException("Row header cannot be read from position " + position);
+                }
+            }
+
+            int offset = (int) (position - blockStart);
+            boolean isTemporary;
+            boolean isDeleted;
+            int dataLength;
+            long rowLength;
+            try {
+                isTemporary = codec.isTemporary(block, offset);
+                isDeleted = codec.isDeleted(block, offset);
+                dataLength = codec.getDataLength(block, offset);
+                rowLength = (long) codec.getHeaderLength(block, offset) + dataLength;
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new EOFException("Row header cannot be read from position " + position);
+            }
+            if (position + rowLength > fileLength || rowLength > Integer.MAX_VALUE) {
+                throw new EOFException("Row is truncated at position " + position);
+            }
+
+            if (isTemporary)
+                this.temporaryRows++;
+            if (isDeleted) {
+                this.deletedRows++;
+                // no transaction is running yet, so the slot of every deleted row can be reused
+                this.fileHandler.freeSpace.add(position, dataLength);
+            } else {
+                this.addRow(position, isTemporary);
+                if (!isTemporary) {
+                    // the row is decoded from the block, so the whole row has to be in it
+                    if (offset + rowLength > block.limit()) {
+                        this.startDecoding(block, offsets, offsetCount);
+                        offsetCount = 0;
+                        block = this.readBlock(position, (int) Math.max(SCAN_BLOCK_SIZE, rowLength), fileLength);
+                        blockStart = position;
+                        offset = 0;
+                    }
+                    if (offsetCount == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, offsetCount * 2);
+                    }
+                    offsets[offsetCount++] = offset;
+                }
+            }
+            position += rowLength;
+        }
+        this.startDecoding(block, offsets, offsetCount);
+    }
+
+    /**
+     * Reads a block of the file, or the rest of the file if it is shorter. The blocks are not reused, the decoding
+     * tasks hold them until they finish.
+     */
+    private ByteBuffer readBlock(long position, int length, long fileLength) throws IOException {
+        length = (int) Math.min(length, fileLength - position);
+        return this.fileHandler.readBlock(position, length, ByteBuffer.allocate(length));
+    }
+
+    private void addRow(long position, boolean isTemporary) {
+        if (this.rowCount == this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, this.rowCount * 2);
+            this.temporary = Arrays.copyOf(this.temporary, this.rowCount * 2);
+        }
+        this.positions[this.rowCount] = position;
+        this.temporary[this.rowCount] = isTemporary;
+        this.rowCount++;
+    }
+
+    /**
+     * Starts the decoding of the rows of a scanned block. If too many blocks wait for decoding, then it waits
+     * for the oldest one, so the blocks do not fill the heap when the decoding is slower than the reading.
+     */
+    private void startDecoding(final ByteBuffer block, final int[] offsets, int offsetCount) {
+        if (block == null || offsetCount == 0) {
+            return;
+        }
+        DecodeTask task = new DecodeTask(block, Arrays.copyOf(offsets, offsetCount));
+        this.tasks.add(task);
+        ForkJoinPool.commonPool().execute(task);
+        while (this.tasks.size() - this.joinedTasks > MAX_PENDING_BLOCKS) {
+            this.tasks.get(this.joinedTasks++).join();
+        }
+    }
+
+    /**
+     * Second phase: decodes the indexed field of the rows of a block
+     */
+    private final class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private ByteBuffer block;
+        private final int[] offsets;
+        final String[] indexedValues;
+
+        DecodeTask(final ByteBuffer block, final int[] offsets) {
+            this.block = block;
+            this.offsets = offsets;
+            this.indexedValues = new String[offsets.length];
+        }
+
+        @Override
+        protected void compute() {
+            RecordCodec codec = fileHandler.codec;
+            ByteBuffer row = this.block.duplicate();
+            try {
+                for (int i = 0; i < this.offsets.length; i++) {
+                    row.position(this.offsets[i] + codec.getHeaderLength(row, this.offsets[i]));
+                    this.indexedValues[i] = codec.decodeIndexedValue(row);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                // the block is not needed after the decoding
+                this.block = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,589 @@
+package com.mixer.raw.general;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * KeyIndex of the RADIX_TREE mode: an adaptive radix tree over the UTF-8 bytes of the values.
+ * <ul>
+ *     <li>The paths are compressed: a node holds the byte which selects it in its parent, and the bytes from
+ *     there to the next branch. The common prefixes of the values are stored once</li>
+ *     <li>An inner node picks the layout of its children by their number: sorted arrays of 4 or 16 bytes and
+ *     children, a byte -> slot table with 48 children, or a table of 256 children</li>
+ *     <li>A value ends in a node, which holds its row number. A value which differs from the others in its last
+ *     byte takes one small object</li>
+ * </ul>
+ * The values are visited in the order of their UTF-8 bytes. The value of a row is found through a paged array of
+ * the nodes by row number (the row numbers grow, the numbers of the removed rows are not reused, so the pages of
+ * the old rows empty out and are released) and the parent links of the nodes. The lookups read optimistically under a StampedLock, and they are repeated under
+ * the read lock if a modification ran meanwhile.
+ */
+final class RadixKeyIndex implements KeyIndex {
+
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    /**
+     * A node of the tree. The value which ends here has a row number, the others have -1
+     */
+    private abstract static class Node {
+        // the byte which selects the node in its parent, and the bytes after it
+        byte edge;
+        byte[] prefix;
+        Inner parent;
+        long row = -1;
+
+        Node(byte edge, final byte[] prefix, final Inner parent) {
+            this.edge = edge;
+            this.prefix = prefix;
+            this.parent = parent;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        Leaf(byte edge, final byte[] prefix, final Inner parent, long row) {
+            super(edge, prefix, parent);
+            this.row = row;
+        }
+    }
+
+    private static final class Inner extends Node {
+        // sorted first bytes of the children with 4 or 16 children, null otherwise
+        byte[] keys;
+        // byte -> slot + 1 with 48 children, null otherwise
+        byte[] index;
+        // with 256 children it is indexed by the byte
+        Node[] children;
+        int count;
+
+        Inner(byte edge, final byte[] prefix, final Inner parent) {
+            super(edge, prefix, parent);
+            this.keys = new byte[4];
+            this.children = new Node[4];
+        }
+
+        Node child(byte b) {
+            if (this.index != null) {
+                int slot = this.index[b & 0xFF];
+                return slot == 0 ? null : this.children[slot - 1];
+            }
+            if (this.keys == null) {
+                return this.children[b & 0xFF];
+            }
+            for (int i = 0; i < this.count; i++) {
+                if (this.keys[i] == b) {
+                    return this.children[i];
+                }
+            }
+            return null;
+        }
+
+        void addChild(final Node child) {
+            if (this.count == this.children.length) {
+                this.resize(this.count + 1);
+            }
+            byte b = child.edge;
+            if (this.index != null) {
+                int slot = 0;
+                while (this.children[slot] != null) {
+                    slot++;
+                }
+                this.children[slot] = child;
+                this.index[b & 0xFF] = (byte) (slot + 1);
+            } else if (this.keys == null) {
+                this.children[b & 0xFF] = child;
+            } else {
+                int position = this.count;
+                while (position > 0 && (this.keys[position - 1] & 0xFF) > (b & 0xFF)) {
+                    this.keys[position] = this.keys[position - 1];
+                    this.children[position] = this.children[position - 1];
+                    position--;
+                }
+                this.keys[position] = b;
+                this.children[position] = child;
+            }
+            this.count++;
+        }
+
+        void replaceChild(final Node child) {
+            byte b = child.edge;
+            if (this.index != null) {
+                this.children[this.index[b & 0xFF] - 1] = child;
+            } else if (this.keys == null) {
+                this.children[b & 0xFF] = child;
+            } else {
+                for (int i = 0; i < this.count; i++) {
+                    if (this.keys[i] == b) {
+                        this.children[i] = child;
+                        return;
+                    }
+                }
+            }
+        }
+
+        void removeChild(byte b) {
+            if (this.index != null) {
+                this.children[this.index[b & 0xFF] - 1] = null;
+                this.index[b & 0xFF] = 0;
+            } else if (this.keys == null) {
+                this.children[b & 0xFF] = null;
+            } else {
+                int position = 0;
+                while (this.keys[position] != b) {
+                    position++;
+                }
+                for (; position < this.count - 1; position++) {
+                    this.keys[position] = this.keys[position + 1];
+                    this.children[position] = this.children[position + 1];
+                }
+                this.children[this.count - 1] = null;
+            }
+            this.count--;
+            int capacity = this.children.length;
+            if ((capacity == 256 && this.count <= 40) || (capacity == 48 && this.count <= 12)
+                    || (capacity == 16 && this.count <= 3)) {
+                this.resize(this.count);
+            }
+        }
+
+        /**
+         * Returns the children in the order of their first byte
+         */
+        Node[] sortedChildren() {
+            Node[] sorted = new Node[this.count];
+            if (this.keys != null) {
+                System.arraycopy(this.children, 0, sorted, 0, this.count);
+                return sorted;
+            }
+            int i = 0;
+            for (int b = 0; b < 256 && i < this.count; b++) {
+                Node child = this.child((byte) b);
+                if (child != null) {
+                    sorted[i++] = child;
+                }
+            }
+            return sorted;
+        }
+
+        /**
+         * Changes the layout to the smallest one which holds the given number of children
+         */
+        private void resize(int needed) {
+            Node[] sorted = this.sortedChildren();
+            int capacity = needed <= 4 ? 4 : needed <= 16 ? 16 : needed <= 48 ? 48 : 256;
+            byte[] keys = null;
+            byte[] index = null;
+            Node[] children = new Node[capacity];
+            if (capacity <= 16) {
+                keys = new byte[capacity];
+                for (int i = 0; i < sorted.length; i++) {
+                    keys[i] = sorted[i].edge;
+                    children[i] = sorted[i];
+                }
+            } else if (capacity == 48) {
+                index = new byte[256];
+                for (int i = 0; i < sorted.length; i++) {
+                    index[sorted[i].edge & 0xFF] = (byte) (i + 1);
+                    children[i] = sorted[i];
+                }
+            } else {
+                for (Node child : sorted) {
+                    children[child.edge & 0xFF] = child;
+                }
+            }
+            this.children = children;
+            this.index = index;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * Row number -> node where its value ends, in pages of a fixed size. A page is allocated when a row number
+     * in it is used first, and released when its last row is removed. Only the array of the pages grows with
+     * the highest row number, by one reference per page
+     */
+    private static final class RowNodes {
+        private static final int PAGE_BITS = 12;
+        private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+        private Node[][] pages = new Node[16][];
+        // number of the nodes in the pages
+        private int[] counts = new int[16];
+
+        Node get(long row) {
+            long page = row >>> PAGE_BITS;
+            if (page >= this.pages.length || this.pages[(int) page] == null) {
+                return null;
+            }
+            return this.pages[(int) page][(int) row & PAGE_MASK];
+        }
+
+        Node put(long row, final Node node) {
+            if (row < 0 || (row >>> PAGE_BITS) >= Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid row number: " + row);
+            }
+            int page = (int) (row >>> PAGE_BITS);
+            if (page >= this.pages.length) {
+                int length = Math.max(page + 1, this.pages.length * 2);
+                this.counts = Arrays.copyOf(this.counts, length);
+                this.pages = Arrays.copyOf(this.pages, length);
+            }
+            if (this.pages[page] == null) {
+                this.pages[page] = new Node[PAGE_MASK + 1];
+            }
+            Node old = this.pages[page][(int) row & PAGE_MASK];
+            this.pages[page][(int) row & PAGE_MASK] = node;
+            if (old == null) {
+                this.counts[page]++;
+            }
+            return old;
+        }
+
+        Node remove(long row) {
+            Node old = this.get(row);
+            if (old != null) {
+                int page = (int) (row >>> PAGE_BITS);
+                this.pages[page][(int) row & PAGE_MASK] = null;
+                if (--this.counts[page] == 0) {
+                    this.pages[page] = null;
+                }
+            }
+            return old;
+        }
+
+        void clear() {
+            this.pages = new Node[16][];
+            this.counts = new int[16];
+        }
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private final Inner root = new Inner((byte) 0, EMPTY_BYTES, null);
+    // row number -> node where its value ends
+    private final RowNodes rowNodes = new RowNodes();
+    private volatile int size;
+
+    /**
+     * Returns the node where a value ends, null if the value is not in the tree
+     */
+    private Node find(final byte[] key) {
+        Node node = this.root;
+        int depth = 0;
+        // every node below the root takes at least one byte of the value
+        for (int steps = 0; steps <= key.length; steps++) {
+            byte[] prefix = node.prefix;
+            if (key.length - depth < prefix.length) {
+                return null;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (key[depth + i] != prefix[i]) {
+                    return null;
+                }
+            }
+            depth += prefix.length;
+            if (depth == key.length) {
+                return node.row >= 0 ? node : null;
+            }
+            if (!(node instanceof Inner)) {
+                return null;
+            }
+            node = ((Inner) node).child(key[depth]);
+            if (node == null) {
+                return null;
+            }
+            depth++;
+        }
+        return null;
+    }
+
+    private static byte[] slice(final byte[] bytes, int from, int to) {
+        return from == to ? EMPTY_BYTES : Arrays.copyOfRange(bytes, from, to);
+    }
+
+    @Override
+    public long get(final String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Node node = this.find(bytes);
+                long row = node != null ? node.row : -1;
+                if (this.lock.validate(stamp)) {
+                    return row;
+                }
+            } catch (RuntimeException e) {
+                // a modification ran meanwhile, the nodes were read half changed
+            }
+        }
+        stamp = this.lock.readLock();
+        try {
+            Node node = this.find(bytes);
+            return node != null ? node.row : -1;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String keyOf(long row) {
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                String key = this.readKeyOf(row);
+                if (this.lock.validate(stamp)) {
+                    return key;
+                }
+            } catch (RuntimeException e) {
+                // a modification ran meanwhile, the nodes were read half changed
+            }
+        }
+        stamp = this.lock.readLock();
+        try {
+            return this.readKeyOf(row);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    private String readKeyOf(long row) {
+        Node node = this.rowNodes.get(row);
+        if (node == null) {
+            return null;
+        }
+        int length = 0;
+        for (Node n = node; n != this.root; n = n.parent) {
+            length += 1 + n.prefix.length;
+        }
+        length += this.root.prefix.length;
+        byte[] key = new byte[length];
+        for (Node n = node; n != this.root; n = n.parent) {
+            length -= n.prefix.length;
+            System.arraycopy(n.prefix, 0, key, length, n.prefix.length);
+            key[--length] = n.edge;
+        }
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long put(final String key, long row) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long stamp = this.lock.writeLock();
+        try {
+            Node node = this.find(bytes);
+            long previous = -1;
+            if (node != null) {
+                previous = node.row;
+                if (previous == row) {
+                    return previous;
+                }
+                // the value moved to an other row, the old row does not have it any more
+                this.rowNodes.remove(previous);
+                node.row = row;
+            } else {
+                node = this.insert(bytes, row);
+                this.size++;
+            }
+            Node old = this.rowNodes.put(row, node);
+            // the row had an other value
+            if (old != null && old != node) {
+                this.removeNode(old);
+            }
+            return previous;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a value which is not in the tree
+     *
+     * @return The node where the value ends
+     */
+    private Node insert(final byte[] key, long row) {
+        Node node = this.root;
+        int depth = 0;
+        while (true) {
+            byte[] prefix = node.prefix;
+            int common = 0;
+            while (common < prefix.length && depth + common < key.length && prefix[common] == key[depth + common]) {
+                common++;
+            }
+            if (common < prefix.length) {
+                // the value leaves the path of the node: the common part becomes a new node above it
+                Inner branch = new Inner(node.edge, slice(prefix, 0, common), node.parent);
+                node.parent.replaceChild(branch);
+                node.edge = prefix[common];
+                node.prefix = slice(prefix, common + 1, prefix.length);
+                node.parent = branch;
+                branch.addChild(node);
+                if (depth + common == key.length) {
+                    branch.row = row;
+                    return branch;
+                }
+                Leaf leaf = new Leaf(key[depth + common], slice(key, depth + common + 1, key.length), branch, row);
+                branch.addChild(leaf);
+                return leaf;
+            }
+            depth += prefix.length;
+            if (depth == key.length) {
+                node.row = row;
+                return node;
+            }
+            Inner inner;
+            if (node instanceof Leaf) {
+                inner = this.toInner((Leaf) node);
+            } else {
+                inner = (Inner) node;
+            }
+            Node child = inner.child(key[depth]);
+            if (child == null) {
+                Leaf leaf = new Leaf(key[depth], slice(key, depth + 1, key.length), inner, row);
+                inner.addChild(leaf);
+                return leaf;
+            }
+            node = child;
+            depth++;
+        }
+    }
+
+    /**
+     * Replaces a leaf with an inner node, which can have children
+     */
+    private Inner toInner(final Leaf leaf) {
+        Inner inner = new Inner(leaf.edge, leaf.prefix, leaf.parent);
+        inner.row = leaf.row;
+        leaf.parent.replaceChild(inner);
+        if (inner.row >= 0) {
+            this.rowNodes.put(inner.row, inner);
+        }
+        return inner;
+    }
+
+    /**
+     * Removes the value which ends in a node, the nodes which are not needed any more are removed or merged
+     */
+    private void removeNode(final Node node) {
+        node.row = -1;
+        this.size--;
+        if (node instanceof Leaf) {
+            Inner parent = node.parent;
+            parent.removeChild(node.edge);
+            this.compact(parent);
+        } else {
+            this.compact((Inner) node);
+        }
+    }
+
+    private void compact(final Inner node) {
+        if (node == this.root) {
+            return;
+        }
+        Inner parent = node.parent;
+        if (node.count == 0) {
+            if (node.row >= 0) {
+                Leaf leaf = new Leaf(node.edge, node.prefix, parent, node.row);
+                parent.replaceChild(leaf);
+                this.rowNodes.put(leaf.row, leaf);
+            } else {
+                parent.removeChild(node.edge);
+                this.compact(parent);
+            }
+        } else if (node.count == 1 && node.row < 0) {
+            // the node only continues the path of its child
+            Node child = node.sortedChildren()[0];
+            byte[] prefix = new byte[node.prefix.length + 1 + child.prefix.length];
+            System.arraycopy(node.prefix, 0, prefix, 0, node.prefix.length);
+            prefix[node.prefix.length] = child.edge;
+            System.arraycopy(child.prefix, 0, prefix, node.prefix.length + 1, child.prefix.length);
+            child.prefix = prefix;
+            child.edge = node.edge;
+            child.parent = parent;
+            parent.replaceChild(child);
+        }
+    }
+
+    @Override
+    public void removeRow(long row) {
+        long stamp = this.lock.writeLock();
+        try {
+            Node node = this.rowNodes.remove(row);
+            if (node != null) {
+                this.removeNode(node);
+            }
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public <E extends Exception> void forEach(final KeyVisitor<E> visitor) throws E {
+        long stamp = this.lock.readLock();
+        try {
+            this.visit(this.root, new byte[64], 0, visitor);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Visits the values of a subtree in order
+     *
+     * @param path Bytes of the path above the node, it is grown when needed
+     * @param depth Length of the path
+     */
+    private <E extends Exception> byte[] visit(final Node node, byte[] path, int depth, final KeyVisitor<E> visitor)
+            throws E {
+        int end = depth + node.prefix.length + (node != this.root ? 1 : 0);
+        if (end > path.length) {
+            path = Arrays.copyOf(path, Math.max(end, path.length * 2));
+        }
+        if (node != this.root) {
+            path[depth++] = node.edge;
+        }
+        System.arraycopy(node.prefix, 0, path, depth, node.prefix.length);
+        if (node.row >= 0) {
+            visitor.visit(new String(path, 0, end, StandardCharsets.UTF_8), node.row);
+        }
+        if (node instanceof Inner) {
+            for (Node child : ((Inner) node).sortedChildren()) {
+                path = this.visit(child, path, end, visitor);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Returns a copy of the values, in the order of their UTF-8 bytes
+     *
+     * @return Set of Strings
+     */
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new LinkedHashSet<>();
+        this.forEach((key, row) -> keys.add(key));
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void clear() {
+        long stamp = this.lock.writeLock();
+        try {
+            this.root.keys = new byte[4];
+            this.root.index = null;
+            this.root.children = new Node[4];
+            this.root.count = 0;
+            this.root.row = -1;
+            this.rowNodes.clear();
+            this.size = 0;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+}
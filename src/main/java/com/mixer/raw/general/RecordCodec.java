@@ -0,0 +1,535 @@
+package com.mixer.raw.general;
+
+import com.mixer.exceptions.DBException;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes objects into row data and decodes row data into objects.
+ * A codec is built once per Schema / class pair when the table is opened. All reflective lookups (constructor,
+ * fields, field types) happen here, the encode/decode methods use cached MethodHandles, and int/long/double
+ * fields are read and written without boxing.
+ * The layout of the row data depends on the version of the table file, every supported version has its own
+ * subclass:
+ * <ul>
+ *     <li>0.1: LegacyRecordCodec, length prefixed fields</li>
+ *     <li>0.2: OffsetTableRecordCodec, fixed width primitives and an offset table for the strings</li>
+ *     <li>0.3: CompactRecordCodec, varint lengths and numbers, one byte for the row flags</li>
+ * </ul>
+ * The codec knows the row header too. The 0.1 and 0.2 formats use the same header: isTemporary (1 byte),
+ * isDeleted (1 byte), length of the row data (int).
+ * The version of a new table comes from the Schema, an existing table is always read with the version stored
+ * in its header.
+ */
+abstract class RecordCodec {
+
+    static final String LEGACY_FORMAT = "0.1";
+    static final String OFFSET_TABLE_FORMAT = "0.2";
+    static final String COMPACT_FORMAT = "0.3";
+
+    // the row header of every format fits into this number of bytes
+    static final int MAX_ROW_HEADER_LENGTH = 6;
+    // isTemporary (1 byte) + isDeleted (1 byte) + record length (4 bytes), used by the 0.1 and 0.2 formats
+    private static final int FIXED_ROW_HEADER_LENGTH = 6;
+
+    enum FieldType {
+        STRING, INT, LONG, DOUBLE
+    }
+
+    /**
+     * Accessors of one field of the stored class
+     */
+    static final class FieldCodec {
+        final String fieldName;
+        final FieldType type;
+        // (Object)T, T is Object for String fields
+        final MethodHandle getter;
+        // (Object, T)void, T is Object for String fields
+        final MethodHandle setter;
+
+        FieldCodec(final String fieldName, final FieldType type, final MethodHandle getter, final MethodHandle setter) {
+            this.fieldName = fieldName;
+            this.type = type;
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    /**
+     * Positions of the fields in a row buffer, filled by locate(). Kept by a RecordView until it is moved to
+     * an other row.
+     */
+    static final class FieldLocations {
+        // index of the field value in the row buffer, -1 if not located yet
+        final int[] offsets;
+        // number of bytes of the field value (for strings: without the length)
+        final int[] lengths;
+        // the fields before this position are located (used by the formats which can be read only sequentially)
+        int locatedPrefix;
+        // index of the row data in the row buffer (the length of the row header)
+        int dataStart;
+
+        FieldLocations(int fieldCount) {
+            this.offsets = new int[fieldCount];
+            this.lengths = new int[fieldCount];
+            this.reset(0);
+        }
+
+        void reset(int dataStart) {
+            Arrays.fill(this.offsets, -1);
+            this.locatedPrefix = 0;
+            this.dataStart = dataStart;
+        }
+    }
+
+    final Class<?> zClass;
+    // ()Object
+    final MethodHandle constructor;
+    final FieldCodec[] fields;
+    // field name -> position in the fields array
+    private final Map<String, Integer> fieldPositions;
+    // position of the indexed field in the fields array
+    final int indexedField;
+
+    RecordCodec(final Class<?> zClass, final MethodHandle constructor, final FieldCodec[] fields,
+                int indexedField) {
+        this.zClass = zClass;
+        this.constructor = constructor;
+        this.fields = fields;
+        this.indexedField = indexedField;
+        this.fieldPositions = new HashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            this.fieldPositions.put(fields[i].fieldName, i);
+        }
+    }
+
+    /**
+     * Creates a codec with the accessors of an other codec
+     */
+    RecordCodec(final RecordCodec other) {
+        this.zClass = other.zClass;
+        this.constructor = other.constructor;
+        this.fields = other.fields;
+        this.indexedField = other.indexedField;
+        this.fieldPositions = other.fieldPositions;
+    }
+
+    /**
+     * Builds the codec for the schema and the stored class. The row format is selected by the version of the
+     * schema (0.1 if the schema has no version).
+     *
+     * @param schema Schema of the table
+     * @param zClass Class of the stored object
+     * @return RecordCodec
+     * @throws DBException If the class does not match to the schema (missing field, unknown type, no default
+     * constructor), or the version is not supported
+     */
+    static RecordCodec create(final Schema schema, final Class<?> zClass) throws DBException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        RecordCodec codec;
+        try {
+            java.lang.reflect.Constructor<?> _constructor = zClass.getDeclaredConstructor();
+            _constructor.setAccessible(true);
+            MethodHandle constructor = lookup.unreflectConstructor(_constructor)
+                    .asType(MethodType.methodType(Object.class));
+
+            FieldCodec[] fields = new FieldCodec[schema.fields.size()];
+            int indexedField = -1;
+            int i = 0;
+            for (Field field : schema.fields) {
+                FieldType type = getFieldType(field);
+                java.lang.reflect.Field _field = zClass.getDeclaredField(field.fieldName);
+                _field.setAccessible(true);
+                Class<?> javaType = getJavaType(type);
+                if (_field.getType() != javaType) {
+                    throw new DBException(String.format("Field %s of %s is %s, but the schema says %s",
+                            field.fieldName, zClass.getName(), _field.getType().getName(), field.fieldType));
+                }
+                // references are accessed as Object, primitives with their own type (no boxing)
+                Class<?> handleType = javaType.isPrimitive() ? javaType : Object.class;
+                MethodHandle getter = lookup.unreflectGetter(_field)
+                        .asType(MethodType.methodType(handleType, Object.class));
+                MethodHandle setter = lookup.unreflectSetter(_field)
+                        .asType(MethodType.methodType(void.class, Object.class, handleType));
+                fields[i] = new FieldCodec(field.fieldName, type, getter, setter);
+                if (field.fieldName.equals(schema.indexBy)) {
+                    if (type != FieldType.STRING) {
+                        throw new DBException("Indexed field " + schema.indexBy + " must be a String field");
+                    }
+                    indexedField = i;
+                }
+                i++;
+            }
+            if (indexedField == -1) {
+                throw new DBException("Indexed field " + schema.indexBy + " is not in the schema");
+            }
+
+            codec = new LegacyRecordCodec(zClass, constructor, fields, indexedField);
+        } catch (NoSuchMethodException e) {
+            throw new DBException(zClass.getName() + " has no default constructor");
+        } catch (NoSuchFieldException e) {
+            throw new DBException(zClass.getName() + " has no field " + e.getMessage());
+        } catch (IllegalAccessException e) {
+            throw new DBException(e.getMessage());
+        }
+
+        return codec.forVersion(schema.version == null ? LEGACY_FORMAT : schema.version);
+    }
+
+    /**
+     * Returns a codec for the given version of the row format, with the same accessors
+     *
+     * @param version Version of the table file
+     * @return RecordCodec, this object if it already uses the given version
+     * @throws DBException If the version is not supported
+     */
+    RecordCodec forVersion(final String version) throws DBException {
+        if (version.equals(this.getVersion())) {
+            return this;
+        }
+        switch (version) {
+            case LEGACY_FORMAT:
+                return new LegacyRecordCodec(this);
+            case OFFSET_TABLE_FORMAT:
+                return new OffsetTableRecordCodec(this);
+            case COMPACT_FORMAT:
+                return new CompactRecordCodec(this);
+            default:
+                throw new DBException("Unsupported table version: " + version);
+        }
+    }
+
+    private static FieldType getFieldType(final Field field) throws DBException {
+        switch (field.fieldType.toLowerCase()) {
+            case "string":
+                return FieldType.STRING;
+            case "int":
+                return FieldType.INT;
+            case "long":
+                return FieldType.LONG;
+            case "double":
+                return FieldType.DOUBLE;
+            default:
+                throw new DBException("Unsupported field type: " + field.fieldType);
+        }
+    }
+
+    private static Class<?> getJavaType(final FieldType type) {
+        switch (type) {
+            case INT:
+                return int.class;
+            case LONG:
+                return long.class;
+            case DOUBLE:
+                return double.class;
+            default:
+                return String.class;
+        }
+    }
+
+    static int getFixedWidth(final FieldType type) {
+        return type == FieldType.INT ? 4 : 8;
+    }
+
+    /**
+     * Returns the version of the row format, which is stored in the header of the table file
+     *
+     * @return Version string
+     */
+    abstract String getVersion();
+
+    /**
+     * Creates a new object from the row data. The data is read from the current position of the buffer,
+     * which can be a heap buffer or a view of the memory mapped file. After the call the buffer is positioned
+     * after the row data.
+     *
+     * @param buffer ByteBuffer, positioned to the beginning of the row data
+     * @return The new object
+     * @throws IOException If the row data cannot be decoded
+     */
+    abstract Object decode(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Reads the value of the indexed field from the row data, without creating the object
+     *
+     * @param buffer ByteBuffer, positioned to the beginning of the row data
+     * @return Value of the indexed field
+     * @throws IOException If the row data cannot be decoded
+     */
+    abstract String decodeIndexedValue(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Encodes the object into the buffer, from the current position of the buffer. If the buffer is too
+     * small, the content is copied into a bigger buffer.
+     *
+     * @param object Object to encode
+     * @param buffer ByteBuffer
+     * @return The buffer which contains the encoded object - the given buffer, or a new, bigger one
+     * @throws DBException If a field is null or cannot be read
+     */
+    abstract ByteBuffer encode(Object object, ByteBuffer buffer) throws DBException;
+
+    /**
+     * Finds the position of a field in a row buffer, and stores it in the locations
+     *
+     * @param row Row buffer
+     * @param fieldPosition Position of the field in the schema
+     * @param locations Already found positions of the row, and the beginning of the row data
+     */
+    abstract void locate(ByteBuffer row, int fieldPosition, FieldLocations locations);
+
+    /**
+     * Returns the length of the row header which starts at the given index of the buffer
+     *
+     * @param buffer ByteBuffer which contains the row header
+     * @param offset Index of the row header
+     * @return Number of bytes
+     */
+    int getHeaderLength(final ByteBuffer buffer, int offset) {
+        return FIXED_ROW_HEADER_LENGTH;
+    }
+
+    /**
+     * Returns the length of the row data, stored in the row header
+     *
+     * @param buffer ByteBuffer which contains the row header
+     * @param offset Index of the row header
+     * @return Number of bytes
+     */
+    int getDataLength(final ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + 2);
+    }
+
+    boolean isTemporary(final ByteBuffer buffer, int offset) {
+        return buffer.get(offset) != 0;
+    }
+
+    boolean isDeleted(final ByteBuffer buffer, int offset) {
+        return buffer.get(offset + 1) != 0;
+    }
+
+    /**
+     * Writes the row header in front of the row data. The row data starts at MAX_ROW_HEADER_LENGTH and ends at
+     * the position of the buffer, the header is written right before it.
+     *
+     * @param buffer ByteBuffer, which contains the row data
+     * @param isTemporary Is the row temporary
+     * @param isDeleted Is the row deleted
+     * @return Index of the row header in the buffer, the row starts here
+     */
+    int writeHeader(final ByteBuffer buffer, boolean isTemporary, boolean isDeleted) {
+        int headerStart = MAX_ROW_HEADER_LENGTH - FIXED_ROW_HEADER_LENGTH;
+        buffer.put(headerStart, (byte) (isTemporary ? 1 : 0));
+        buffer.put(headerStart + 1, (byte) (isDeleted ? 1 : 0));
+        buffer.putInt(headerStart + 2, buffer.position() - MAX_ROW_HEADER_LENGTH);
+        return headerStart;
+    }
+
+    /**
+     * Returns the bytes which have to be written to the beginning of a row to change its flags
+     *
+     * @param isTemporary Is the row temporary
+     * @param isDeleted Is the row deleted
+     * @return ByteBuffer, ready to write
+     */
+    ByteBuffer encodeFlags(boolean isTemporary, boolean isDeleted) {
+        ByteBuffer flags = ByteBuffer.allocate(2);
+        flags.put((byte) (isTemporary ? 1 : 0));
+        flags.put((byte) (isDeleted ? 1 : 0));
+        flags.flip();
+        return flags;
+    }
+
+    Class<?> getZClass() {
+        return this.zClass;
+    }
+
+    int getFieldCount() {
+        return this.fields.length;
+    }
+
+    /**
+     * Returns the position of the field in the schema (0: first field)
+     *
+     * @param fieldName Name of the field
+     * @return Position of the field, or -1 if the schema has no such field
+     */
+    int getFieldPosition(final String fieldName) {
+        Integer position = this.fieldPositions.get(fieldName);
+        return position == null ? -1 : position;
+    }
+
+    FieldType getFieldType(int fieldPosition) {
+        return this.fields[fieldPosition].type;
+    }
+
+    /**
+     * Returns the value of the indexed field of the object
+     *
+     * @param object Stored object
+     * @return Value of the indexed field
+     * @throws DBException If the value cannot be read
+     */
+    String getIndexedValue(final Object object) throws DBException {
+        try {
+            Object value = this.fields[this.indexedField].getter.invokeExact(object);
+            return (String) value;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new DBException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the index of the field value in the row buffer, the field is located if it is needed
+     */
+    int getOffset(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        if (locations.offsets[fieldPosition] == -1) {
+            this.locate(row, fieldPosition, locations);
+        }
+        return locations.offsets[fieldPosition];
+    }
+
+    String readString(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        int offset = this.getOffset(row, fieldPosition, locations);
+        return readString(row, offset, locations.lengths[fieldPosition]);
+    }
+
+    int readInt(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        return row.getInt(this.getOffset(row, fieldPosition, locations));
+    }
+
+    long readLong(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        return row.getLong(this.getOffset(row, fieldPosition, locations));
+    }
+
+    double readDouble(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        return row.getDouble(this.getOffset(row, fieldPosition, locations));
+    }
+
+    /**
+     * Reads a value from a row buffer, independently from its type (boxed for primitive fields)
+     */
+    Object readValue(final ByteBuffer row, int fieldPosition, final FieldLocations locations) {
+        switch (this.fields[fieldPosition].type) {
+            case STRING:
+                return this.readString(row, fieldPosition, locations);
+            case INT:
+                return this.readInt(row, fieldPosition, locations);
+            case LONG:
+                return this.readLong(row, fieldPosition, locations);
+            default:
+                return this.readDouble(row, fieldPosition, locations);
+        }
+    }
+
+    /**
+     * Reads a UTF-8 string from the current position of the buffer. Heap buffers are decoded without an
+     * additional copy.
+     */
+    static String readString(final ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * Reads a UTF-8 string from the given index of the buffer, without changing the position of the buffer
+     */
+    static String readString(final ByteBuffer buffer, int offset, int length) {
+        if (length < 0 || offset + length > buffer.limit()) {
+            throw new BufferUnderflowException();
+        }
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the length and the UTF-8 bytes of the string
+     */
+    static ByteBuffer writeString(final String value, ByteBuffer buffer) {
+        buffer = ensureRemaining(buffer, 4);
+        int lengthIndex = buffer.position();
+        buffer.putInt(0);
+        buffer = writeStringBytes(value, buffer);
+        buffer.putInt(lengthIndex, buffer.position() - lengthIndex - 4);
+        return buffer;
+    }
+
+    /**
+     * Writes the UTF-8 bytes of the string. ASCII strings are written directly into the buffer, without
+     * creating a temporary byte array.
+     */
+    static ByteBuffer writeStringBytes(final String value, ByteBuffer buffer) {
+        int length = value.length();
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+        }
+
+        if (ascii) {
+            buffer = ensureRemaining(buffer, length);
+            for (int i = 0; i < length; i++) {
+                buffer.put((byte) value.charAt(i));
+            }
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer = ensureRemaining(buffer, bytes.length);
+            buffer.put(bytes);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer which has at least the given number of free bytes. If the buffer is too small, then a
+     * new buffer is allocated (with the same type: direct or heap), and the already written data is copied.
+     * The data keeps its index, so the absolute positions remain valid in the new buffer.
+     *
+     * @param buffer ByteBuffer
+     * @param bytes Number of bytes we would like to write into the buffer
+     * @return ByteBuffer
+     */
+    static ByteBuffer ensureRemaining(final ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        int capacity = Math.max(buffer.capacity(), 16);
+        while (capacity - buffer.position() < bytes) {
+            capacity *= 2;
+        }
+        ByteBuffer newBuffer = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        return newBuffer;
+    }
+}
@@ -0,0 +1,217 @@
+package com.mixer.raw.general;
+
+import com.mixer.exceptions.DBException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Lightweight view of a stored row. The view points to the raw bytes of the row (a read buffer, or the memory
+ * mapped file), and the fields are decoded only when they are requested. Nothing is decoded in advance, so
+ * reading one field of a row does not create the whole object.
+ * The same view can be moved from row to row during a scan: it reuses its read buffer, and the positions of the
+ * fields are found lazily for every row (how expensive it is depends on the row format of the table).
+ * A view is not thread safe, and it is valid only until it is moved to another row.
+ * A view of a Snapshot reads the rows as of the version of the snapshot.
+ *
+ * @see MxrTable#readView(long)
+ * @see MxrTable#scan(RecordVisitor)
+ */
+public final class RecordView {
+
+    private final GenericBaseFileHandler fileHandler;
+    // the rows are read from this snapshot, if it is not null
+    private final Snapshot snapshot;
+    private final RecordCodec codec;
+    // the current row, the row header starts at index 0
+    private ByteBuffer row;
+    // buffer which can be reused for the next row (in FILE storage mode)
+    private ByteBuffer readBuffer;
+    private long rowNumber = -1;
+    private long bytePosition = -1;
+    // positions of the already requested fields of the current row
+    private final RecordCodec.FieldLocations locations;
+
+    RecordView(final GenericBaseFileHandler fileHandler) {
+        this(fileHandler, null);
+    }
+
+    RecordView(final GenericBaseFileHandler fileHandler, final Snapshot snapshot) {
+        this.fileHandler = fileHandler;
+        this.snapshot = snapshot;
+        this.codec = fileHandler.codec;
+        this.locations = new RecordCodec.FieldLocations(this.codec.getFieldCount());
+    }
+
+    /**
+     * Moves the view to a row of the table
+     *
+     * @param rowNumber Number of the row
+     * @return false if the row does not exist
+     * @throws IOException
+     */
+    boolean moveTo(long rowNumber) throws IOException {
+        if (this.snapshot != null) {
+            long position = this.snapshot.getBytePosition(rowNumber);
+            if (position == -1) {
+                return false;
+            }
+            this.moveToPosition(position);
+            this.rowNumber = rowNumber;
+            return true;
+        }
+        // the table is not locked, the row is read under the lock of the row
+        if (this.fileHandler.readByRowNumber(rowNumber, this::moveToPosition) == null) {
+            return false;
+        }
+        this.rowNumber = rowNumber;
+        return true;
+    }
+
+    /**
+     * Moves the view to the row stored at the given file position. The row number of the view is unknown (-1)
+     *
+     * @param bytePosition File position of the row
+     * @return Length of the row, including the row header
+     * @throws IOException
+     */
+    int moveToPosition(long bytePosition) throws IOException {
+        this.row = this.snapshot != null ? this.snapshot.readRow(bytePosition, this.readBuffer)
+                : this.fileHandler.readRowLocked(bytePosition, this.readBuffer);
+        if (this.row.hasArray()) {
+            this.readBuffer = this.row;
+        }
+        this.bytePosition = bytePosition;
+        this.rowNumber = -1;
+        this.locations.reset(this.codec.getHeaderLength(this.row, 0));
+        return this.row.limit();
+    }
+
+    /**
+     * Returns the row data (without the row header) as a read only buffer
+     */
+    ByteBuffer getRowData() {
+        ByteBuffer data = this.row.asReadOnlyBuffer();
+        data.position(this.locations.dataStart);
+        return data.slice();
+    }
+
+    long getBytePosition() {
+        return this.bytePosition;
+    }
+
+    /**
+     * Returns the number of the row, or -1 if the view was not moved by row number
+     *
+     * @return Row number
+     */
+    public long getRowNumber() {
+        return this.rowNumber;
+    }
+
+    public boolean isTemporary() {
+        return this.codec.isTemporary(this.row, 0);
+    }
+
+    public boolean isDeleted() {
+        return this.codec.isDeleted(this.row, 0);
+    }
+
+    /**
+     * Returns whether the schema of the table has the given field
+     *
+     * @param fieldName Name of the field
+     * @return true if the field exists
+     */
+    public boolean hasField(final String fieldName) {
+        return this.codec.getFieldPosition(fieldName) != -1;
+    }
+
+    public String getString(final String fieldName) throws DBException {
+        int fieldPosition = this.getFieldPosition(fieldName, RecordCodec.FieldType.STRING);
+        try {
+            return this.codec.readString(this.row, fieldPosition, this.locations);
+        } catch (RuntimeException e) {
+            throw new DBException("Row data is shorter than the schema requires");
+        }
+    }
+
+    public int getInt(final String fieldName) throws DBException {
+        int fieldPosition = this.getFieldPosition(fieldName, RecordCodec.FieldType.INT);
+        try {
+            return this.codec.readInt(this.row, fieldPosition, this.locations);
+        } catch (RuntimeException e) {
+            throw new DBException("Row data is shorter than the schema requires");
+        }
+    }
+
+    public long getLong(final String fieldName) throws DBException {
+        int fieldPosition = this.getFieldPosition(fieldName, RecordCodec.FieldType.LONG);
+        try {
+            return this.codec.readLong(this.row, fieldPosition, this.locations);
+        } catch (RuntimeException e) {
+            throw new DBException("Row data is shorter than the schema requires");
+        }
+    }
+
+    public double getDouble(final String fieldName) throws DBException {
+        int fieldPosition = this.getFieldPosition(fieldName, RecordCodec.FieldType.DOUBLE);
+        try {
+            return this.codec.readDouble(this.row, fieldPosition, this.locations);
+        } catch (RuntimeException e) {
+            throw new DBException("Row data is shorter than the schema requires");
+        }
+    }
+
+    /**
+     * Returns the value of a field, independently from its type (boxed for primitive fields)
+     *
+     * @param fieldName Name of the field
+     * @return Value of the field
+     * @throws DBException If the schema has no such field
+     */
+    public Object getValue(final String fieldName) throws DBException {
+        int fieldPosition = this.getFieldPosition(fieldName);
+        try {
+            return this.codec.readValue(this.row, fieldPosition, this.locations);
+        } catch (RuntimeException e) {
+            throw new DBException("Row data is shorter than the schema requires");
+        }
+    }
+
+    /**
+     * Creates the stored object from the row
+     *
+     * @return The object
+     * @throws DBException
+     */
+    public Object toObject() throws DBException {
+        try {
+            ByteBuffer data = this.row.duplicate();
+            data.position(this.locations.dataStart);
+            return this.codec.decode(data);
+        } catch (IOException e) {
+            throw new DBException(e.getMessage());
+        }
+    }
+
+    private int getFieldPosition(final String fieldName) throws DBException {
+        if (this.row == null) {
+            throw new DBException("The view does not point to a row");
+        }
+        int fieldPosition = this.codec.getFieldPosition(fieldName);
+        if (fieldPosition == -1) {
+            throw new DBException("No such field in the schema: " + fieldName);
+        }
+        return fieldPosition;
+    }
+
+    private int getFieldPosition(final String fieldName, final RecordCodec.FieldType type) throws DBException {
+        int fieldPosition = this.getFieldPosition(fieldName);
+        if (this.codec.getFieldType(fieldPosition) != type) {
+            throw new DBException(String.format("Field %s is %s, not %s", fieldName,
+                    this.codec.getFieldType(fieldPosition), type));
+        }
+        return fieldPosition;
+    }
+}
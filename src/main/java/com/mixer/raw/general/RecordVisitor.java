@@ -0,0 +1,21 @@
+package com.mixer.raw.general;
+
+import com.mixer.exceptions.DBException;
+
+/**
+ * Callback of the table scans
+ *
+ * @see MxrTable#scan(RecordVisitor)
+ */
+@FunctionalInterface
+public interface RecordVisitor {
+
+    /**
+     * Called for every visited row. The view is reused for the next row, it must not be stored.
+     *
+     * @param view RecordView which points to the current row
+     * @return true to continue the scan, false to stop it
+     * @throws DBException If the visitor throws an exception, the scan is stopped
+     */
+    boolean visit(RecordView view) throws DBException;
+}
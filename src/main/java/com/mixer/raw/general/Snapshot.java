@@ -0,0 +1,110 @@
+package com.mixer.raw.general;
+
+import com.mixer.exceptions.DBException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A consistent view of a table as of a committed version (multi-version concurrency control). The snapshot sees
+ * the rows which were committed when it was opened, the later commits are not visible for it. The readers of a
+ * snapshot hold the locks of the file handler only while they read a row, so a long scan does not block the
+ * writers: a commit does not wait for the snapshots, it keeps the old versions of the rows it changes (see
+ * VersionStore and GenericIndex) until the snapshots which can read them are closed.
+ * The compaction does not switch to the compacted file while a snapshot is open. A snapshot must be closed.
+ *
+ * @see GenericBaseFileHandler#openSnapshot()
+ */
+final class Snapshot implements AutoCloseable {
+
+    private final GenericBaseFileHandler fileHandler;
+    private final long version;
+    // end of the file when the snapshot was opened
+    private final long fileLength;
+    private boolean closed = false;
+
+    Snapshot(final GenericBaseFileHandler fileHandler, long version, long fileLength) {
+        this.fileHandler = fileHandler;
+        this.version = version;
+        this.fileLength = fileLength;
+    }
+
+    long getVersion() {
+        return this.version;
+    }
+
+    long getFileLength() {
+        return this.fileLength;
+    }
+
+    /**
+     * Returns the byte position of a row, as of the version of the snapshot
+     *
+     * @param rowNumber Number of the row
+     * @return Position of the row, -1 if the snapshot does not see it
+     */
+    long getBytePosition(long rowNumber) {
+        return this.fileHandler.index.getBytePosition(rowNumber, this.version);
+    }
+
+    /**
+     * Returns the row number of an indexed value, as of the version of the snapshot
+     *
+     * @param indexedValue Value of the indexed field
+     * @return Row number, -1 if the snapshot does not see it
+     */
+    long getRowNumberByIndex(final String indexedValue) {
+        return this.fileHandler.index.getRowNumberByIndex(indexedValue, this.version);
+    }
+
+    /**
+     * Returns the indexed values of the rows, as of the version of the snapshot
+     *
+     * @return Indexed value -> row number
+     */
+    Map<String, Long> getIndexedValues() {
+        return this.fileHandler.index.getIndexedValues(this.version);
+    }
+
+    /**
+     * Reads a whole row (header and data) as the snapshot sees it
+     *
+     * @param bytePosition Position of the row
+     * @param reuse Buffer which can be used for the read, can be null
+     * @return ByteBuffer, the row header starts at index 0
+     * @throws IOException
+     */
+    ByteBuffer readRow(long bytePosition, final ByteBuffer reuse) throws IOException {
+        return this.fileHandler.readRowVersion(bytePosition, this.version, reuse);
+    }
+
+    /**
+     * Reads the object of a row, as of the version of the snapshot
+     *
+     * @param rowNumber Number of the row
+     * @return The object, or null if the snapshot does not see the row
+     * @throws DBException
+     */
+    Object readObject(long rowNumber) throws DBException {
+        long position = this.getBytePosition(rowNumber);
+        if (position == -1) {
+            return null;
+        }
+        try {
+            ByteBuffer row = this.readRow(position, null);
+            row.position(this.fileHandler.codec.getHeaderLength(row, 0));
+            return this.fileHandler.codec.decode(row);
+        } catch (IOException ioe) {
+            throw new DBException(ioe.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!this.closed) {
+            this.closed = true;
+            this.fileHandler.closeSnapshot(this);
+        }
+    }
+}
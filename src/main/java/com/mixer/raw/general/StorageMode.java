@@ -0,0 +1,14 @@
+package com.mixer.raw.general;
+
+/**
+ * How the rows of a table are read from the table file.
+ * <ul>
+ *     <li>FILE: positional reads on the FileChannel of the table file</li>
+ *     <li>MMAP: the table file is memory mapped, rows are decoded straight from the mapping. Useful when the
+ *     table is read heavy and fits in the page cache</li>
+ * </ul>
+ */
+public enum StorageMode {
+    FILE,
+    MMAP
+}
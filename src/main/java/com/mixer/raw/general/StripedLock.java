@@ -0,0 +1,45 @@
+package com.mixer.raw.general;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed number of read-write locks, every key belongs to one of them. The operations on different keys rarely
+ * wait for each other, and the locks do not take more memory when the number of keys grows.
+ * Used for the rows of a table file, by byte position: a row is read under the read lock of its stripe, and it is
+ * overwritten in place under the write lock.
+ */
+final class StripedLock {
+
+    private final ReadWriteLock[] stripes;
+    private final int mask;
+
+    /**
+     * Constructor
+     *
+     * @param stripes Number of the locks, it is rounded up to a power of two
+     */
+    StripedLock(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.mask = size - 1;
+    }
+
+    Lock readLock(long key) {
+        return this.stripes[this.stripe(key)].readLock();
+    }
+
+    Lock writeLock(long key) {
+        return this.stripes[this.stripe(key)].writeLock();
+    }
+
+    private int stripe(long key) {
+        // the byte positions are not spread evenly, the bits are mixed before the stripe is selected
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & this.mask;
+    }
+}
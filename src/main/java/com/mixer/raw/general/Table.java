@@ -6,6 +6,7 @@ import com.mixer.query.sql.ResultSet;
 import com.mixer.util.DebugRowInfo;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 
 public interface Table {
@@ -21,7 +22,23 @@ public interface Table {
     void add(Object object) throws DuplicateNameException, DBException;
 
     /**
-     * Delete object by rownNumber
+     * Store many objects at once, outside of the transactions. The rows are written into the table file
+     * in big sequential blocks as committed rows, and they are added to the index at the end. Either every
+     * object is stored or none of them (if an error occurs, the rows written so far are deleted). A crash
+     * during the load can leave the rows written so far in the table.
+     *
+     * @param objects Objects to store
+     * @return Number of stored objects
+     * @throws DuplicateNameException If a value of the indexed field exists in the table or appears twice among
+     * the objects. Nothing is stored then
+     * @throws DBException If there is an error during meanwhile we try to save the
+     * objects, a DBException is thrown
+     */
+    long bulkLoad(Iterator<?> objects) throws DuplicateNameException, DBException;
+
+    /**
+     * Delete object by rownNumber. The other rows keep their numbers, and the number of the deleted row is not
+     * given to an other row while the table is open
      * 
      * @param rowNumber Number of row we would like to delete
      * @throws DBException If there is an error during meanwhile we try to delete the
@@ -63,6 +80,28 @@ public interface Table {
      */
     Object read(long rowNumber) throws DBException;
 
+    /**
+     * Read a view of a specific row. The fields of the row are decoded only when they are requested
+     * 
+     * @param rowNumber Number of the row we would like to read
+     * @return RecordView of the row, or null if the row does not exist
+     * 
+     * @throws DBException If there is an error during meanwhile we try to read the
+	 * row, a DBException is thrown
+     */
+    RecordView readView(long rowNumber) throws DBException;
+
+    /**
+     * Visit all rows of the table in row number order. The same RecordView is used for all rows,
+     * so the visitor can read the needed fields without creating the stored objects.
+     * 
+     * @param visitor RecordVisitor, it can stop the scan
+     * 
+     * @throws DBException If there is an error during meanwhile we try to read the
+	 * rows, a DBException is thrown
+     */
+    void scan(RecordVisitor visitor) throws DBException;
+
     /**
      * Search object by a specific value
      * 
@@ -98,13 +137,66 @@ public interface Table {
     List<Object> searchWithRegexp(final String regexp) throws DBException;
 
     /**
-     * Begin transaction
+     * Search object by a specific value, with the version stamp of its row. The stamp can be used for an
+     * optimistic read-modify-write: updateIfVersion() and deleteIfVersion() fail if the row was changed since
+     *
+     * @param indexedFieldName Value of the indexed field
+     * @return The object and its version stamp, or null if there is no such row
+     *
+     * @throws DBException If there is an error during the read, a DBException is thrown
+     */
+    VersionedRow readVersioned(final String indexedFieldName) throws DBException;
+
+    /**
+     * Updates the row with the given indexed value in its own transaction, if the row still has the given
+     * version stamp. The stamp is validated by the commit, no lock is held before it, so a conflicting commit
+     * is detected instead of waited for. The transaction of the calling thread is not used.
+     *
+     * @param indexedFieldName Value of the indexed field
+     * @param expectedVersion Version stamp of readVersioned()
+     * @param object The new object
+     * @return false if the row does not exist, or an other commit changed it (a new readVersioned() and a retry
+     * can follow)
+     *
+     * @throws DuplicateNameException If the new indexed value exists
+     * @throws DBException If there is an error during the update, a DBException is thrown
+     */
+    boolean updateIfVersion(final String indexedFieldName, long expectedVersion, final Object object)
+            throws DuplicateNameException, DBException;
+
+    /**
+     * Deletes the row with the given indexed value in its own transaction, if the row still has the given
+     * version stamp. See updateIfVersion()
+     *
+     * @param indexedFieldName Value of the indexed field
+     * @param expectedVersion Version stamp of readVersioned()
+     * @return false if the row does not exist, or an other commit changed it
+     *
+     * @throws DBException If there is an error during the delete, a DBException is thrown
+     */
+    boolean deleteIfVersion(final String indexedFieldName, long expectedVersion) throws DBException;
+
+    /**
+     * Begin transaction. The transaction is bound to the current thread, the add, update, delete, commit and
+     * rollback methods of the table use the transaction of the calling thread.
      *
      */
     void beginTransaction();
 
     /**
-     * Commits the transaction associated with the thread
+     * Begins a transaction which is not bound to the thread. The transactions of begin() and of
+     * beginTransaction() are independent of each other.
+     *
+     * @return The new transaction
+     * @see TableTransaction
+     */
+    TableTransaction begin();
+
+    /**
+     * Commits the transaction associated with the thread. The writes of the transaction are staged in memory
+     * until now, they are written by the commit. If an other transaction committed a conflicting change
+     * meanwhile (the same row deleted or updated, the same indexed value added), the commit fails and the
+     * transaction is discarded.
      * 
      * @throws DBException If there is an error during during commit, a DBException is thrown
      */    
@@ -160,6 +252,15 @@ public interface Table {
      * @throws DBException If there is an error during defragmeented, a DBException is thrown
      */
     void defragmentDatabase() throws IOException, DuplicateNameException, DBException;
+
+    /**
+     * Compact the table file: the deleted rows are removed, while the table can be used by other threads.
+     * Unlike defragmentDatabase(), the rows keep their row numbers. A compaction is also started in the
+     * background, when the deleted rows take a big part of the table file (see TableSettings)
+     *
+     * @throws DBException If the table cannot be compacted. The table file is not changed then
+     */
+    void compact() throws DBException;
     
     /**
      * Run SQL query
@@ -0,0 +1,243 @@
+package com.mixer.raw.general;
+
+import com.mixer.dbserver.DBServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites the table file without the deleted rows, while the table stays usable. The rows keep their row
+ * numbers, only their positions change.
+ * <ol>
+ *     <li>copy(): the rows before the end of the file are copied into a new file (tablename.compact) chunk by
+ *     chunk. Only the readLock of the file handler is held, and only while a chunk is copied. Meanwhile the
+ *     file handler collects the positions of the rows which are modified in place.</li>
+ *     <li>swap(): under the writeLock, the modified rows are copied again and the rows written after the start
+ *     of the copy (the tail) are appended. Then the new file is renamed to the table file, and the file handler
+ *     and the index switch to it.</li>
+ * </ol>
+ * Every row is copied as it is (header, flags, free space), except the deleted rows which are not part of a
+ * running transaction. The slots keep their length, so a modified row can be copied over its earlier copy.
+ */
+final class TableCompactor {
+
+    private static final String FILE_EXTENSION = ".compact";
+    // the readLock is released after this number of bytes, so the writers do not have to wait long
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final GenericBaseFileHandler fileHandler;
+    private final File compactedFile;
+    private RandomAccessFile compactedRaf;
+    private FileChannel compactedChannel;
+    private final ByteBuffer outputBuffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    // end of the new file
+    private long compactedTail;
+    // old position -> new position of the copied rows
+    private final Map<Long, Long> newPositions = new HashMap<>();
+    // slots of the new file: the rows deleted after they were copied
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap();
+    // end of the table file when the copy started, the rows after it are copied by swap()
+    private long copyEnd;
+    private volatile boolean cancelled = false;
+
+    TableCompactor(final GenericBaseFileHandler fileHandler) {
+        this.fileHandler = fileHandler;
+        this.compactedFile = new File(fileHandler.getTableName() + FILE_EXTENSION);
+    }
+
+    /**
+     * Stops the compaction at the next chunk. The table file is not changed.
+     */
+    void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * First phase: copies the rows, which exist at the beginning of the copy.
+     *
+     * @return false if the compaction was cancelled
+     * @throws IOException
+     */
+    boolean copy() throws IOException {
+        DBServer.LOGGER.info("[TableCompactor] Copying the rows of " + this.fileHandler.getTableName());
+        this.compactedRaf = new RandomAccessFile(this.compactedFile, "rw");
+        this.compactedRaf.setLength(0);
+        this.compactedChannel = this.compactedRaf.getChannel();
+
+        long position;
+        this.fileHandler.writeLock.lock();
+        try {
+            this.fileHandler.startTrackingModifications();
+            this.copyEnd = this.fileHandler.getFileLength();
+            // file header (version)
+            ByteBuffer header = this.fileHandler.readBlock(0, GenericBaseFileHandler.HEADER_INFO_SPACE,
+                    ByteBuffer.allocate(GenericBaseFileHandler.HEADER_INFO_SPACE));
+            this.append(header);
+            position = GenericBaseFileHandler.HEADER_INFO_SPACE;
+        } catch (IOException | RuntimeException e) {
+            this.abort();
+            throw e;
+        } finally {
+            this.fileHandler.writeLock.unlock();
+        }
+
+        try {
+            ByteBuffer readBuffer = null;
+            while (position < this.copyEnd) {
+                if (this.cancelled) {
+                    this.abort();
+                    return false;
+                }
+                long chunkEnd = Math.min(position + CHUNK_SIZE, this.copyEnd);
+                this.fileHandler.readLock.lock();
+                try {
+                    while (position < chunkEnd) {
+                        ByteBuffer row = this.fileHandler.readRowBuffer(position, readBuffer);
+                        if (row.hasArray()) {
+                            readBuffer = row;
+                        }
+                        int rowLength = row.limit();
+                        if (!this.isGarbage(row)) {
+                            this.newPositions.put(position, this.append(row));
+                        }
+                        position += rowLength;
+                    }
+                } finally {
+                    this.fileHandler.readLock.unlock();
+                }
+            }
+            this.flush();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            this.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Second phase: copies the rows modified since the beginning of the copy and the new rows, then the file
+     * handler switches to the new file. Must be called under the writeLock of the file handler, after copy().
+     *
+     * @return Old position -> new position of the rows
+     * @throws IOException
+     */
+    Map<Long, Long> swap() throws IOException {
+        DBServer.LOGGER.info("[TableCompactor] Swapping the table file of " + this.fileHandler.getTableName());
+        try {
+            List<Long> modifiedRows = new ArrayList<>(this.fileHandler.stopTrackingModifications());
+            Collections.sort(modifiedRows);
+            for (long position : modifiedRows) {
+                // the rows after copyEnd are copied with the tail
+                if (position >= this.copyEnd) {
+                    continue;
+                }
+                ByteBuffer row = this.fileHandler.readRowBuffer(position);
+                Long newPosition = this.newPositions.get(position);
+                if (newPosition != null) {
+                    // the slot has the same length in both files
+                    this.flush();
+                    writeFully(this.compactedChannel, row.duplicate(), newPosition);
+                    if (this.isGarbage(row)) {
+                        this.freeSpace.add(newPosition, this.fileHandler.codec.getDataLength(row, 0));
+                    }
+                } else if (!this.isGarbage(row)) {
+                    this.newPositions.put(position, this.append(row));
+                }
+            }
+
+            long position = this.copyEnd;
+            while (position < this.fileHandler.getFileLength()) {
+                ByteBuffer row = this.fileHandler.readRowBuffer(position);
+                int rowLength = row.limit();
+                if (!this.isGarbage(row)) {
+                    this.newPositions.put(position, this.append(row));
+                }
+                position += rowLength;
+            }
+            this.flush();
+
+            this.fileHandler.switchToCompactedFile(this.compactedFile, this.compactedRaf, this.freeSpace,
+                    this.newPositions);
+            DBServer.LOGGER.info("[TableCompactor] Table file swapped, length: " + this.compactedTail);
+            return this.newPositions;
+        } catch (IOException | RuntimeException e) {
+            this.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the new file. The table file is not changed.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    void abort() {
+        this.fileHandler.writeLock.lock();
+        try {
+            this.fileHandler.stopTrackingModifications();
+        } finally {
+            this.fileHandler.writeLock.unlock();
+        }
+        try {
+            if (this.compactedRaf != null) {
+                this.compactedRaf.close();
+            }
+        } catch (IOException e) {
+            DBServer.LOGGER.warning("[TableCompactor] " + e.getMessage());
+        }
+        this.compactedFile.delete();
+    }
+
+    /**
+     * A row is garbage if it is deleted, and the deletion is not part of a running transaction
+     */
+    private boolean isGarbage(final ByteBuffer row) {
+        RecordCodec codec = this.fileHandler.codec;
+        return codec.isDeleted(row, 0) && !codec.isTemporary(row, 0);
+    }
+
+    /**
+     * Appends a whole row (from index 0 to the limit) to the new file
+     *
+     * @return Position of the row in the new file
+     */
+    private long append(final ByteBuffer row) throws IOException {
+        ByteBuffer source = row.duplicate();
+        source.position(0);
+        long position = this.compactedTail;
+        if (source.remaining() > this.outputBuffer.remaining()) {
+            this.flush();
+        }
+        if (source.remaining() > this.outputBuffer.remaining()) {
+            writeFully(this.compactedChannel, source, position);
+        } else {
+            this.outputBuffer.put(source);
+        }
+        this.compactedTail += row.limit();
+        return position;
+    }
+
+    /**
+     * Writes the buffered rows into the new file
+     */
+    private void flush() throws IOException {
+        this.outputBuffer.flip();
+        long position = this.compactedTail - this.outputBuffer.remaining();
+        writeFully(this.compactedChannel, this.outputBuffer, position);
+        this.outputBuffer.clear();
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.mixer.raw.general;
+
+import com.mixer.exceptions.DBException;
+
+import java.util.Properties;
+
+/**
+ * Settings of a table. The settings are read from the config.properties file. Every setting can be given
+ * globally (for example STORAGE_MODE = MMAP) or for one table only, prefixed with the name of the table
+ * (for example persons.db.STORAGE_MODE = MMAP). The table specific value wins.
+ */
+public final class TableSettings {
+
+    static final String STORAGE_MODE = "STORAGE_MODE";
+    static final String INDEX_MODE = "INDEX_MODE";
+    static final String CHECKPOINT_INTERVAL = "CHECKPOINT_INTERVAL";
+    static final String ROW_SLACK_PERCENT = "ROW_SLACK_PERCENT";
+    static final String COMPACTION_THRESHOLD_PERCENT = "COMPACTION_THRESHOLD_PERCENT";
+    static final String COMPACTION_MIN_FREE_BYTES = "COMPACTION_MIN_FREE_BYTES";
+    static final String DURABILITY = "DURABILITY";
+    static final String DURABILITY_INTERVAL_MS = "DURABILITY_INTERVAL_MS";
+    static final String DURABILITY_BYTES = "DURABILITY_BYTES";
+    static final String GROUP_COMMIT_WINDOW_MICROS = "GROUP_COMMIT_WINDOW_MICROS";
+
+    private StorageMode storageMode = StorageMode.FILE;
+    private IndexMode indexMode = IndexMode.HEAP;
+    // number of commits after which a new index checkpoint is written. 0 means only when the table is closed
+    private int checkpointInterval = 1000;
+    // free space reserved at the end of every new row, in percent of the row data. A row can be updated in place
+    // as long as the new data fits into the row data and the free space
+    private int rowSlackPercent = 0;
+    // a compaction starts in the background, when the slots of the deleted rows take this percent of the table
+    // file, and they are at least compactionMinFreeBytes. 0 means no automatic compaction
+    private int compactionThresholdPercent = 50;
+    private long compactionMinFreeBytes = 1 << 20;
+    // when the commit log is forced to the disk
+    private DurabilityMode durabilityMode = DurabilityMode.COMMIT;
+    // period of the background flusher in INTERVAL mode
+    private int durabilityIntervalMillis = 100;
+    // bytes of commits which are not forced yet, before the background flusher forces the log in BYTES mode
+    private int durabilityBytes = 1 << 20;
+    // the commit which forces the log waits this long for other commits in COMMIT mode. 0 means it does not wait
+    private int groupCommitWindowMicros = 0;
+
+    /**
+     * Creates the settings of the given table from the properties
+     *
+     * @param properties Properties, usually loaded from config.properties
+     * @param tableName Name of the table
+     * @return TableSettings
+     * @throws DBException If a setting has an invalid value
+     */
+    public static TableSettings fromProperties(final Properties properties, final String tableName) throws DBException {
+        TableSettings settings = new TableSettings();
+
+        String storageMode = getProperty(properties, tableName, STORAGE_MODE);
+        if (storageMode != null) {
+            try {
+                settings.storageMode = StorageMode.valueOf(storageMode.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new DBException("Invalid " + STORAGE_MODE + " for table " + tableName + ": " + storageMode);
+            }
+        }
+
+        String indexMode = getProperty(properties, tableName, INDEX_MODE);
+        if (indexMode != null) {
+            try {
+                settings.indexMode = IndexMode.valueOf(indexMode.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new DBException("Invalid " + INDEX_MODE + " for table " + tableName + ": " + indexMode);
+            }
+        }
+
+        String checkpointInterval = getProperty(properties, tableName, CHECKPOINT_INTERVAL);
+        if (checkpointInterval != null) {
+            settings.checkpointInterval = parseInt(tableName, CHECKPOINT_INTERVAL, checkpointInterval);
+        }
+
+        String rowSlackPercent = getProperty(properties, tableName, ROW_SLACK_PERCENT);
+        if (rowSlackPercent != null) {
+            settings.rowSlackPercent = parseInt(tableName, ROW_SLACK_PERCENT, rowSlackPercent);
+        }
+
+        String compactionThreshold = getProperty(properties, tableName, COMPACTION_THRESHOLD_PERCENT);
+        if (compactionThreshold != null) {
+            settings.compactionThresholdPercent = parseInt(tableName, COMPACTION_THRESHOLD_PERCENT,
+                    compactionThreshold);
+        }
+
+        String compactionMinFreeBytes = getProperty(properties, tableName, COMPACTION_MIN_FREE_BYTES);
+        if (compactionMinFreeBytes != null) {
+            settings.compactionMinFreeBytes = parseLong(tableName, COMPACTION_MIN_FREE_BYTES,
+                    compactionMinFreeBytes);
+        }
+
+        String durabilityMode = getProperty(properties, tableName, DURABILITY);
+        if (durabilityMode != null) {
+            try {
+                settings.durabilityMode = DurabilityMode.valueOf(durabilityMode.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new DBException("Invalid " + DURABILITY + " for table " + tableName + ": " + durabilityMode);
+            }
+        }
+
+        String durabilityInterval = getProperty(properties, tableName, DURABILITY_INTERVAL_MS);
+        if (durabilityInterval != null) {
+            settings.durabilityIntervalMillis = parsePositiveInt(tableName, DURABILITY_INTERVAL_MS,
+                    durabilityInterval);
+        }
+
+        String durabilityBytes = getProperty(properties, tableName, DURABILITY_BYTES);
+        if (durabilityBytes != null) {
+            settings.durabilityBytes = parsePositiveInt(tableName, DURABILITY_BYTES, durabilityBytes);
+        }
+
+        String groupCommitWindow = getProperty(properties, tableName, GROUP_COMMIT_WINDOW_MICROS);
+        if (groupCommitWindow != null) {
+            settings.groupCommitWindowMicros = parseInt(tableName, GROUP_COMMIT_WINDOW_MICROS, groupCommitWindow);
+        }
+
+        return settings;
+    }
+
+    private static int parseInt(final String tableName, final String key, final String value) throws DBException {
+        try {
+            int result = Integer.parseInt(value.trim());
+            if (result < 0) {
+                throw new NumberFormatException();
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new DBException("Invalid " + key + " for table " + tableName + ": " + value);
+        }
+    }
+
+    private static int parsePositiveInt(final String tableName, final String key, final String value)
+            throws DBException {
+        int result = parseInt(tableName, key, value);
+        if (result == 0) {
+            throw new DBException("Invalid " + key + " for table " + tableName + ": " + value);
+        }
+        return result;
+    }
+
+    private static long parseLong(final String tableName, final String key, final String value) throws DBException {
+        try {
+            long result = Long.parseLong(value.trim());
+            if (result < 0) {
+                throw new NumberFormatException();
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new DBException("Invalid " + key + " for table " + tableName + ": " + value);
+        }
+    }
+
+    /**
+     * Returns the value of a setting. The table specific value (tableName.key) wins over the global one (key)
+     */
+    private static String getProperty(final Properties properties, final String tableName, final String key) {
+        String value = properties.getProperty(tableName + "." + key);
+        if (value == null) {
+            value = properties.getProperty(key);
+        }
+        return value;
+    }
+
+    public StorageMode getStorageMode() {
+        return this.storageMode;
+    }
+
+    public void setStorageMode(final StorageMode storageMode) {
+        this.storageMode = storageMode;
+    }
+
+    public IndexMode getIndexMode() {
+        return this.indexMode;
+    }
+
+    public void setIndexMode(final IndexMode indexMode) {
+        this.indexMode = indexMode;
+    }
+
+    public int getCheckpointInterval() {
+        return this.checkpointInterval;
+    }
+
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public int getRowSlackPercent() {
+        return this.rowSlackPercent;
+    }
+
+    public void setRowSlackPercent(int rowSlackPercent) {
+        this.rowSlackPercent = rowSlackPercent;
+    }
+
+    public int getCompactionThresholdPercent() {
+        return this.compactionThresholdPercent;
+    }
+
+    public void setCompactionThresholdPercent(int compactionThresholdPercent) {
+        this.compactionThresholdPercent = compactionThresholdPercent;
+    }
+
+    public long getCompactionMinFreeBytes() {
+        return this.compactionMinFreeBytes;
+    }
+
+    public void setCompactionMinFreeBytes(long compactionMinFreeBytes) {
+        this.compactionMinFreeBytes = compactionMinFreeBytes;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return this.durabilityMode;
+    }
+
+    public void setDurabilityMode(final DurabilityMode durabilityMode) {
+        this.durabilityMode = durabilityMode;
+    }
+
+    public int getDurabilityIntervalMillis() {
+        return this.durabilityIntervalMillis;
+    }
+
+    public void setDurabilityIntervalMillis(int durabilityIntervalMillis) {
+        if (durabilityIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid durability interval: " + durabilityIntervalMillis);
+        }
+        this.durabilityIntervalMillis = durabilityIntervalMillis;
+    }
+
+    public int getDurabilityBytes() {
+        return this.durabilityBytes;
+    }
+
+    public void setDurabilityBytes(int durabilityBytes) {
+        if (durabilityBytes <= 0) {
+            throw new IllegalArgumentException("Invalid durability bytes: " + durabilityBytes);
+        }
+        this.durabilityBytes = durabilityBytes;
+    }
+
+    public int getGroupCommitWindowMicros() {
+        return this.groupCommitWindowMicros;
+    }
+
+    public void setGroupCommitWindowMicros(int groupCommitWindowMicros) {
+        this.groupCommitWindowMicros = groupCommitWindowMicros;
+    }
+}
@@ -0,0 +1,80 @@
+package com.mixer.raw.general;
+
+import com.mixer.exceptions.DBException;
+import com.mixer.exceptions.DuplicateNameException;
+
+/**
+ * An explicit transaction of a table, returned by Table.begin(). Unlike the transaction of beginTransaction(),
+ * it is not bound to the thread: it can be passed between threads (virtual threads, the tasks of an executor),
+ * and one thread can run more transactions at the same time. A transaction must not be used by two threads at
+ * the same time.
+ * The writes are staged in the transaction until the commit. After commit() or rollback() the transaction is
+ * finished, it cannot be used any more. close() rolls back a transaction which is not finished, so it can be
+ * used in a try-with-resources block.
+ *
+ * @see Table#begin()
+ */
+public interface TableTransaction extends AutoCloseable {
+
+    /**
+     * Adds an object to the table
+     *
+     * @param object Object
+     * @throws DuplicateNameException If a value with the same indexed field exists
+     * @throws DBException If the transaction is finished, or the object cannot be stored
+     */
+    void add(Object object) throws DuplicateNameException, DBException;
+
+    /**
+     * Deletes a row
+     *
+     * @param rowNumber Number of the row
+     * @throws DBException If the transaction is finished, or the row does not exist
+     */
+    void delete(long rowNumber) throws DBException;
+
+    /**
+     * Updates a row
+     *
+     * @param rowNumber Number of the row
+     * @param object The new object
+     * @throws DuplicateNameException If the new indexed value exists
+     * @throws DBException If the transaction is finished, or the row does not exist
+     */
+    void update(long rowNumber, Object object) throws DuplicateNameException, DBException;
+
+    /**
+     * Updates the row with the given indexed value
+     *
+     * @param indexedFieldName Value of the indexed field
+     * @param object The new object
+     * @throws DuplicateNameException If the new indexed value exists
+     * @throws DBException If the transaction is finished
+     */
+    void update(String indexedFieldName, Object object) throws DuplicateNameException, DBException;
+
+    /**
+     * Commits the transaction. If it fails, the transaction is discarded.
+     *
+     * @throws DBException If the transaction is finished, or the commit fails
+     */
+    void commit() throws DBException;
+
+    /**
+     * Rolls back the transaction: the staged writes are dropped. Nothing happens if it is finished
+     */
+    void rollback();
+
+    /**
+     * Returns true if the transaction is not committed or rolled back yet
+     *
+     * @return boolean
+     */
+    boolean isActive();
+
+    /**
+     * Rolls back the transaction if it is not finished
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,122 @@
+package com.mixer.raw.general;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the old versions of the rows of a table file for its open snapshots. A commit changes the bytes of a row
+ * in two ways: an update in place overwrites the row, and the slot of a deleted row is reused by a new row. While
+ * a snapshot older than the commit is open, the image of a row updated in place is kept here, and the slot of a
+ * deleted row is kept back, it goes into the FreeSpaceMap only when no snapshot can read the row any more.
+ * The versions are the versions of the GenericIndex: a change made by version v is visible for the snapshots of
+ * version v and later. The images are added and read under the lock of the row (see StripedLock), the slots are
+ * retired and released under the writeLock of the file handler.
+ *
+ * @see Snapshot
+ */
+final class VersionStore {
+
+    /**
+     * The image of a row before the change of a version
+     */
+    private static final class RowImage {
+        final long version;
+        final byte[] row;
+
+        RowImage(long version, final byte[] row) {
+            this.version = version;
+            this.row = row;
+        }
+    }
+
+    /**
+     * The slot of a row deleted by a version
+     */
+    private static final class RetiredSlot {
+        final long version;
+        final long position;
+        final int capacity;
+
+        RetiredSlot(long version, long position, int capacity) {
+            this.version = version;
+            this.position = position;
+            this.capacity = capacity;
+        }
+    }
+
+    // position -> images of the row, in the order of the versions
+    private final Map<Long, List<RowImage>> images = new HashMap<>();
+    private final List<RetiredSlot> retiredSlots = new ArrayList<>();
+
+    /**
+     * Keeps the image of a row which is updated in place
+     *
+     * @param position Position of the row
+     * @param version Version of the change
+     * @param row The whole row before the change (header and data)
+     */
+    synchronized void addImage(long position, long version, final byte[] row) {
+        this.images.computeIfAbsent(position, key -> new ArrayList<>()).add(new RowImage(version, row));
+    }
+
+    /**
+     * Returns the image of a row as a snapshot sees it, if the row was changed after the snapshot
+     *
+     * @param position Position of the row
+     * @param snapshotVersion Version of the snapshot
+     * @return Read only buffer of the row, or null if the row in the file is the version of the snapshot
+     */
+    synchronized ByteBuffer getImage(long position, long snapshotVersion) {
+        List<RowImage> rowImages = this.images.get(position);
+        if (rowImages == null) {
+            return null;
+        }
+        // the first change after the snapshot kept the image which the snapshot sees
+        for (RowImage image : rowImages) {
+            if (image.version > snapshotVersion) {
+                return ByteBuffer.wrap(image.row).asReadOnlyBuffer();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keeps back the slot of a deleted row
+     *
+     * @param position Position of the row
+     * @param capacity Length of the row data
+     * @param version Version of the change which deleted the row
+     */
+    synchronized void retireSlot(long position, int capacity, long version) {
+        this.retiredSlots.add(new RetiredSlot(version, position, capacity));
+    }
+
+    /**
+     * Drops the images and releases the slots which no open snapshot needs
+     *
+     * @param oldestSnapshotVersion Version of the oldest open snapshot, Long.MAX_VALUE if there is none
+     * @param freeSpace The slots are released into it
+     */
+    synchronized void reclaim(long oldestSnapshotVersion, final FreeSpaceMap freeSpace) {
+        Iterator<List<RowImage>> rowImages = this.images.values().iterator();
+        while (rowImages.hasNext()) {
+            List<RowImage> list = rowImages.next();
+            list.removeIf(image -> image.version <= oldestSnapshotVersion);
+            if (list.isEmpty()) {
+                rowImages.remove();
+            }
+        }
+        Iterator<RetiredSlot> slots = this.retiredSlots.iterator();
+        while (slots.hasNext()) {
+            RetiredSlot slot = slots.next();
+            if (slot.version <= oldestSnapshotVersion) {
+                freeSpace.add(slot.position, slot.capacity);
+                slots.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.mixer.raw.general;
+
+/**
+ * A row read together with its version stamp. The stamp changes with every commit which changes the row, it can
+ * be passed to Table.updateIfVersion() or Table.deleteIfVersion(), which fail if the row was changed since.
+ * The stamps are valid while the table is open: after the table is opened again, every stamp read before is
+ * outdated.
+ *
+ * @see Table#readVersioned(String)
+ */
+public final class VersionedRow {
+
+    private final Object object;
+    private final long version;
+
+    VersionedRow(final Object object, long version) {
+        this.object = object;
+        this.version = version;
+    }
+
+    public Object getObject() {
+        return this.object;
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+}
@@ -0,0 +1,403 @@
+package com.mixer.raw.general;
+
+import com.mixer.dbserver.DBServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Redo log of a table, stored beside the table file (tablename.wal).
+ * A commit appends one record to the log, which contains the bytes the commit writes into the table file
+ * (the rows of the transaction with their final flags). The commit is durable when its record is forced to the
+ * disk, the table file is written without forcing it. If the table was not closed properly, the records are
+ * written into the table file again when the table is opened (replay).
+ * When the log is forced depends on the DurabilityMode. In COMMIT mode the commits share the force() calls
+ * (group commit): one committer forces the log, the commits which append their records meanwhile wait for it,
+ * and the next force covers all of them. In INTERVAL and BYTES mode a background flusher forces the log.
+ * The log is truncated when the table file is forced (log checkpoint), for example when the table is closed.
+ * Record: MAGIC (int), length of the entries (int), entries, CRC32 of the entries (long).
+ * Entry: position in the table file (long), number of bytes (int), bytes.
+ */
+final class WriteAheadLog {
+
+    private static final String FILE_EXTENSION = ".wal";
+    private static final int MAGIC = 0x4d58574c; // MXWL
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int RECORD_TRAILER_LENGTH = 8;
+
+    /**
+     * Bytes which are written into the table file by a commit
+     */
+    static final class Record {
+        private final List<Long> positions = new ArrayList<>();
+        private final List<byte[]> data = new ArrayList<>();
+        private int length = 0;
+
+        void add(long position, final byte[] bytes) {
+            this.positions.add(position);
+            this.data.add(bytes);
+            this.length += 12 + bytes.length;
+        }
+
+        boolean isEmpty() {
+            return this.positions.isEmpty();
+        }
+    }
+
+    /**
+     * Receives the entries of the log during the replay
+     */
+    @FunctionalInterface
+    interface RedoTarget {
+        void write(long position, byte[] data) throws IOException;
+    }
+
+    private final File logFile;
+    private final RandomAccessFile logRaf;
+    private final FileChannel logChannel;
+    // end of the appended records. Guarded by this
+    private long appendedLength;
+    // end of the records which are forced to the disk. Guarded by this
+    private long durableLength;
+    // a committer is forcing the log. Guarded by this
+    private boolean forcing = false;
+    // the committer which forces the log waits this long for other commits
+    private long groupCommitWindowNanos = 0;
+    private DurabilityMode durabilityMode = DurabilityMode.COMMIT;
+    private int durabilityIntervalMillis;
+    private int durabilityBytes;
+    // forces the log in INTERVAL and BYTES mode, null in the other modes
+    private Thread flusher;
+    // guarded by this
+    private boolean closed = false;
+    // statistics, guarded by this
+    private long commits = 0;
+    private long forces = 0;
+    private long forceNanos = 0;
+
+    /**
+     * Opens the log of the table, creates it if it does not exist
+     *
+     * @param dbFileName Name of the table file
+     * @throws IOException
+     */
+    WriteAheadLog(final String dbFileName) throws IOException {
+        this.logFile = new File(getFileName(dbFileName));
+        this.logRaf = new RandomAccessFile(this.logFile, "rw");
+        this.logChannel = this.logRaf.getChannel();
+        this.appendedLength = this.logChannel.size();
+        this.durableLength = this.appendedLength;
+    }
+
+    /**
+     * Returns the name of the log file which belongs to the table file
+     *
+     * @param dbFileName Name of the table file
+     * @return Name of the log file
+     */
+    static String getFileName(final String dbFileName) {
+        return dbFileName + FILE_EXTENSION;
+    }
+
+    /**
+     * Sets how long the committer which forces the log waits for other commits, so one force() covers more of
+     * them. 0 means it does not wait: the commits which arrive while the log is forced share the next force()
+     *
+     * @param groupCommitWindowNanos Nanoseconds
+     */
+    void setGroupCommitWindowNanos(long groupCommitWindowNanos) {
+        this.groupCommitWindowNanos = groupCommitWindowNanos;
+    }
+
+    /**
+     * Sets when the log is forced to the disk, and starts the background flusher if the mode needs it. Must be
+     * called before the first commit.
+     *
+     * @param durabilityMode DurabilityMode
+     * @param intervalMillis Period of the flusher in INTERVAL mode
+     * @param bytes Bytes which are not forced yet, before the flusher forces the log in BYTES mode
+     * @see DurabilityMode
+     */
+    void setDurability(final DurabilityMode durabilityMode, int intervalMillis, int bytes) {
+        this.durabilityMode = durabilityMode;
+        this.durabilityIntervalMillis = intervalMillis;
+        this.durabilityBytes = bytes;
+        if (durabilityMode == DurabilityMode.INTERVAL || durabilityMode == DurabilityMode.BYTES) {
+            this.flusher = new Thread(this::runFlusher, "log-flusher-" + this.logFile.getName());
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        }
+    }
+
+    /**
+     * Appends the record. In COMMIT mode it waits until the record is forced to the disk
+     *
+     * @param record Record of the commit
+     * @throws IOException
+     */
+    void commit(final Record record) throws IOException {
+        if (record.isEmpty()) {
+            return;
+        }
+        long length = this.append(record);
+        switch (this.durabilityMode) {
+            case COMMIT:
+                this.waitForDurable(length);
+                break;
+            case BYTES:
+                synchronized (this) {
+                    if (length - this.durableLength >= this.durabilityBytes) {
+                        // wakes up the flusher
+                        this.notifyAll();
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Forces every appended record to the disk
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        this.waitForDurable(this.getLength());
+    }
+
+    /**
+     * Body of the background flusher: forces the log periodically (INTERVAL) or when enough bytes are appended
+     * (BYTES), until the log is closed
+     */
+    private void runFlusher() {
+        while (true) {
+            try {
+                synchronized (this) {
+                    if (this.durabilityMode == DurabilityMode.INTERVAL) {
+                        long deadline = System.currentTimeMillis() + this.durabilityIntervalMillis;
+                        long remaining;
+                        while (!this.closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                            this.wait(remaining);
+                        }
+                    } else {
+                        while (!this.closed && this.appendedLength - this.durableLength < this.durabilityBytes) {
+                            this.wait();
+                        }
+                    }
+                    if (this.closed) {
+                        return;
+                    }
+                }
+                this.flush();
+            } catch (InterruptedException | InterruptedIOException | ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                DBServer.LOGGER.severe("[WriteAheadLog] Commit log cannot be forced: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Appends the record to the log, without forcing it
+     *
+     * @param record Record of the commit
+     * @return End of the record in the log
+     * @throws IOException
+     */
+    synchronized long append(final Record record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_LENGTH + record.length + RECORD_TRAILER_LENGTH);
+        buffer.putInt(MAGIC);
+        buffer.putInt(record.length);
+        for (int i = 0; i < record.positions.size(); i++) {
+            byte[] bytes = record.data.get(i);
+            buffer.putLong(record.positions.get(i));
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_HEADER_LENGTH, record.length);
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        long position = this.appendedLength;
+        while (buffer.hasRemaining()) {
+            position += this.logChannel.write(buffer, position);
+        }
+        this.appendedLength = position;
+        this.commits++;
+        return position;
+    }
+
+    /**
+     * Waits until the log is forced to the disk up to the given length. If no other committer forces the log,
+     * then this one does it, for all records appended until then.
+     *
+     * @param length End of a record
+     * @throws IOException
+     */
+    void waitForDurable(long length) throws IOException {
+        synchronized (this) {
+            while (this.durableLength < length) {
+                if (!this.forcing) {
+                    this.forcing = true;
+                    break;
+                }
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the commit log");
+                }
+            }
+            if (this.durableLength >= length) {
+                return;
+            }
+        }
+
+        try {
+            if (this.groupCommitWindowNanos > 0) {
+                LockSupport.parkNanos(this.groupCommitWindowNanos);
+            }
+            long forcedLength;
+            synchronized (this) {
+                forcedLength = this.appendedLength;
+            }
+            long start = System.nanoTime();
+            this.logChannel.force(false);
+            synchronized (this) {
+                this.durableLength = Math.max(this.durableLength, forcedLength);
+                this.forces++;
+                this.forceNanos += System.nanoTime() - start;
+            }
+        } finally {
+            synchronized (this) {
+                this.forcing = false;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of the valid records into the target, in the order of the log. The log ends at the
+     * first incomplete or damaged record (a commit interrupted by a crash, which did not finish).
+     *
+     * @param target Receives the entries
+     * @return Number of replayed records
+     * @throws IOException
+     */
+    synchronized int replay(final RedoTarget target) throws IOException {
+        long logLength = this.logChannel.size();
+        long position = 0;
+        int records = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        while (position + RECORD_HEADER_LENGTH + RECORD_TRAILER_LENGTH <= logLength) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int length = header.getInt(4);
+            if (header.getInt(0) != MAGIC || length < 0
+                    || position + RECORD_HEADER_LENGTH + length + RECORD_TRAILER_LENGTH > logLength) {
+                break;
+            }
+            ByteBuffer entries = ByteBuffer.allocate(length + RECORD_TRAILER_LENGTH);
+            readFully(entries, position + RECORD_HEADER_LENGTH);
+            CRC32 crc = new CRC32();
+            crc.update(entries.array(), 0, length);
+            if (entries.getLong(length) != crc.getValue()) {
+                break;
+            }
+
+            entries.position(0);
+            entries.limit(length);
+            while (entries.hasRemaining()) {
+                long entryPosition = entries.getLong();
+                byte[] data = new byte[entries.getInt()];
+                entries.get(data);
+                target.write(entryPosition, data);
+            }
+            records++;
+            position += RECORD_HEADER_LENGTH + length + RECORD_TRAILER_LENGTH;
+        }
+        if (position < logLength) {
+            DBServer.LOGGER.warning("[WriteAheadLog] Incomplete record at the end of the log, ignored: " + position);
+        }
+        return records;
+    }
+
+    private void readFully(final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = this.logChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the log at position " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Removes every record. Must be called only when the table file contains the records and it is forced to
+     * the disk, and no commit is running.
+     *
+     * @throws IOException
+     */
+    synchronized void truncate() throws IOException {
+        // a running force() sets durableLength when it finishes
+        while (this.forcing) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the commit log");
+            }
+        }
+        this.logChannel.truncate(0);
+        this.logChannel.force(true);
+        this.appendedLength = 0;
+        this.durableLength = 0;
+    }
+
+    synchronized long getLength() {
+        return this.appendedLength;
+    }
+
+    /**
+     * Returns the number of commits and forces since the log was opened, and the time spent in force(). Helps
+     * to measure the cost of the DurabilityMode
+     *
+     * @return String
+     */
+    synchronized String getStatistics() {
+        return "commits: " + this.commits + ", forces: " + this.forces + ", time in force(): "
+                + this.forceNanos / 1_000_000 + " ms";
+    }
+
+    /**
+     * Stops the flusher and closes the log. The records are not forced, the caller truncates the log first.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        synchronized (this) {
+            this.closed = true;
+            this.notifyAll();
+        }
+        if (this.flusher != null) {
+            try {
+                this.flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.logRaf.close();
+    }
+}
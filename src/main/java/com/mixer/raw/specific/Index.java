@@ -1,5 +1,8 @@
 package com.mixer.raw.specific;
 
+import com.mixer.util.LongLongMap;
+import com.mixer.util.LongObjectMap;
+
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -11,17 +14,23 @@ import java.util.concurrent.ConcurrentHashMap;
 public final class Index {
 
     private static Index index;
-    // row number, byte position
-    private final ConcurrentHashMap<Long, Long> rowIndex;
+    // row number, byte position. Modified in the synchronized methods, read without locking
+    private final LongLongMap rowIndex;
 
     // String name, row Number
     private final ConcurrentHashMap<String, Long> nameIndex;
 
+    // the reverse maps: byte position -> row number, row number -> name. Modified in the synchronized methods
+    private final LongLongMap positionIndex;
+    private final LongObjectMap<String> rowNames;
+
     private long totalRowNumber = 0;
 
     private Index(){
-        this.rowIndex = new ConcurrentHashMap<>();
+        this.rowIndex = new LongLongMap();
         this.nameIndex = new ConcurrentHashMap<>();
+        this.positionIndex = new LongLongMap();
+        this.rowNames = new LongObjectMap<>();
     }
 
     public static Index getInstance() {
@@ -39,6 +48,7 @@ public final class Index {
      */
     public synchronized void add(long bytePosition) {
         this.rowIndex.put(this.totalRowNumber, bytePosition);
+        this.positionIndex.put(bytePosition, this.totalRowNumber);
         this.totalRowNumber++;
     }
 
@@ -48,7 +58,7 @@ public final class Index {
      * @return byte position in file
      */
     public long getBytePosition(long rowNumber) {
-        return this.rowIndex.getOrDefault(rowNumber, -1L);
+        return this.rowIndex.get(rowNumber);
     }
 
     /**
@@ -57,12 +67,15 @@ public final class Index {
      * @param row row number
      */
     private synchronized void remove(long row) {
-        this.rowIndex.remove(row);
+        long position = this.rowIndex.remove(row);
+        if (position != LongLongMap.NO_VALUE && this.positionIndex.get(position) == row) {
+            this.positionIndex.remove(position);
+        }
         this.totalRowNumber--;
         // remove also from the name index
-        String nameToDelete = this.nameIndex.search(2, (k, v) -> v==row ? k : null);
+        String nameToDelete = this.rowNames.remove(row);
         if (nameToDelete != null) {
-            this.nameIndex.remove(nameToDelete);
+            this.nameIndex.remove(nameToDelete, row);
         }
     }
 
@@ -81,8 +94,12 @@ public final class Index {
      * @param name Indexed field
      * @param rowIndex Index of the row in which it has been stored
      */
-    public void addNameToIndex(final String name, long rowIndex) {
-        this.nameIndex.put(name, rowIndex);
+    public synchronized void addNameToIndex(final String name, long rowIndex) {
+        Long previous = this.nameIndex.put(name, rowIndex);
+        if (previous != null && previous != rowIndex && name.equals(this.rowNames.get(previous))) {
+            this.rowNames.remove(previous);
+        }
+        this.rowNames.put(rowIndex, name);
     }
 
     /**
@@ -118,6 +135,8 @@ public final class Index {
         this.totalRowNumber = 0;
         this.rowIndex.clear();
         this.nameIndex.clear();
+        this.positionIndex.clear();
+        this.rowNames.clear();
     }
 
     /**
@@ -125,17 +144,9 @@ public final class Index {
      *
      * @param position Byte position of the record in the file
      */
-    public void removeByFilePosition(long position) {
-        if (this.rowIndex.isEmpty())
-            return;
-//        long row = this.rowIndex.search(1, (k, v) -> v == position ? k : -1);
-        Long row = this.rowIndex.search(1, (k,v) -> {
-           if (v == position )
-               return k;
-           return null;
-       });
-
-        if (row != null) {
+    public synchronized void removeByFilePosition(long position) {
+        long row = this.positionIndex.get(position);
+        if (row != LongLongMap.NO_VALUE) {
             this.remove(row);
         }
     }
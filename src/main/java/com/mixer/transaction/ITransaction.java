@@ -1,10 +1,14 @@
 package com.mixer.transaction;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This interface represents a transaction.
- * The class which implements this interface must store the added and deleted records
+ * The class which implements this interface must store the added and deleted records. A transaction of a
+ * MxrTable does not write into the table file before the commit: it stages its writes (the encoded new rows
+ * with their indexed values, the deleted rows, and the rows updated in place) and the commit writes them.
  *
  */
 public interface ITransaction {
@@ -19,5 +23,101 @@ public interface ITransaction {
 
     List<Long> getDeletedRows();
 
+    /**
+     * Stages a new row, it replaces the staged row with the same indexed value
+     *
+     * @param indexedValue Value of the indexed field of the row
+     * @param rowData Encoded row data, without the row header
+     */
+    void stageAdd(String indexedValue, byte[] rowData);
+
+    /**
+     * Stages the delete of a row of the table file. A staged update of the row is dropped. The commit fails if
+     * the row at the position does not have the row number and the indexed value any more
+     *
+     * @param position Position of the row in the table file
+     * @param rowNumber Number of the row
+     * @param indexedValue Value of the indexed field of the row
+     */
+    void stageDelete(long position, long rowNumber, String indexedValue);
+
+    /**
+     * Stages an update in place: the row data is overwritten, the indexed value stays the same. The commit fails
+     * if the row at the position does not have the row number and the indexed value any more
+     *
+     * @param position Position of the row in the table file
+     * @param rowNumber Number of the row
+     * @param indexedValue Value of the indexed field of the row
+     * @param rowData New row data, as long as the data of the row in the file
+     */
+    void stageUpdate(long position, long rowNumber, String indexedValue, byte[] rowData);
+
+    /**
+     * Stages the move of an updated row, which does not fit into its place: the row is deleted (see
+     * stageDelete()), and the staged new row with the indexed value gets its row number
+     *
+     * @param rowNumber Number of the updated row
+     * @param indexedValue Indexed value of the staged new row
+     */
+    void stageMove(long rowNumber, String indexedValue);
+
+    /**
+     * Returns the staged new rows, in the order they were staged
+     *
+     * @return Indexed value -> encoded row data
+     */
+    Map<String, byte[]> getStagedRows();
+
+    /**
+     * Returns the positions of the rows which are deleted by the transaction
+     *
+     * @return Set of positions
+     */
+    Set<Long> getStagedDeletes();
+
+    /**
+     * Returns the rows which are updated in place by the transaction
+     *
+     * @return Position of the row -> new row data
+     */
+    Map<Long, byte[]> getStagedUpdates();
+
+    /**
+     * Returns the rows which are deleted or updated in place by the transaction, as it saw them
+     *
+     * @return Position of the row -> its row number and indexed value
+     */
+    Map<Long, RowIdentity> getStagedRowIdentities();
+
+    /**
+     * Returns the rows which are moved by the transaction
+     *
+     * @return Indexed value of the staged new row -> number of the row which it replaces
+     */
+    Map<String, Long> getStagedMoves();
+
+    /**
+     * Stages a version check: the commit fails if the row with the indexed value does not exist, or an other
+     * commit changed it since it had this version
+     *
+     * @param indexedValue Value of the indexed field of the row
+     * @param version Expected version stamp of the row
+     */
+    void expectVersion(String indexedValue, long version);
+
+    /**
+     * Returns the staged version checks
+     *
+     * @return Indexed value -> expected version stamp
+     */
+    Map<String, Long> getExpectedVersions();
+
+    /**
+     * Changes the positions of the registered rows, after the table file was compacted
+     *
+     * @param newPositions Old position -> new position of the rows
+     */
+    void relocate(Map<Long, Long> newPositions);
+
     void clear();
 }
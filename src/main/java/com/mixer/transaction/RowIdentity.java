@@ -0,0 +1,35 @@
+package com.mixer.transaction;
+
+/**
+ * The row number and the indexed value of a committed row, which a transaction deletes or updates. The position
+ * of the row alone does not identify it: the slot of a deleted row can be taken by a new row before the commit.
+ */
+public final class RowIdentity {
+
+    private final long rowNumber;
+    private final String indexedValue;
+
+    public RowIdentity(long rowNumber, final String indexedValue) {
+        this.rowNumber = rowNumber;
+        this.indexedValue = indexedValue;
+    }
+
+    public long getRowNumber() {
+        return this.rowNumber;
+    }
+
+    public String getIndexedValue() {
+        return this.indexedValue;
+    }
+
+    /**
+     * Returns true if the row has this row number and indexed value
+     *
+     * @param rowNumber Number of the row
+     * @param indexedValue Value of the indexed field of the row
+     * @return boolean
+     */
+    public boolean matches(long rowNumber, final String indexedValue) {
+        return this.rowNumber == rowNumber && this.indexedValue.equals(indexedValue);
+    }
+}
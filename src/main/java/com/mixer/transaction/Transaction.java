@@ -1,7 +1,12 @@
 package com.mixer.transaction;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Class which represents a transaction. When we handle transactions in the database we use
@@ -9,6 +14,8 @@ import java.util.List;
  * When we commit the changes, the transaction object knows which rows has been added or deleted,
  * it knows the exact places of the rows in the file, so it can "finalize" the operation.
  * It is also possible to "undo" the operation - this is just a boolean in the row structure.
+ * The writes of a MxrTable are only staged here (in memory) until the commit, so their rollback is a
+ * simple discard.
  */
 public final class Transaction implements ITransaction {
     // each transaction must have a unique id.
@@ -17,11 +24,29 @@ public final class Transaction implements ITransaction {
     private final LinkedList<Long> newRows;
     // the deleted rows
     private final LinkedList<Long> deletedRows;
+    // the staged new rows: indexed value, encoded row data
+    private final LinkedHashMap<String, byte[]> stagedRows;
+    // the staged deletes: positions of the rows
+    private final LinkedHashSet<Long> stagedDeletes;
+    // the staged updates in place: position of the row, new row data
+    private final LinkedHashMap<Long, byte[]> stagedUpdates;
+    // the rows of the staged deletes and updates: position of the row, its row number and indexed value
+    private final LinkedHashMap<Long, RowIdentity> stagedRowIdentities;
+    // the staged moves of the updated rows: indexed value of the new row, number of the old row
+    private final LinkedHashMap<String, Long> stagedMoves;
+    // the staged version checks: indexed value, expected version stamp
+    private final LinkedHashMap<String, Long> expectedVersions;
 
     public Transaction() {
         this.uid = getRandomNumber();
         this.newRows = new LinkedList<>();
         this.deletedRows = new LinkedList<>();
+        this.stagedRows = new LinkedHashMap<>();
+        this.stagedDeletes = new LinkedHashSet<>();
+        this.stagedUpdates = new LinkedHashMap<>();
+        this.stagedRowIdentities = new LinkedHashMap<>();
+        this.stagedMoves = new LinkedHashMap<>();
+        this.expectedVersions = new LinkedHashMap<>();
     }
 
     @Override
@@ -49,10 +74,97 @@ public final class Transaction implements ITransaction {
         return this.deletedRows;
     }
 
+    @Override
+    public void stageAdd(String indexedValue, byte[] rowData) {
+        this.stagedRows.put(indexedValue, rowData);
+    }
+
+    @Override
+    public void stageDelete(long position, long rowNumber, String indexedValue) {
+        this.stagedUpdates.remove(position);
+        this.stagedDeletes.add(position);
+        this.stagedRowIdentities.put(position, new RowIdentity(rowNumber, indexedValue));
+    }
+
+    @Override
+    public void stageUpdate(long position, long rowNumber, String indexedValue, byte[] rowData) {
+        this.stagedUpdates.put(position, rowData);
+        this.stagedRowIdentities.put(position, new RowIdentity(rowNumber, indexedValue));
+    }
+
+    @Override
+    public void stageMove(long rowNumber, String indexedValue) {
+        this.stagedMoves.put(indexedValue, rowNumber);
+    }
+
+    @Override
+    public Map<String, byte[]> getStagedRows() {
+        return this.stagedRows;
+    }
+
+    @Override
+    public Set<Long> getStagedDeletes() {
+        return this.stagedDeletes;
+    }
+
+    @Override
+    public Map<Long, byte[]> getStagedUpdates() {
+        return this.stagedUpdates;
+    }
+
+    @Override
+    public Map<Long, RowIdentity> getStagedRowIdentities() {
+        return this.stagedRowIdentities;
+    }
+
+    @Override
+    public Map<String, Long> getStagedMoves() {
+        return this.stagedMoves;
+    }
+
+    @Override
+    public void expectVersion(String indexedValue, long version) {
+        this.expectedVersions.put(indexedValue, version);
+    }
+
+    @Override
+    public Map<String, Long> getExpectedVersions() {
+        return this.expectedVersions;
+    }
+
+    @Override
+    public void relocate(Map<Long, Long> newPositions) {
+        this.newRows.replaceAll(position -> newPositions.getOrDefault(position, position));
+        this.deletedRows.replaceAll(position -> newPositions.getOrDefault(position, position));
+        List<Long> deletes = new ArrayList<>(this.stagedDeletes);
+        this.stagedDeletes.clear();
+        for (long position : deletes) {
+            this.stagedDeletes.add(newPositions.getOrDefault(position, position));
+        }
+        LinkedHashMap<Long, byte[]> relocatedRows = new LinkedHashMap<>();
+        for (Map.Entry<Long, byte[]> entry : this.stagedUpdates.entrySet()) {
+            relocatedRows.put(newPositions.getOrDefault(entry.getKey(), entry.getKey()), entry.getValue());
+        }
+        this.stagedUpdates.clear();
+        this.stagedUpdates.putAll(relocatedRows);
+        LinkedHashMap<Long, RowIdentity> relocatedIdentities = new LinkedHashMap<>();
+        for (Map.Entry<Long, RowIdentity> entry : this.stagedRowIdentities.entrySet()) {
+            relocatedIdentities.put(newPositions.getOrDefault(entry.getKey(), entry.getKey()), entry.getValue());
+        }
+        this.stagedRowIdentities.clear();
+        this.stagedRowIdentities.putAll(relocatedIdentities);
+    }
+
     @Override
     public void clear() {
         this.deletedRows.clear();
         this.newRows.clear();
+        this.stagedRows.clear();
+        this.stagedDeletes.clear();
+        this.stagedUpdates.clear();
+        this.stagedRowIdentities.clear();
+        this.stagedMoves.clear();
+        this.expectedVersions.clear();
     }
 
     private double getRandomNumber() {
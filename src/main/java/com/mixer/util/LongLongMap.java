@@ -0,0 +1,215 @@
+package com.mixer.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Hash map of primitive long keys and values, with open addressing (linear probing). The keys and the values are
+ * stored next to each other in one array, so an entry takes 16 bytes (about 25 bytes with the free slots), without
+ * boxed Longs and map nodes.
+ * The readers do not lock: the slots are read and written with volatile semantics, a new key is written after its
+ * value, a removed key is replaced with a tombstone (the entries are never moved while readers may probe them),
+ * and the array is replaced, not modified, when it grows or the tombstones are purged. The slot of a removed key
+ * is not reused until then, so a slot holds only one key in an array: a reader which found the key in a slot reads
+ * the value of that key, not the value of an other key put into the slot meanwhile. The modifications must not
+ * run at the same time, the caller serializes them (for example under the monitor of the index).
+ * The keys must not be negative.
+ */
+public final class LongLongMap {
+
+    // the value returned for a missing key
+    public static final long NO_VALUE = -1;
+
+    private static final long EMPTY = -1;
+    private static final long TOMBSTONE = -2;
+    private static final int MIN_CAPACITY = 16;
+    // the array is rebuilt when the live entries and the tombstones fill this part of it
+    private static final int MAX_LOAD_PERCENT = 70;
+
+    /**
+     * Visits the entries of the map
+     */
+    @FunctionalInterface
+    public interface EntryVisitor<E extends Exception> {
+        void visit(long key, long value) throws E;
+    }
+
+    // key, value, key, value, ... Replaced when it is rebuilt
+    private volatile AtomicLongArray slots;
+    private volatile int size = 0;
+    // number of the used slots: live entries and tombstones
+    private int used = 0;
+
+    public LongLongMap() {
+        this.slots = newSlots(MIN_CAPACITY);
+    }
+
+    private static AtomicLongArray newSlots(int capacity) {
+        AtomicLongArray slots = new AtomicLongArray(capacity * 2);
+        for (int i = 0; i < capacity; i++) {
+            slots.lazySet(i * 2, EMPTY);
+        }
+        return slots;
+    }
+
+    private static int home(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the value of a key
+     *
+     * @param key The key
+     * @return The value, or NO_VALUE if the key is not in the map
+     */
+    public long get(long key) {
+        AtomicLongArray slots = this.slots;
+        int mask = slots.length() / 2 - 1;
+        for (int slot = home(key, mask); ; slot = (slot + 1) & mask) {
+            long slotKey = slots.get(slot * 2);
+            if (slotKey == key) {
+                return slots.get(slot * 2 + 1);
+            }
+            if (slotKey == EMPTY) {
+                return NO_VALUE;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return this.get(key) != NO_VALUE;
+    }
+
+    /**
+     * Stores the value of a key
+     *
+     * @param key The key, must not be negative
+     * @param value The value, must not be NO_VALUE
+     * @return The previous value, or NO_VALUE
+     */
+    public long put(long key, long value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        AtomicLongArray slots = this.slots;
+        int mask = slots.length() / 2 - 1;
+        int slot = home(key, mask);
+        for (; ; slot = (slot + 1) & mask) {
+            long slotKey = slots.get(slot * 2);
+            if (slotKey == key) {
+                long previous = slots.get(slot * 2 + 1);
+                slots.set(slot * 2 + 1, value);
+                return previous;
+            }
+            if (slotKey == EMPTY) {
+                break;
+            }
+        }
+        // the tombstones are skipped, a reader may still read the value of the removed key from them.
+        // The readers which find the key see its value
+        slots.set(slot * 2 + 1, value);
+        slots.set(slot * 2, key);
+        this.used++;
+        this.size++;
+        if (this.used * 100L > (mask + 1) * (long) MAX_LOAD_PERCENT) {
+            this.rebuild();
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Removes a key
+     *
+     * @param key The key
+     * @return The removed value, or NO_VALUE
+     */
+    public long remove(long key) {
+        AtomicLongArray slots = this.slots;
+        int mask = slots.length() / 2 - 1;
+        for (int slot = home(key, mask); ; slot = (slot + 1) & mask) {
+            long slotKey = slots.get(slot * 2);
+            if (slotKey == key) {
+                long previous = slots.get(slot * 2 + 1);
+                slots.set(slot * 2, TOMBSTONE);
+                this.size--;
+                return previous;
+            }
+            if (slotKey == EMPTY) {
+                return NO_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Changes every value of the map
+     *
+     * @param function Old value -> new value
+     */
+    public void replaceValues(final LongUnaryOperator function) {
+        AtomicLongArray slots = this.slots;
+        for (int i = 0; i < slots.length(); i += 2) {
+            if (slots.get(i) >= 0) {
+                slots.set(i + 1, function.applyAsLong(slots.get(i + 1)));
+            }
+        }
+    }
+
+    /**
+     * Visits the entries, in no particular order
+     *
+     * @param visitor EntryVisitor
+     * @throws E If the visitor throws it
+     */
+    public <E extends Exception> void forEach(final EntryVisitor<E> visitor) throws E {
+        AtomicLongArray slots = this.slots;
+        for (int i = 0; i < slots.length(); i += 2) {
+            long key = slots.get(i);
+            if (key >= 0) {
+                visitor.visit(key, slots.get(i + 1));
+            }
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public void clear() {
+        this.slots = newSlots(MIN_CAPACITY);
+        this.size = 0;
+        this.used = 0;
+    }
+
+    /**
+     * Copies the live entries into a new array, which is big enough for twice as many entries
+     */
+    private void rebuild() {
+        int capacity = MIN_CAPACITY;
+        while (capacity * (long) MAX_LOAD_PERCENT < this.size * 200L) {
+            capacity <<= 1;
+        }
+        AtomicLongArray slots = this.slots;
+        AtomicLongArray newSlots = newSlots(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < slots.length(); i += 2) {
+            long key = slots.get(i);
+            if (key < 0) {
+                continue;
+            }
+            int slot = home(key, mask);
+            while (newSlots.get(slot * 2) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots.lazySet(slot * 2 + 1, slots.get(i + 1));
+            newSlots.lazySet(slot * 2, key);
+        }
+        this.used = this.size;
+        // the volatile write publishes the new array with its content
+        this.slots = newSlots;
+    }
+}
@@ -0,0 +1,177 @@
+package com.mixer.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hash map of primitive long keys and object values, with open addressing (linear probing), the counterpart of
+ * LongLongMap for object values. The keys are stored in a long array, without boxed Longs and map nodes.
+ * The readers do not lock, the modifications must not run at the same time, the caller serializes them. See
+ * LongLongMap for the rules which make the unlocked reads safe. A removed value is kept in its slot until the
+ * arrays are rebuilt, so a reader which found the key reads its value, not null.
+ * The keys must not be negative, the values must not be null.
+ *
+ * @param <V> Type of the values
+ * @see LongLongMap
+ */
+public final class LongObjectMap<V> {
+
+    private static final long EMPTY = -1;
+    private static final long TOMBSTONE = -2;
+    private static final int MIN_CAPACITY = 16;
+    // the arrays are rebuilt when the live entries and the tombstones fill this part of them
+    private static final int MAX_LOAD_PERCENT = 70;
+
+    /**
+     * The keys and the values, replaced together when they are rebuilt
+     */
+    private static final class Slots<V> {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<V> values;
+
+        Slots(int capacity) {
+            this.keys = new AtomicLongArray(capacity);
+            this.values = new AtomicReferenceArray<>(capacity);
+            for (int i = 0; i < capacity; i++) {
+                this.keys.lazySet(i, EMPTY);
+            }
+        }
+    }
+
+    private volatile Slots<V> slots;
+    private volatile int size = 0;
+    // number of the used slots: live entries and tombstones
+    private int used = 0;
+
+    public LongObjectMap() {
+        this.slots = new Slots<>(MIN_CAPACITY);
+    }
+
+    private static int home(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the value of a key
+     *
+     * @param key The key
+     * @return The value, or null if the key is not in the map
+     */
+    public V get(long key) {
+        Slots<V> slots = this.slots;
+        int mask = slots.keys.length() - 1;
+        for (int slot = home(key, mask); ; slot = (slot + 1) & mask) {
+            long slotKey = slots.keys.get(slot);
+            if (slotKey == key) {
+                return slots.values.get(slot);
+            }
+            if (slotKey == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Stores the value of a key
+     *
+     * @param key The key, must not be negative
+     * @param value The value, must not be null
+     * @return The previous value, or null
+     */
+    public V put(long key, final V value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        if (value == null) {
+            throw new NullPointerException("Null value for key " + key);
+        }
+        Slots<V> slots = this.slots;
+        int mask = slots.keys.length() - 1;
+        int slot = home(key, mask);
+        for (; ; slot = (slot + 1) & mask) {
+            long slotKey = slots.keys.get(slot);
+            if (slotKey == key) {
+                return slots.values.getAndSet(slot, value);
+            }
+            if (slotKey == EMPTY) {
+                break;
+            }
+        }
+        // the tombstones are skipped, a reader may still read the value of the removed key from them.
+        // The readers which find the key see its value
+        slots.values.set(slot, value);
+        slots.keys.set(slot, key);
+        this.used++;
+        this.size++;
+        if (this.used * 100L > (mask + 1) * (long) MAX_LOAD_PERCENT) {
+            this.rebuild();
+        }
+        return null;
+    }
+
+    /**
+     * Removes a key
+     *
+     * @param key The key
+     * @return The removed value, or null
+     */
+    public V remove(long key) {
+        Slots<V> slots = this.slots;
+        int mask = slots.keys.length() - 1;
+        for (int slot = home(key, mask); ; slot = (slot + 1) & mask) {
+            long slotKey = slots.keys.get(slot);
+            if (slotKey == key) {
+                slots.keys.set(slot, TOMBSTONE);
+                this.size--;
+                // the value is released when the arrays are rebuilt
+                return slots.values.get(slot);
+            }
+            if (slotKey == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public void clear() {
+        this.slots = new Slots<>(MIN_CAPACITY);
+        this.size = 0;
+        this.used = 0;
+    }
+
+    /**
+     * Copies the live entries into new arrays, which are big enough for twice as many entries
+     */
+    private void rebuild() {
+        int capacity = MIN_CAPACITY;
+        while (capacity * (long) MAX_LOAD_PERCENT < this.size * 200L) {
+            capacity <<= 1;
+        }
+        Slots<V> slots = this.slots;
+        Slots<V> newSlots = new Slots<>(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < slots.keys.length(); i++) {
+            long key = slots.keys.get(i);
+            if (key < 0) {
+                continue;
+            }
+            int slot = home(key, mask);
+            while (newSlots.keys.get(slot) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots.values.lazySet(slot, slots.values.get(i));
+            newSlots.keys.lazySet(slot, key);
+        }
+        this.used = this.size;
+        // the volatile write publishes the new arrays with their content
+        this.slots = newSlots;
+    }
+}
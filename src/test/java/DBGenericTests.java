@@ -1,8 +1,18 @@
 import com.mixer.dbserver.*;
 import com.mixer.exceptions.DBException;
+import com.mixer.exceptions.DuplicateNameException;
 import com.mixer.query.sql.ResultSet;
 import com.mixer.raw.Person;
+import com.mixer.raw.general.DurabilityMode;
+import com.mixer.raw.general.GenericIndexPool;
+import com.mixer.raw.general.IndexMode;
+import com.mixer.raw.general.MxrTable;
+import com.mixer.raw.general.RecordView;
+import com.mixer.raw.general.StorageMode;
 import com.mixer.raw.general.Table;
+import com.mixer.raw.general.TableSettings;
+import com.mixer.raw.general.TableTransaction;
+import com.mixer.raw.general.VersionedRow;
 import com.mixer.util.DebugRowInfo;
 import org.junit.Assert;
 import org.junit.Before;
@@ -10,14 +20,29 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @SuppressWarnings("ResultOfMethodCallIgnored")
 public class DBGenericTests {
 
     private final String dbFileName = "testgeneric.db";
     private final String dbFileNameForPerson = "testgenericperson.db";
+    private final String crashedDbFileName = "testgenericcrashed.db";
 
     private static final String DOG_SCHEMA = "{\n"+
             "  \"version\":\"0.1\",\n"+
@@ -29,6 +54,10 @@ public class DBGenericTests {
             "  \"indexBy\": \"pname\"" +
             "}";
 
+    private static final String DOG_SCHEMA_WITH_OFFSET_TABLE = DOG_SCHEMA.replace("0.1", "0.2");
+
+    private static final String DOG_SCHEMA_COMPACT = DOG_SCHEMA.replace("0.1", "0.3");
+
     private static final String PERSON_SCHEMA = "{\n" +
             "  \"version\":\"0.1\",\n" +
             "  \"fields\":[\n" +
@@ -289,13 +318,9 @@ public class DBGenericTests {
 
             List<Object> result = table.searchWithRegexp("Jo.*");
             Assert.assertEquals(result.size(), 0);
+            // the row was only staged in the transaction, it was never written into the file
             List<DebugRowInfo> infos = table.listAllRowsWithDebug();
-            Assert.assertEquals(infos.size(), 1);
-
-
-            DebugRowInfo dri = infos.get(0);
-            Assert.assertFalse(dri.isTemporary());
-            Assert.assertTrue(dri.isDeleted());
+            Assert.assertEquals(infos.size(), 0);
 
         }catch (Exception e) {
             Assert.fail(e.getMessage());
@@ -342,11 +367,7 @@ public class DBGenericTests {
             List<Object> result = table.searchWithRegexp("Ki.*");
             Assert.assertEquals(result.size(), 0);
             List<DebugRowInfo> infos = table.listAllRowsWithDebug();
-            Assert.assertEquals(infos.size(), 2);
-
-            DebugRowInfo dri = infos.get(0);
-            Assert.assertFalse(dri.isTemporary());
-            Assert.assertTrue(dri.isDeleted());
+            Assert.assertEquals(infos.size(), 0);
 
         }catch (Exception e) {
             Assert.fail(e.getMessage());
@@ -733,6 +754,1277 @@ public class DBGenericTests {
         }
     }
 
+    @Test
+    public void testMemoryMappedTable() {
+        TableSettings settings = new TableSettings();
+        settings.setStorageMode(StorageMode.MMAP);
+        try {
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            table.beginTransaction();
+            table.add(new Dog("King", 2, "John"));
+            table.add(new Dog("King2", 3, "John2"));
+            table.commit();
+
+            Dog result = (Dog) table.search("King2");
+            Assert.assertEquals(3, result.age);
+            Assert.assertEquals("John2", result.owner);
+
+            // the mapping has to follow the file after the defragmentation
+            table.beginTransaction();
+            table.delete(0);
+            table.commit();
+            table.defragmentDatabase();
+            Assert.assertEquals(1, table.getTotalRecordNumber());
+            Assert.assertEquals("King2", ((Dog) table.read(0)).pname);
+            table.close();
+
+            // reopen the table
+            table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            Assert.assertEquals(1, table.getTotalRecordNumber());
+            Assert.assertEquals("John2", ((Dog) table.search("King2")).owner);
+            table.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testIndexCheckpoint() {
+        File checkpointFile = new File(dbFileNameForPerson + ".idx");
+        try(DBGeneric db = DBFactory.getGenericDB()) {
+            Table table = db.useTable(dbFileNameForPerson, PERSON_SCHEMA, Person.class);
+            table.beginTransaction();
+            table.add(new Person("John",44, "Berlin", "www-404","This is a description"));
+            table.add(new Person("John1",44, "Berlin", "www-404","This is a description"));
+            table.commit();
+        } catch (Exception e) {
+            Assert.fail(e.getMessage());
+        }
+        // the checkpoint is written when the table is closed
+        Assert.assertTrue(checkpointFile.exists());
+
+        try(DBGeneric db = DBFactory.getGenericDB()) {
+            Table table = db.useTable(dbFileNameForPerson, PERSON_SCHEMA, Person.class);
+            Assert.assertEquals(2, table.getTotalRecordNumber());
+            Assert.assertEquals("John1", ((Person) table.search("John1")).pname);
+
+            // appended rows do not invalidate the checkpoint, they are replayed from the tail
+            table.beginTransaction();
+            table.add(new Person("John2",44, "Berlin", "www-404","This is a description"));
+            table.commit();
+            Assert.assertTrue(checkpointFile.exists());
+
+            // deleting a row which is covered by the checkpoint invalidates it
+            table.beginTransaction();
+            table.delete(0);
+            table.commit();
+            Assert.assertFalse(checkpointFile.exists());
+        } catch (Exception e) {
+            Assert.fail(e.getMessage());
+        }
+
+        try(DBGeneric db = DBFactory.getGenericDB()) {
+            Table table = db.useTable(dbFileNameForPerson, PERSON_SCHEMA, Person.class);
+            Assert.assertEquals(2, table.getTotalRecordNumber());
+            Assert.assertNull(table.search("John"));
+            Assert.assertEquals("John2", ((Person) table.search("John2")).pname);
+        } catch (Exception e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testSchemaDoesNotMatchClass() {
+        // Person has no 'owner' field, the table cannot be opened
+        try {
+            new MxrTable(dbFileName, DOG_SCHEMA, Person.class, new GenericIndexPool());
+            Assert.fail("DBException expected");
+        } catch (DBException e) {
+            Assert.assertTrue(e.getMessage().contains("owner"));
+        }
+    }
+
+    @Test
+    public void testRecordView() {
+        try {
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            table.add(new Dog("King", 2, "John"));
+            table.add(new Dog("King2", 3, "John2"));
+            table.add(new Dog("King3", 3, "John3"));
+            table.commit();
+
+            RecordView view = table.readView(1);
+            Assert.assertEquals("John2", view.getString("owner"));
+            Assert.assertEquals(3, view.getInt("age"));
+            Assert.assertEquals("King2", ((Dog) view.toObject()).pname);
+            Assert.assertNull(table.readView(10));
+
+            List<String> owners = new ArrayList<>();
+            table.scan(row -> {
+                if (row.getInt("age") == 3) {
+                    owners.add(row.getString("owner"));
+                }
+                return true;
+            });
+            Assert.assertEquals(Arrays.asList("John2", "John3"), owners);
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testOffsetTableRowFormat() {
+        try {
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA_WITH_OFFSET_TABLE, Dog.class, new GenericIndexPool());
+            Assert.assertEquals("0.2", table.getTableVersion());
+            table.beginTransaction();
+            table.add(new Dog("King", 2, "John"));
+            table.add(new Dog("K\u00edng2", 3, "J\u00f6hn2"));
+            table.add(new Dog("King3", 4, ""));
+            table.commit();
+
+            Dog result = (Dog) table.search("K\u00edng2");
+            Assert.assertEquals(3, result.age);
+            Assert.assertEquals("J\u00f6hn2", result.owner);
+            Assert.assertEquals("", ((Dog) table.read(2)).owner);
+            Assert.assertEquals("J\u00f6hn2", table.readView(1).getString("owner"));
+            Assert.assertEquals(4, table.readView(2).getInt("age"));
+
+            table.beginTransaction();
+            table.delete(0);
+            table.commit();
+            table.defragmentDatabase();
+            table.close();
+
+            table = new MxrTable(dbFileName, DOG_SCHEMA_WITH_OFFSET_TABLE, Dog.class, new GenericIndexPool());
+            Assert.assertEquals("0.2", table.getTableVersion());
+            Assert.assertEquals(2, table.getTotalRecordNumber());
+            Assert.assertEquals("J\u00f6hn2", ((Dog) table.search("K\u00edng2")).owner);
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLegacyRowFormatStaysReadable() {
+        try {
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            table.add(new Dog("King", 2, "John"));
+            table.commit();
+            table.close();
+
+            // the version in the header of the file wins over the version of the schema
+            table = new MxrTable(dbFileName, DOG_SCHEMA_WITH_OFFSET_TABLE, Dog.class, new GenericIndexPool());
+            Assert.assertEquals("0.1", table.getTableVersion());
+            Assert.assertEquals("John", ((Dog) table.search("King")).owner);
+            table.beginTransaction();
+            table.add(new Dog("King2", 3, "John2"));
+            table.commit();
+            Assert.assertEquals("John2", table.readView(1).getString("owner"));
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCompactRowFormat() {
+        try {
+            StringBuilder longOwner = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                longOwner.append("J\u00f6hn");
+            }
+
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            table.add(new Dog("King", 2, "John"));
+            table.add(new Dog("King2", -3, longOwner.toString()));
+            table.commit();
+            table.close();
+            long legacyLength = new File(dbFileName).length();
+            new File(dbFileName).delete();
+
+            table = new MxrTable(dbFileName, DOG_SCHEMA_COMPACT, Dog.class, new GenericIndexPool());
+            Assert.assertEquals("0.3", table.getTableVersion());
+            table.beginTransaction();
+            table.add(new Dog("King", 2, "John"));
+            table.add(new Dog("King2", -3, longOwner.toString()));
+            table.commit();
+            // 2 bytes shorter row header, 3 bytes shorter string and int fields
+            Assert.assertTrue(new File(dbFileName).length() < legacyLength);
+
+            Dog result = (Dog) table.search("King2");
+            Assert.assertEquals(-3, result.age);
+            Assert.assertEquals(longOwner.toString(), result.owner);
+            Assert.assertEquals(-3, table.readView(1).getInt("age"));
+            Assert.assertEquals("John", table.readView(0).getString("owner"));
+
+            table.beginTransaction();
+            table.add(new Dog("King3", Integer.MIN_VALUE, ""));
+            table.rollback();
+            table.beginTransaction();
+            table.add(new Dog("King4", Integer.MAX_VALUE, ""));
+            table.delete(0);
+            table.commit();
+            table.defragmentDatabase();
+            table.close();
+
+            table = new MxrTable(dbFileName, DOG_SCHEMA_COMPACT, Dog.class, new GenericIndexPool());
+            Assert.assertEquals("0.3", table.getTableVersion());
+            Assert.assertEquals(2, table.getTotalRecordNumber());
+            Assert.assertNull(table.search("King3"));
+            Assert.assertEquals(Integer.MAX_VALUE, ((Dog) table.search("King4")).age);
+            Assert.assertEquals(longOwner.toString(), ((Dog) table.search("King2")).owner);
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testUpdateInPlace() {
+        try {
+            TableSettings settings = new TableSettings();
+            settings.setRowSlackPercent(100);
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            table.beginTransaction();
+            table.add(new Dog("King", 2, "John"));
+            table.add(new Dog("King2", 3, "John2"));
+            table.commit();
+            long fileLength = new File(dbFileName).length();
+
+            // the longer owner fits into the free space of the row
+            table.beginTransaction();
+            table.update("King", new Dog("King", 5, "Johnny"));
+            table.update(1, new Dog("King2", 6, "J"));
+            table.commit();
+            Assert.assertEquals(fileLength, new File(dbFileName).length());
+            Assert.assertEquals(2, table.getTotalRecordNumber());
+            Assert.assertEquals("Johnny", ((Dog) table.search("King")).owner);
+            Assert.assertEquals(6, ((Dog) table.read(1)).age);
+            Assert.assertEquals("J", table.readView(1).getString("owner"));
+
+            // the new data is staged until the commit: the file is not changed, a crash cannot leave it there
+            byte[] committedContent = Files.readAllBytes(Paths.get(dbFileName));
+            table.beginTransaction();
+            table.update("King", new Dog("King", 7, "Jo"));
+            table.update("King", new Dog("King", 8, "Joe"));
+            Assert.assertArrayEquals(committedContent, Files.readAllBytes(Paths.get(dbFileName)));
+            Assert.assertEquals(5, ((Dog) table.search("King")).age);
+            table.rollback();
+            Dog dog = (Dog) table.search("King");
+            Assert.assertEquals(5, dog.age);
+            Assert.assertEquals("Johnny", dog.owner);
+
+            // too long for the row, or a new indexed value: the row is moved to the end of the file
+            table.beginTransaction();
+            table.update("King2", new Dog("King2", 6, "Johnny Johnny Johnny Johnny Johnny"));
+            table.update("King", new Dog("King5", 5, "Johnny"));
+            table.commit();
+            Assert.assertTrue(new File(dbFileName).length() > fileLength);
+            Assert.assertEquals(2, table.getTotalRecordNumber());
+            Assert.assertNull(table.search("King"));
+            Assert.assertEquals("Johnny", ((Dog) table.search("King5")).owner);
+            Assert.assertEquals("Johnny Johnny Johnny Johnny Johnny", ((Dog) table.search("King2")).owner);
+
+            table.defragmentDatabase();
+            table.close();
+            table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            Assert.assertEquals(2, table.getTotalRecordNumber());
+            Assert.assertEquals("Johnny Johnny Johnny Johnny Johnny", ((Dog) table.search("King2")).owner);
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testReuseDeletedRowSlots() {
+        try {
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            table.add(new Dog("King", 2, "John"));
+            table.add(new Dog("King2", 3, "John2"));
+            table.add(new Dog("King3", 4, "John Johnson"));
+            table.commit();
+            long fileLength = new File(dbFileName).length();
+
+            table.beginTransaction();
+            table.delete(2);
+            table.commit();
+            // the new row is shorter than the deleted one, it takes its slot
+            table.beginTransaction();
+            table.add(new Dog("King4", 5, "Jo"));
+            table.commit();
+            Assert.assertEquals(fileLength, new File(dbFileName).length());
+            table.beginTransaction();
+            table.add(new Dog("King5", 6, "John5"));
+            table.commit();
+            fileLength = new File(dbFileName).length();
+
+            // a rolled back row never takes the slot
+            table.beginTransaction();
+            table.delete(4);
+            table.commit();
+            table.beginTransaction();
+            table.add(new Dog("King6", 7, "John6"));
+            table.rollback();
+            table.beginTransaction();
+            table.add(new Dog("King7", 8, "John7"));
+            table.commit();
+            Assert.assertEquals(fileLength, new File(dbFileName).length());
+            Assert.assertEquals(4, table.getTotalRecordNumber());
+            Assert.assertEquals("Jo", ((Dog) table.search("King4")).owner);
+            Assert.assertEquals("John7", table.readView(5).getString("owner"));
+            Assert.assertNull(table.search("King3"));
+            Assert.assertNull(table.search("King6"));
+            table.close();
+
+            // the slots are found by the startup scan too
+            new File(dbFileName + ".idx").delete();
+            table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            Assert.assertEquals(4, table.getTotalRecordNumber());
+            Assert.assertEquals("Jo", ((Dog) table.search("King4")).owner);
+            Assert.assertEquals("John7", ((Dog) table.search("King7")).owner);
+            table.beginTransaction();
+            table.delete(3);
+            table.commit();
+            table.close();
+
+            // and they are stored in the index checkpoint
+            table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            table.add(new Dog("King8", 9, "John8"));
+            table.commit();
+            Assert.assertEquals(fileLength, new File(dbFileName).length());
+            Assert.assertEquals("John8", ((Dog) table.search("King8")).owner);
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testStableRowNumbers() {
+        try {
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            table.add(new Dog("King", 2, "John"));
+            table.add(new Dog("King2", 3, "John2"));
+            table.add(new Dog("King3", 4, "John3"));
+            table.commit();
+
+            // the rows after the deleted one keep their numbers
+            table.beginTransaction();
+            table.delete(0);
+            table.commit();
+            Assert.assertEquals(2, table.getTotalRecordNumber());
+            Assert.assertNull(table.readView(0));
+            Assert.assertEquals("King2", ((Dog) table.read(1)).pname);
+            Assert.assertEquals("King3", ((Dog) table.read(2)).pname);
+
+            // a new row gets a new number, the number of the deleted row stays free
+            table.beginTransaction();
+            table.add(new Dog("King4", 5, "John4"));
+            table.add(new Dog("King5", 6, "John5"));
+            table.commit();
+            Assert.assertEquals(4, table.getTotalRecordNumber());
+            Assert.assertNull(table.readView(0));
+            Assert.assertEquals("King3", ((Dog) table.read(2)).pname);
+            Assert.assertEquals("King4", ((Dog) table.read(3)).pname);
+            Assert.assertEquals("King5", ((Dog) table.read(4)).pname);
+
+            // a row number held across a delete and an add does not delete an other row
+            table.beginTransaction();
+            table.delete(3);
+            table.commit();
+            table.beginTransaction();
+            table.add(new Dog("King6", 7, "John6"));
+            table.commit();
+            table.beginTransaction();
+            try {
+                table.delete(3);
+                Assert.fail("Deleted row number accepted");
+            } catch (DBException expected) {
+                // expected
+            }
+            table.rollback();
+            Assert.assertEquals(4, table.getTotalRecordNumber());
+            Assert.assertEquals("King6", ((Dog) table.read(5)).pname);
+
+            // a row moved by an update keeps its number
+            table.beginTransaction();
+            table.update(2, new Dog("King3b", 4, "John3 Johnson Johnson"));
+            table.commit();
+            Assert.assertEquals("King3b", ((Dog) table.read(2)).pname);
+            Assert.assertNull(table.search("King3"));
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testOffHeapIndex() {
+        this.checkIndexMode(IndexMode.OFF_HEAP);
+    }
+
+    @Test
+    public void testRadixTreeIndex() {
+        this.checkIndexMode(IndexMode.RADIX_TREE);
+    }
+
+    private void checkIndexMode(final IndexMode indexMode) {
+        TableSettings settings = new TableSettings();
+        settings.setIndexMode(indexMode);
+        try {
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            table.beginTransaction();
+            for (int i = 0; i < 3000; i++) {
+                table.add(new Dog("K\u00f6nig" + i, i, "John" + i));
+            }
+            table.commit();
+            Assert.assertEquals(3000, table.getTotalRecordNumber());
+            Assert.assertEquals("John2999", ((Dog) table.search("K\u00f6nig2999")).owner);
+            Assert.assertNull(table.search("K\u00f6nig3000"));
+
+            table.beginTransaction();
+            table.delete(10);
+            table.update("K\u00f6nig20", new Dog("K\u00f6nig20", 20, "Johnny"));
+            table.commit();
+            Assert.assertNull(table.search("K\u00f6nig10"));
+            Assert.assertEquals("Johnny", ((Dog) table.search("K\u00f6nig20")).owner);
+
+            // the value of the deleted row can be used again, with a new row number
+            table.beginTransaction();
+            table.add(new Dog("K\u00f6nig10", 10, "John10b"));
+            table.commit();
+            Assert.assertNull(table.readView(10));
+            Assert.assertEquals("John10b", ((Dog) table.read(3000)).owner);
+            table.close();
+
+            // the checkpoint is loaded into the index
+            table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            Assert.assertEquals(3000, table.getTotalRecordNumber());
+            Assert.assertEquals("John10b", ((Dog) table.search("K\u00f6nig10")).owner);
+            Assert.assertEquals("John2999", ((Dog) table.search("K\u00f6nig2999")).owner);
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    private static long countLiveRows(final Table table) throws DBException {
+        return table.listAllRowsWithDebug().stream().filter(row -> !row.isDeleted() && !row.isTemporary()).count();
+    }
+
+    @Test
+    public void testCompaction() {
+        try {
+            TableSettings settings = new TableSettings();
+            settings.setCompactionThresholdPercent(0);
+            settings.setRowSlackPercent(50);
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            table.beginTransaction();
+            for (int i = 0; i < 6; i++) {
+                table.add(new Dog("King" + i, i, "John" + i));
+            }
+            table.commit();
+            table.beginTransaction();
+            table.delete(1);
+            table.delete(3);
+            table.commit();
+            long fileLength = new File(dbFileName).length();
+
+            // the transaction is running during the compaction, its rows are moved too
+            table.beginTransaction();
+            table.add(new Dog("King6", 6, "John6"));
+            table.update("King2", new Dog("King2", 22, "Johnny2"));
+            table.delete(4);
+            table.compact();
+            Assert.assertTrue(new File(dbFileName).length() < fileLength);
+            table.commit();
+
+            // the row numbers do not change
+            Assert.assertEquals("John0", ((Dog) table.read(0)).owner);
+            Assert.assertEquals("Johnny2", table.readView(2).getString("owner"));
+            Assert.assertEquals(22, ((Dog) table.search("King2")).age);
+            Assert.assertEquals("John5", ((Dog) table.read(5)).owner);
+            Assert.assertEquals("John6", ((Dog) table.search("King6")).owner);
+            Assert.assertNull(table.search("King1"));
+            Assert.assertNull(table.search("King4"));
+
+            table.beginTransaction();
+            table.update("King2", new Dog("King2", 23, "Jo"));
+            table.compact();
+            table.rollback();
+            Assert.assertEquals(22, ((Dog) table.search("King2")).age);
+            table.close();
+
+            table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            Assert.assertEquals(4, countLiveRows(table));
+            Assert.assertEquals("Johnny2", ((Dog) table.search("King2")).owner);
+            Assert.assertEquals("John6", ((Dog) table.search("King6")).owner);
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCompactionWithConcurrentWriter() {
+        try {
+            TableSettings settings = new TableSettings();
+            settings.setCompactionThresholdPercent(0);
+            final Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            table.beginTransaction();
+            for (int i = 0; i < 2000; i++) {
+                table.add(new Dog("King" + i, i, "John" + i));
+            }
+            table.commit();
+            table.beginTransaction();
+            for (int i = 1000; i < 2000; i++) {
+                table.delete(i);
+            }
+            table.commit();
+
+            final List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        table.beginTransaction();
+                        table.add(new Dog("Rex" + i, i, "Owner" + i));
+                        table.update("King" + i, new Dog("King" + i, -i, "J" + i));
+                        table.commit();
+                    }
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            });
+            // the readers do not lock the table, they must not read an other row while the file is replaced
+            final AtomicBoolean compacted = new AtomicBoolean(false);
+            Thread reader = new Thread(() -> {
+                try {
+                    for (int i = 500; !compacted.get(); i = i == 999 ? 500 : i + 1) {
+                        Dog dog = (Dog) table.search("King" + i);
+                        if (dog == null || !("King" + i).equals(dog.pname) || !("John" + i).equals(dog.owner)) {
+                            errors.add(new Exception("King" + i + " read as "
+                                    + (dog == null ? null : dog.pname)));
+                            return;
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            });
+            writer.start();
+            reader.start();
+            table.compact();
+            compacted.set(true);
+            writer.join();
+            reader.join();
+            Assert.assertTrue(errors.isEmpty());
+
+            for (int i = 0; i < 200; i++) {
+                Assert.assertEquals("Owner" + i, ((Dog) table.search("Rex" + i)).owner);
+                Assert.assertEquals(-i, ((Dog) table.search("King" + i)).age);
+            }
+            Assert.assertEquals("John999", ((Dog) table.search("King999")).owner);
+            Assert.assertNull(table.search("King1000"));
+            table.close();
+
+            Table reopened = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            Assert.assertEquals(1200, countLiveRows(reopened));
+            Assert.assertEquals("Owner199", ((Dog) reopened.search("Rex199")).owner);
+            reopened.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testAutomaticCompaction() {
+        try {
+            TableSettings settings = new TableSettings();
+            // the minimum free space can be bigger than an int
+            Properties properties = new Properties();
+            properties.setProperty("COMPACTION_MIN_FREE_BYTES", "4294967296");
+            Assert.assertEquals(4294967296L,
+                    TableSettings.fromProperties(properties, dbFileName).getCompactionMinFreeBytes());
+
+            settings.setCompactionThresholdPercent(30);
+            settings.setCompactionMinFreeBytes(0);
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+            table.beginTransaction();
+            for (int i = 0; i < 100; i++) {
+                table.add(new Dog("King" + i, i, "John" + i));
+            }
+            table.commit();
+            long fileLength = new File(dbFileName).length();
+
+            table.beginTransaction();
+            for (int i = 50; i < 100; i++) {
+                table.delete(i);
+            }
+            table.commit();
+
+            // the compaction runs in the background
+            for (int i = 0; i < 100 && new File(dbFileName).length() >= fileLength; i++) {
+                Thread.sleep(50);
+            }
+            Assert.assertTrue(new File(dbFileName).length() < fileLength);
+            Assert.assertEquals("John49", ((Dog) table.search("King49")).owner);
+            Assert.assertNull(table.search("King50"));
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Simulates a crash of an open table: the table file and the commit log are copied as they are now, and
+     * most of the copied table file is lost. The table is closed (its flusher thread and files are released),
+     * and the crashed copy is opened.
+     */
+    private Table openCrashedCopy(final Table table, final String schema, final TableSettings settings)
+            throws DBException, IOException {
+        MxrTable.deleteTableFiles(crashedDbFileName);
+        Files.copy(Paths.get(dbFileName), Paths.get(crashedDbFileName));
+        Files.copy(Paths.get(dbFileName + ".wal"), Paths.get(crashedDbFileName + ".wal"));
+        table.close();
+        try (RandomAccessFile file = new RandomAccessFile(crashedDbFileName, "rw")) {
+            file.setLength(100);
+        }
+        return new MxrTable(crashedDbFileName, schema, Dog.class, new GenericIndexPool(), settings);
+    }
+
+    @Test
+    public void testCommitLogReplay() {
+        for (String schema : Arrays.asList(DOG_SCHEMA, DOG_SCHEMA_COMPACT)) {
+            try {
+                new File(dbFileName).delete();
+                Table table = new MxrTable(dbFileName, schema, Dog.class, new GenericIndexPool());
+                table.beginTransaction();
+                table.add(new Dog("King1", 1, "John1"));
+                table.add(new Dog("King2", 2, "John2"));
+                table.commit();
+
+                // King3 is not committed, King4 is committed after it by another thread
+                table.beginTransaction();
+                table.add(new Dog("King3", 3, "John3"));
+                List<Exception> errors = new ArrayList<>();
+                Thread writer = new Thread(() -> {
+                    try {
+                        table.beginTransaction();
+                        table.add(new Dog("King4", 4, "John4"));
+                        table.delete(0);
+                        table.commit();
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                });
+                writer.start();
+                writer.join();
+                Assert.assertTrue(errors.isEmpty());
+
+                // crash: the table is not closed, and the rows are lost from the table file
+                Table reopened = openCrashedCopy(table, schema, new TableSettings());
+                Assert.assertEquals(2, reopened.getTotalRecordNumber());
+                Assert.assertNull(reopened.search("King1"));
+                Assert.assertEquals("John2", ((Dog) reopened.search("King2")).owner);
+                Assert.assertNull(reopened.search("King3"));
+                Assert.assertEquals("John4", ((Dog) reopened.search("King4")).owner);
+                reopened.beginTransaction();
+                reopened.add(new Dog("King5", 5, "John5"));
+                reopened.commit();
+                reopened.close();
+
+                // the log is truncated by close(), the table file contains every commit
+                Assert.assertEquals(0, new File(crashedDbFileName + ".wal").length());
+                reopened = new MxrTable(crashedDbFileName, schema, Dog.class, new GenericIndexPool());
+                Assert.assertEquals(3, reopened.getTotalRecordNumber());
+                Assert.assertEquals("John5", ((Dog) reopened.search("King5")).owner);
+                reopened.close();
+                MxrTable.deleteTableFiles(crashedDbFileName);
+            } catch (Exception e) {
+                e.printStackTrace();
+                Assert.fail(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testCommitLogReplayWithCheckpoint() {
+        try {
+            new File(dbFileName).delete();
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            table.add(new Dog("AAAA", 1, "John1"));
+            table.add(new Dog("BBBB", 2, "John2"));
+            table.commit();
+            // the checkpoint is written when the table is closed
+            table.close();
+
+            // crash after the commit log and before the table file: the table file and the checkpoint are copied
+            // before the delete, the log after it
+            table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            MxrTable.deleteTableFiles(crashedDbFileName);
+            Files.copy(Paths.get(dbFileName), Paths.get(crashedDbFileName));
+            Files.copy(Paths.get(dbFileName + ".idx"), Paths.get(crashedDbFileName + ".idx"));
+            table.beginTransaction();
+            table.delete(0);
+            table.commit();
+            Files.copy(Paths.get(dbFileName + ".wal"), Paths.get(crashedDbFileName + ".wal"));
+            table.close();
+
+            // the replayed delete modifies a row covered by the checkpoint, the checkpoint is not used
+            Table reopened = new MxrTable(crashedDbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            Assert.assertEquals(1, reopened.getTotalRecordNumber());
+            Assert.assertNull(reopened.search("AAAA"));
+            Assert.assertEquals("John2", ((Dog) reopened.search("BBBB")).owner);
+            reopened.close();
+            MxrTable.deleteTableFiles(crashedDbFileName);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testGroupCommit() {
+        try {
+            Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int writerId = t;
+                writers.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            table.beginTransaction();
+                            table.add(new Dog("King" + writerId + "_" + i, i, "John" + writerId));
+                            table.commit();
+                        }
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }));
+            }
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            Assert.assertTrue(errors.isEmpty());
+
+            // crash: every commit is restored from the log
+            Table reopened = openCrashedCopy(table, DOG_SCHEMA, new TableSettings());
+            Assert.assertEquals(160, reopened.getTotalRecordNumber());
+            Assert.assertEquals("John7", ((Dog) reopened.search("King7_19")).owner);
+            reopened.close();
+            MxrTable.deleteTableFiles(crashedDbFileName);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDurabilityModes() {
+        for (DurabilityMode mode : DurabilityMode.values()) {
+            try {
+                new File(dbFileName).delete();
+                TableSettings settings = new TableSettings();
+                settings.setDurabilityMode(mode);
+                settings.setDurabilityIntervalMillis(10);
+                settings.setDurabilityBytes(256);
+                Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool(), settings);
+                for (int i = 0; i < 20; i++) {
+                    table.beginTransaction();
+                    table.add(new Dog("King" + i, i, "John" + i));
+                    table.commit();
+                }
+                Assert.assertTrue(new File(dbFileName + ".wal").length() > 0);
+
+                // crash: the commits are in the log in every mode, the process did not lose them
+                table = openCrashedCopy(table, DOG_SCHEMA, settings);
+                Assert.assertEquals(mode.name(), 20L, table.getTotalRecordNumber());
+                Assert.assertEquals("John19", ((Dog) table.search("King19")).owner);
+                table.close();
+                MxrTable.deleteTableFiles(crashedDbFileName);
+            } catch (Exception e) {
+                e.printStackTrace();
+                Assert.fail(mode + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testBulkLoad() {
+        for (String schema : Arrays.asList(DOG_SCHEMA, DOG_SCHEMA_COMPACT)) {
+            try {
+                new File(dbFileName).delete();
+                Table table = new MxrTable(dbFileName, schema, Dog.class, new GenericIndexPool());
+                table.beginTransaction();
+                table.add(new Dog("King", 1, "John"));
+                table.commit();
+
+                List<Dog> dogs = new ArrayList<>();
+                for (int i = 0; i < 20000; i++) {
+                    dogs.add(new Dog("King" + i, i, "John" + i));
+                }
+                Assert.assertEquals(20000, table.bulkLoad(dogs.iterator()));
+                Assert.assertEquals(20001, table.getTotalRecordNumber());
+                Assert.assertEquals("John19999", ((Dog) table.search("King19999")).owner);
+                Assert.assertEquals("John0", ((Dog) table.read(1)).owner);
+
+                // a duplicate in the table or among the objects: nothing is stored
+                try {
+                    table.bulkLoad(Arrays.asList(new Dog("Rex1", 1, "Bob"), new Dog("King5", 5, "Bob")).iterator());
+                    Assert.fail("Duplicate was stored");
+                } catch (DuplicateNameException expected) {
+                    // expected
+                }
+                try {
+                    table.bulkLoad(Arrays.asList(new Dog("Rex1", 1, "Bob"), new Dog("Rex1", 2, "Bob")).iterator());
+                    Assert.fail("Duplicate was stored");
+                } catch (DuplicateNameException expected) {
+                    // expected
+                }
+                Assert.assertNull(table.search("Rex1"));
+                Assert.assertEquals(20001, countLiveRows(table));
+                table.close();
+
+                table = new MxrTable(dbFileName, schema, Dog.class, new GenericIndexPool());
+                Assert.assertEquals(20001, table.getTotalRecordNumber());
+                Assert.assertEquals("John12345", ((Dog) table.search("King12345")).owner);
+                Assert.assertNull(table.search("Rex1"));
+                table.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+                Assert.fail(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testDurabilitySettings() {
+        try {
+            Properties properties = new Properties();
+            properties.setProperty("DURABILITY", "interval");
+            properties.setProperty("DURABILITY_INTERVAL_MS", "50");
+            properties.setProperty("ledger.db.DURABILITY", "COMMIT");
+            Assert.assertEquals(DurabilityMode.INTERVAL,
+                    TableSettings.fromProperties(properties, "cache.db").getDurabilityMode());
+            Assert.assertEquals(50, TableSettings.fromProperties(properties, "cache.db").getDurabilityIntervalMillis());
+            Assert.assertEquals(DurabilityMode.COMMIT,
+                    TableSettings.fromProperties(properties, "ledger.db").getDurabilityMode());
+
+            properties.setProperty("DURABILITY", "SOMETIMES");
+            try {
+                TableSettings.fromProperties(properties, "cache.db");
+                Assert.fail("Invalid durability mode accepted");
+            } catch (DBException expected) {
+                // expected
+            }
+            properties.setProperty("DURABILITY", "BYTES");
+            properties.setProperty("DURABILITY_BYTES", "0");
+            try {
+                TableSettings.fromProperties(properties, "cache.db");
+                Assert.fail("Invalid durability bytes accepted");
+            } catch (DBException expected) {
+                // expected
+            }
+            try {
+                new TableSettings().setDurabilityBytes(0);
+                Assert.fail("Invalid durability bytes accepted");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        } catch (DBException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testTransactionWriteBuffering() {
+        try {
+            final Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            table.add(new Dog("King", 2, "John"));
+            table.add(new Dog("King2", 3, "John2"));
+            table.commit();
+            long fileLength = new File(dbFileName).length();
+
+            // the writes are staged until the commit: the file does not change, and the table shows the old rows
+            table.beginTransaction();
+            table.add(new Dog("King3", 4, "John3"));
+            table.update("King3", new Dog("King3", 5, "Johnny3"));
+            table.update("King", new Dog("King", 6, "Jo"));
+            table.delete(1);
+            Assert.assertEquals(fileLength, new File(dbFileName).length());
+            Assert.assertNull(table.search("King3"));
+            Assert.assertEquals("John", ((Dog) table.search("King")).owner);
+            Assert.assertEquals("John2", ((Dog) table.search("King2")).owner);
+            table.commit();
+            Assert.assertEquals("Johnny3", ((Dog) table.search("King3")).owner);
+            Assert.assertEquals(6, ((Dog) table.search("King")).age);
+            Assert.assertNull(table.search("King2"));
+            Assert.assertEquals(2, countLiveRows(table));
+
+            // a row can be deleted and added again in the same transaction
+            table.beginTransaction();
+            table.delete(2);
+            table.add(new Dog("King3", 7, "John3"));
+            table.commit();
+            Assert.assertEquals(7, ((Dog) table.search("King3")).age);
+
+            // two transactions delete the same row: the second commit fails, and its transaction is discarded
+            table.beginTransaction();
+            table.delete(3);
+            final List<Exception> errors = new ArrayList<>();
+            Thread other = new Thread(() -> {
+                try {
+                    table.beginTransaction();
+                    table.delete(3);
+                    table.add(new Dog("Rex", 1, "Bob"));
+                    table.commit();
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            });
+            other.start();
+            other.join();
+            Assert.assertTrue(errors.isEmpty());
+            try {
+                table.commit();
+                Assert.fail("Conflicting commit accepted");
+            } catch (DBException expected) {
+                // expected
+            }
+            table.rollback();
+            Assert.assertNull(table.search("King3"));
+            Assert.assertEquals("Bob", ((Dog) table.search("Rex")).owner);
+            table.close();
+
+            Table reopened = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            Assert.assertEquals(2, countLiveRows(reopened));
+            Assert.assertEquals("Jo", ((Dog) reopened.search("King")).owner);
+            Assert.assertEquals("Bob", ((Dog) reopened.search("Rex")).owner);
+            reopened.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testSnapshotReads() {
+        try {
+            final Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            for (int i = 0; i < 5; i++) {
+                table.add(new Dog("King" + i, i, "John" + i));
+            }
+            table.commit();
+
+            // the scan sees the table as it was when it started, the writer does not wait for it
+            final List<String> owners = new ArrayList<>();
+            final List<Exception> errors = new ArrayList<>();
+            table.scan(row -> {
+                if (owners.isEmpty()) {
+                    Thread writer = new Thread(() -> {
+                        try {
+                            table.beginTransaction();
+                            table.update("King2", new Dog("King2", 22, "Jo"));
+                            table.delete(4);
+                            table.commit();
+                            // the slot of the deleted row is not reused while the scan can read it
+                            table.beginTransaction();
+                            table.add(new Dog("King9", 9, "Bob"));
+                            table.commit();
+                        } catch (Exception e) {
+                            errors.add(e);
+                        }
+                    });
+                    writer.start();
+                    try {
+                        writer.join(10000);
+                    } catch (InterruptedException e) {
+                        errors.add(e);
+                    }
+                    Assert.assertFalse(writer.isAlive());
+                }
+                owners.add(row.getString("owner"));
+                return true;
+            });
+            Assert.assertTrue(errors.isEmpty());
+            Assert.assertEquals(Arrays.asList("John0", "John1", "John2", "John3", "John4"), owners);
+
+            Assert.assertEquals("Jo", ((Dog) table.search("King2")).owner);
+            Assert.assertNull(table.search("King4"));
+            Assert.assertEquals("Bob", ((Dog) table.search("King9")).owner);
+            Assert.assertEquals(5, table.searchWithRegexp("King.*").size());
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testTransactionHandles() {
+        try {
+            final Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+
+            // a handle is not bound to the thread: it is started here and committed by an executor task
+            final TableTransaction first = table.begin();
+            first.add(new Dog("King0", 0, "John0"));
+            CompletableFuture.runAsync(() -> {
+                try {
+                    first.add(new Dog("King1", 1, "John1"));
+                    first.commit();
+                } catch (DBException | DuplicateNameException e) {
+                    throw new CompletionException(e);
+                }
+            }).get(10, TimeUnit.SECONDS);
+            Assert.assertFalse(first.isActive());
+            Assert.assertEquals(2L, table.getTotalRecordNumber());
+
+            // the handles and the transaction of the thread are independent of each other
+            table.beginTransaction();
+            table.add(new Dog("King2", 2, "John2"));
+            try (TableTransaction second = table.begin()) {
+                second.update("King0", new Dog("King0", 10, "Jo"));
+                second.commit();
+            }
+            try (TableTransaction third = table.begin()) {
+                third.add(new Dog("King3", 3, "John3"));
+                // closed without a commit: rolled back
+            }
+            Assert.assertEquals("Jo", ((Dog) table.search("King0")).owner);
+            Assert.assertNull(table.search("King2"));
+            table.commit();
+            Assert.assertNotNull(table.search("King2"));
+            Assert.assertNull(table.search("King3"));
+
+            final TableTransaction finished = table.begin();
+            finished.rollback();
+            try {
+                finished.add(new Dog("King4", 4, "John4"));
+                Assert.fail("A finished transaction cannot be used");
+            } catch (DBException e) {
+                Assert.assertEquals("Transaction is finished", e.getMessage());
+            }
+            Assert.assertEquals(3L, table.getTotalRecordNumber());
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testConcurrentCommits() {
+        try {
+            final Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            final int threads = 4;
+            final int rowsPerThread = 50;
+            ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < rowsPerThread; i++) {
+                        try (TableTransaction transaction = table.begin()) {
+                            transaction.add(new Dog("King" + thread + "_" + i, i, "John" + thread));
+                            transaction.commit();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            // the readers do not wait for the writers
+            futures.add(executor.submit(() -> {
+                while (table.getTotalRecordNumber() < threads * rowsPerThread) {
+                    Dog dog = (Dog) table.search("King0_0");
+                    Assert.assertTrue(dog == null || "John0".equals(dog.owner));
+                }
+                return null;
+            }));
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+
+            Assert.assertEquals((long) threads * rowsPerThread, table.getTotalRecordNumber());
+            for (int t = 0; t < threads; t++) {
+                for (int i = 0; i < rowsPerThread; i++) {
+                    Assert.assertEquals("John" + t, ((Dog) table.search("King" + t + "_" + i)).owner);
+                }
+            }
+            // the appends of the commits did not overlap
+            Assert.assertEquals(threads * rowsPerThread, table.listAllRowsWithDebug().size());
+
+            // the commits of the same value: the second one conflicts
+            TableTransaction first = table.begin();
+            TableTransaction second = table.begin();
+            first.add(new Dog("Rex", 1, "Bob"));
+            second.add(new Dog("Rex", 2, "Jo"));
+            first.commit();
+            try {
+                second.commit();
+                Assert.fail("The same value cannot be committed twice");
+            } catch (DBException e) {
+                Assert.assertEquals("Name 'Rex' already exists!", e.getMessage());
+            }
+            Assert.assertEquals("Bob", ((Dog) table.search("Rex")).owner);
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testStaleCommitOfReusedSlot() {
+        try {
+            final Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            table.add(new Dog("AAAA", 1, "John"));
+            table.add(new Dog("Rex", 2, "Bob"));
+            table.commit();
+
+            // the stale transaction staged the delete of row 0, then row 0 is deleted and its slot is reused
+            TableTransaction stale = table.begin();
+            stale.delete(0);
+            try (TableTransaction transaction = table.begin()) {
+                transaction.delete(0);
+                transaction.commit();
+            }
+            try (TableTransaction transaction = table.begin()) {
+                transaction.add(new Dog("BBBB", 3, "Jane"));
+                transaction.commit();
+            }
+            Assert.assertEquals(2, table.listAllRowsWithDebug().size());
+            try {
+                stale.commit();
+                Assert.fail("The stale delete must not delete the new row of the slot");
+            } catch (DBException e) {
+                Assert.assertTrue(e.getMessage().startsWith("Row was changed by an other transaction"));
+            }
+            Assert.assertEquals("Jane", ((Dog) table.search("BBBB")).owner);
+            Assert.assertEquals(2, table.getTotalRecordNumber());
+
+            // the same with an update in place
+            stale = table.begin();
+            stale.update(1, new Dog("Rex", 2, "Jim"));
+            try (TableTransaction transaction = table.begin()) {
+                transaction.delete(1);
+                transaction.commit();
+            }
+            try (TableTransaction transaction = table.begin()) {
+                transaction.add(new Dog("Max", 4, "Tom"));
+                transaction.commit();
+            }
+            Assert.assertEquals(2, table.listAllRowsWithDebug().size());
+            try {
+                stale.commit();
+                Assert.fail("The stale update must not overwrite the new row of the slot");
+            } catch (DBException e) {
+                Assert.assertTrue(e.getMessage().startsWith("Row was changed by an other transaction"));
+            }
+            Assert.assertEquals("Tom", ((Dog) table.search("Max")).owner);
+            Assert.assertNull(table.search("Rex"));
+            Assert.assertEquals(2, table.getTotalRecordNumber());
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testOptimisticUpdates() {
+        try {
+            final Table table = new MxrTable(dbFileName, DOG_SCHEMA, Dog.class, new GenericIndexPool());
+            table.beginTransaction();
+            table.add(new Dog("King", 1, "John"));
+            table.add(new Dog("Rex", 2, "Bob"));
+            table.commit();
+
+            VersionedRow king = table.readVersioned("King");
+            Assert.assertEquals("John", ((Dog) king.getObject()).owner);
+            Assert.assertTrue(table.updateIfVersion("King", king.getVersion(), new Dog("King", 1, "Jo")));
+            // the stamp is outdated
+            Assert.assertFalse(table.updateIfVersion("King", king.getVersion(), new Dog("King", 1, "Jim")));
+            Assert.assertFalse(table.deleteIfVersion("King", king.getVersion()));
+            Assert.assertEquals("Jo", ((Dog) table.search("King")).owner);
+
+            VersionedRow rex = table.readVersioned("Rex");
+            Assert.assertNotEquals(king.getVersion(), table.readVersioned("King").getVersion());
+            Assert.assertTrue(table.deleteIfVersion("Rex", rex.getVersion()));
+            Assert.assertNull(table.readVersioned("Rex"));
+            Assert.assertFalse(table.updateIfVersion("Rex", rex.getVersion(), new Dog("Rex", 3, "Bob")));
+
+            // a row loaded again after its delete has a new stamp
+            table.bulkLoad(Collections.singletonList(new Dog("Max", 4, "Tom")).iterator());
+            VersionedRow max = table.readVersioned("Max");
+            Assert.assertTrue(table.deleteIfVersion("Max", max.getVersion()));
+            table.bulkLoad(Collections.singletonList(new Dog("Max", 5, "Tim")).iterator());
+            Assert.assertFalse(table.updateIfVersion("Max", max.getVersion(), new Dog("Max", 6, "Tom")));
+            Assert.assertEquals("Tim", ((Dog) table.search("Max")).owner);
+
+            // read-modify-write from more threads: no update is lost
+            final int threads = 4;
+            final int increments = 25;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < increments; i++) {
+                        while (true) {
+                            VersionedRow row = table.readVersioned("King");
+                            Dog dog = (Dog) row.getObject();
+                            if (table.updateIfVersion("King", row.getVersion(),
+                                    new Dog("King", dog.age + 1, dog.owner))) {
+                                break;
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+            Assert.assertEquals(1 + threads * increments, ((Dog) table.search("King")).age);
+            table.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Assert.fail(e.getMessage());
+        }
+    }
+
     @Test
     public void deleteAddIndexTest_bug() {
         try (DB db = DBFactory.getSpecificDB(dbFileName)) {
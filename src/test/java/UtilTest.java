@@ -1,7 +1,18 @@
 import com.mixer.util.Leveinshtein;
+import com.mixer.util.LongLongMap;
+import com.mixer.util.LongObjectMap;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+
 public class UtilTest {
     @Test
     public void testLeveinstein_0_distance() {
@@ -25,4 +36,119 @@ public class UtilTest {
         int result = Leveinshtein.leveinshteinDistance("", null);
         Assert.assertEquals(-1, result);
     }
+
+    @Test
+    public void testLongLongMap_put_get_remove() {
+        LongLongMap map = new LongLongMap();
+        Assert.assertEquals(LongLongMap.NO_VALUE, map.put(1, 100));
+        Assert.assertEquals(100, map.put(1, 200));
+        Assert.assertEquals(200, map.get(1));
+        Assert.assertEquals(LongLongMap.NO_VALUE, map.get(2));
+        Assert.assertEquals(200, map.remove(1));
+        Assert.assertEquals(LongLongMap.NO_VALUE, map.get(1));
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testLongLongMap_grow_and_reuse_removed() {
+        LongLongMap map = new LongLongMap();
+        for (long i = 0; i < 10000; i++) {
+            map.put(i, i * 10);
+        }
+        for (long i = 0; i < 10000; i += 2) {
+            map.remove(i);
+        }
+        for (long i = 0; i < 10000; i += 2) {
+            map.put(i, i * 20);
+        }
+        Assert.assertEquals(10000, map.size());
+        for (long i = 0; i < 10000; i++) {
+            Assert.assertEquals(i % 2 == 0 ? i * 20 : i * 10, map.get(i));
+        }
+    }
+
+    @Test
+    public void testLongLongMap_concurrent_readers() throws InterruptedException {
+        final LongLongMap map = new LongLongMap();
+        // the value of a key is key * 1000000 + a counter, a reader must not get the value of an other key
+        String error = runWithConcurrentReaders((key, i) -> map.put(key, key * 1000000 + i % 1000000), map::remove,
+                key -> {
+                    long value = map.get(key);
+                    return value == LongLongMap.NO_VALUE || value / 1000000 == key ? null
+                            : "Key " + key + " has the value " + value;
+                });
+        Assert.assertNull(error);
+    }
+
+    @Test
+    public void testLongObjectMap_concurrent_readers() throws InterruptedException {
+        final LongObjectMap<String> map = new LongObjectMap<>();
+        String error = runWithConcurrentReaders((key, i) -> map.put(key, key + ":" + i), map::remove,
+                key -> {
+                    String value = map.get(key);
+                    return value == null || value.startsWith(key + ":") ? null
+                            : "Key " + key + " has the value " + value;
+                });
+        Assert.assertNull(error);
+    }
+
+    /**
+     * Runs a writer, which puts and removes random keys, and two readers, which check the values of random keys
+     * until the writer finishes
+     *
+     * @return The last error found by the readers, or null
+     */
+    private static String runWithConcurrentReaders(final BiConsumer<Long, Integer> put, final LongConsumer remove,
+                                                   final LongFunction<String> check) throws InterruptedException {
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<String> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            Random random = new Random(1);
+            for (int i = 0; i < 2000000; i++) {
+                long key = random.nextInt(64);
+                if (random.nextBoolean()) {
+                    remove.accept(key);
+                } else {
+                    put.accept(key, i);
+                }
+            }
+            writing.set(false);
+        });
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            readers.add(new Thread(() -> {
+                Random random = new Random();
+                while (writing.get()) {
+                    String result = check.apply(random.nextInt(64));
+                    if (result != null) {
+                        error.set(result);
+                    }
+                }
+            }));
+        }
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        return error.get();
+    }
+
+    @Test
+    public void testLongObjectMap_put_get_remove() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        for (long i = 0; i < 1000; i++) {
+            Assert.assertNull(map.put(i, "name" + i));
+        }
+        Assert.assertEquals("name7", map.put(7, "other"));
+        Assert.assertEquals("other", map.get(7));
+        Assert.assertEquals("name500", map.remove(500));
+        Assert.assertNull(map.get(500));
+        Assert.assertNull(map.remove(500));
+        Assert.assertEquals(999, map.size());
+        Assert.assertEquals("name999", map.get(999));
+    }
 }
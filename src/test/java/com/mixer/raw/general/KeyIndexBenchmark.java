@@ -0,0 +1,82 @@
+package com.mixer.raw.general;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the KeyIndex implementations: retained heap per value and the time of a lookup. The values are
+ * generated with long common prefixes, like names and plates. Run it with a fixed heap, for example
+ * java -Xms2g -Xmx2g com.mixer.raw.general.KeyIndexBenchmark 1000000
+ */
+public final class KeyIndexBenchmark {
+
+    private static final int LOOKUP_ROUNDS = 5;
+
+    public static void main(final String[] args) {
+        int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        List<String> keys = generateKeys(keyCount, new Random(42));
+        System.out.println("Values: " + keyCount + ", average length: "
+                + keys.stream().mapToInt(String::length).average().orElse(0));
+        for (IndexMode mode : IndexMode.values()) {
+            run(mode, keys);
+        }
+    }
+
+    private static List<String> generateKeys(int count, final Random random) {
+        String[] cities = {"Berlin", "Budapest", "Bucharest", "Bratislava", "Brussels"};
+        List<String> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String city = cities[random.nextInt(cities.length)];
+            keys.add(String.format(Locale.ROOT, "%s-%s-%08d", city, (char) ('A' + random.nextInt(4)), i));
+        }
+        return keys;
+    }
+
+    private static void run(final IndexMode mode, final List<String> keys) {
+        long before = usedHeap();
+        KeyIndex index = KeyIndex.create(mode);
+        for (int i = 0; i < keys.size(); i++) {
+            // the index gets its own copies, like the values decoded from the rows
+            index.put(new String(keys.get(i)), i);
+        }
+        long after = usedHeap();
+
+        // every value is looked up in a random order, the best round counts
+        int[] order = new Random(7).ints(keys.size(), 0, keys.size()).toArray();
+        long best = Long.MAX_VALUE;
+        long found = 0;
+        for (int round = 0; round < LOOKUP_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i : order) {
+                found += index.get(keys.get(i)) == i ? 1 : 0;
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        if (found != (long) LOOKUP_ROUNDS * keys.size()) {
+            throw new IllegalStateException(mode + " lost values");
+        }
+        Set<String> sorted = index.keySet();
+        System.out.printf(Locale.ROOT, "%-10s heap: %6.1f bytes/value, lookup: %6.1f ns, size: %d%n", mode,
+                (after - before) / (double) keys.size(), best / (double) keys.size(), sorted.size());
+        // keeps the index reachable until the heap is measured
+        if (index.size() != keys.size()) {
+            throw new IllegalStateException(mode + " has a wrong size");
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}